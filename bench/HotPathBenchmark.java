@@ -0,0 +1,290 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+// baseline throughput of the server hot paths: database create/read, email serialization, folder
+// reads, end-to-end delivery and audit logging
+// usage: java HotPathBenchmark [name regex]; run from the project root (needs files/db.sql)
+//
+// each benchmark runs bench.warmup warm-up iterations (default 3) and then bench.iterations measured
+// iterations (default 5) of bench.iterationMs each (default 1000); the result is the mean with its
+// standard deviation across the measured iterations. results can be appended to a csv with
+// bench.results=<file>, and bench.baseline=<file> (an earlier results csv) prints the change per
+// benchmark, so a performance change can be judged against a stored run
+public class HotPathBenchmark {
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MS = Long.getLong("bench.iterationMs", 1_000);
+    private static final int[] FOLDER_SIZES = {10, 1_000, 100_000};
+
+    // results fold into this so the jit can't drop a benchmark whose value is unused
+    private static long sink;
+    private static final Map<String, Double> baseline = new HashMap<>();
+    private static final List<String> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+
+        // point the pool and the audit log at throwaway files before either class is loaded
+        Path dir = Files.createTempDirectory("hotpath-benchmark");
+        System.setProperty("email.db.url", "jdbc:sqlite:" + dir.resolve("bench.db"));
+        System.setProperty("email.audit.file", dir.resolve("audit.csv").toString());
+        System.setProperty("email.log.profile", System.getProperty("email.log.profile", "quiet"));
+        System.setProperty("email.metrics.dumpMs", "0");
+        loadBaseline();
+
+        try {
+            DatabaseInit.initDB();
+            System.out.printf("%-36s %14s %12s %12s %8s%n", "benchmark", "ops/s", "error", "ns/op", "change");
+
+            databaseBenchmarks(filter);
+            serializationBenchmarks(filter);
+            folderBenchmarks(filter);
+            deliveryBenchmarks(filter);
+            loggerBenchmarks(filter);
+            saveResults();
+        } finally {
+            EmailServer.getInstance().stop();
+            DatabaseConnection.getInstance().closeConnection();
+            System.out.println("sink " + sink);
+            System.exit(0);
+        }
+    }
+
+    // GenericDatabaseService create and read against sqlite, on a table of its own
+    private static void databaseBenchmarks(Pattern filter) throws Exception {
+        try (Connection conn = DatabaseConnection.getInstance().getWriteConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS bench_rows ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, value INTEGER NOT NULL)");
+        }
+        GenericDatabaseService<Integer> service = new GenericDatabaseService<Integer>() {
+            @Override
+            protected Integer mapResultSet(ResultSet rs) throws SQLException {
+                return rs.getInt("value");
+            }
+        };
+        String[] columns = {"name", "value"};
+        AtomicLong next = new AtomicLong();
+
+        run(filter, "db.create", 1, () ->
+            service.create("bench_rows", columns, new Object[]{"row", next.incrementAndGet()}));
+
+        int rows = service.create("bench_rows", columns, new Object[]{"row", 0});
+        run(filter, "db.readById", 1, () -> {
+            long id = 1 + next.incrementAndGet() % rows;
+            return service.read("bench_rows", "id = ?", new Object[]{id}, service::mapResultSet).size();
+        });
+        run(filter, "db.readById.4threads", 4, () -> {
+            long id = 1 + next.incrementAndGet() % rows;
+            return service.read("bench_rows", "id = ?", new Object[]{id}, service::mapResultSet).size();
+        });
+    }
+
+    // round trips of one email through java serialization and through the binary wire encoding
+    private static void serializationBenchmarks(Pattern filter) throws Exception {
+        Email email = new Email("alice@example.com", "bob@example.com, carol@example.com", "Quarterly report",
+            "Hi Bob,\n\nThe numbers for the quarter are attached. Let me know if anything looks off.\n\nAlice");
+        email.setCc("dave@example.com");
+        email.setId(123_456);
+
+        run(filter, "email.javaSerialization", 1, () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(email);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return ((Email) in.readObject()).getId();
+            }
+        });
+        run(filter, "email.wireProtocol", 1, () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            WireProtocol.encodeEmail(email, new DataOutputStream(bytes), WireProtocol.VERSION);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            return WireProtocol.decodeEmail(in, WireProtocol.VERSION).getId();
+        });
+    }
+
+    // folder reads at several sizes: the first page of the folder, the same page after a change, and
+    // the unread count
+    private static void folderBenchmarks(Pattern filter) throws Exception {
+        for (int size : FOLDER_SIZES) {
+            Folder folder = new Folder("inbox", true);
+            for (int i = 1; i <= size; i++) {
+                Email email = new Email("sender@example.com", "owner@example.com", "subject " + i, null);
+                email.setId(i);
+                email.setRead(i % 3 == 0);
+                folder.addEmail(email);
+            }
+            Email changed = folder.getEmail(0);
+
+            run(filter, "folder.getEmails." + size, 1, () -> folder.getEmails(0, 20).size());
+            run(filter, "folder.getEmailsAfterChange." + size, 1, () -> {
+                folder.removeEmail(changed);
+                folder.addEmail(changed);
+                return folder.getEmails(0, 20).size();
+            });
+            run(filter, "folder.getUnreadCount." + size, 1, folder::getUnreadCount);
+        }
+    }
+
+    // deliverEmail from the server entry point to the committed rows and the recipient's cached inbox
+    private static void deliveryBenchmarks(Pattern filter) throws Exception {
+        // the server singleton is only set up if one of these will run
+        if (!filter.matcher("delivery.oneRecipient").find() && !filter.matcher("delivery.threeRecipients").find()
+                && !filter.matcher("delivery.oneRecipient.8threads").find()) {
+            return;
+        }
+        EmailServer server = EmailServer.getInstance();
+        UserService users = UserService.getInstance();
+        String[] addresses = {"sender", "first", "second", "third"};
+        for (String name : addresses) {
+            if (users.getUserByEmail(name + "@example.com") == null) {
+                users.createUser(new User(name, name + "@example.com", "password"));
+            }
+        }
+
+        run(filter, "delivery.oneRecipient", 1, () -> {
+            Email email = new Email("sender@example.com", "first@example.com", "subject", "body");
+            server.deliverEmail(email).get(30, TimeUnit.SECONDS);
+            return email.getRecipients().size();
+        });
+        run(filter, "delivery.threeRecipients", 1, () -> {
+            Email email = new Email("sender@example.com", "first@example.com", "subject", "body");
+            email.setCc("second@example.com");
+            email.setBcc("third@example.com");
+            server.deliverEmail(email).get(30, TimeUnit.SECONDS);
+            return email.getRecipients().size();
+        });
+        run(filter, "delivery.oneRecipient.8threads", 8, () -> {
+            Email email = new Email("sender@example.com", "second@example.com", "subject", "body");
+            server.deliverEmail(email).get(30, TimeUnit.SECONDS);
+            return email.getRecipients().size();
+        });
+    }
+
+    // audit log calls, which only queue the entry for the writer thread
+    private static void loggerBenchmarks(Pattern filter) throws Exception {
+        Logger logger = Logger.getInstance();
+        run(filter, "logger.log", 1, () -> {
+            logger.log("BENCH_ACTION");
+            return 1;
+        });
+        run(filter, "logger.log.4threads", 4, () -> {
+            logger.log("BENCH_ACTION");
+            return 1;
+        });
+    }
+
+    // one operation; its result is folded into the sink
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    // runs the warm-up and measured iterations of one benchmark on the given number of threads
+    private static void run(Pattern filter, String name, int threads, Operation operation) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        for (int i = 0; i < WARMUP; i++) {
+            iteration(threads, operation);
+        }
+        double[] rates = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            rates[i] = iteration(threads, operation);
+        }
+
+        double mean = 0;
+        for (double rate : rates) {
+            mean += rate / rates.length;
+        }
+        double variance = 0;
+        for (double rate : rates) {
+            variance += (rate - mean) * (rate - mean) / Math.max(1, rates.length - 1);
+        }
+        double error = Math.sqrt(variance);
+        Double before = baseline.get(name);
+        String change = before == null ? "" : String.format("%+.1f%%", (mean - before) / before * 100);
+        System.out.printf("%-36s %14.1f %11.1f%% %12.1f %8s%n",
+            name, mean, error / mean * 100, threads * 1e9 / mean, change);
+        results.add(String.format("%s,%d,%.1f,%.1f", name, threads, mean, error));
+    }
+
+    // ops per second of one timed iteration
+    private static double iteration(int threads, Operation operation) throws Exception {
+        AtomicLong ops = new AtomicLong();
+        Exception[] failure = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(ITERATION_MS);
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long done = 0;
+                long local = 0;
+                try {
+                    // check the clock every few calls so it doesn't dominate the fast benchmarks
+                    while (done % 16 != 0 || System.nanoTime() < deadline) {
+                        Object result = operation.run();
+                        local += result != null ? result.hashCode() : 0;
+                        done++;
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+                ops.addAndGet(done);
+                synchronized (HotPathBenchmark.class) {
+                    sink += local;
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return ops.get() * 1e9 / (System.nanoTime() - start);
+    }
+
+    // reads the ops/s of each benchmark from an earlier results file
+    private static void loadBaseline() throws IOException {
+        String file = System.getProperty("bench.baseline");
+        if (file == null) {
+            return;
+        }
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            String[] fields = line.split(",");
+            if (fields.length == 4 && !fields[0].equals("benchmark")) {
+                baseline.put(fields[0], Double.parseDouble(fields[2]));
+            }
+        }
+    }
+
+    private static void saveResults() throws IOException {
+        String file = System.getProperty("bench.results");
+        if (file == null) {
+            return;
+        }
+        Path path = Paths.get(file);
+        List<String> lines = new ArrayList<>();
+        if (Files.notExists(path)) {
+            lines.add("benchmark,threads,ops_per_s,error");
+        }
+        lines.addAll(results);
+        Files.write(path, lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
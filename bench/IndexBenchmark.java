@@ -0,0 +1,162 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+// measures folder and recipient lookup latency on a large mail store with and without the
+// secondary indexes added by migration 1
+// usage: java IndexBenchmark [emails] [lookups]; run from the project root (needs files/db.sql)
+public class IndexBenchmark {
+    private static final int USERS = 1_000;
+    private static final String[] FOLDER_NAMES = {"inbox", "spam"};
+    private static final String[] LOOKUP_INDEXES =
+        {"idx_emails_folder_id", "idx_emails_recipient", "idx_emails_sender", "idx_folders_user_name"};
+
+    public static void main(String[] args) throws Exception {
+        int emails = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        // point the pool at a throwaway database before DatabaseConnection is loaded
+        File dbFile = File.createTempFile("index-benchmark", ".db");
+        dbFile.deleteOnExit();
+        new File(dbFile.getPath() + "-wal").deleteOnExit();
+        new File(dbFile.getPath() + "-shm").deleteOnExit();
+        System.setProperty("email.db.url", "jdbc:sqlite:" + dbFile.getPath());
+
+        try {
+            // the services read through views from later migrations, so apply everything and then
+            // take the lookup indexes back out for the first run
+            DatabaseInit.initDB();
+            dropLookupIndexes();
+            long start = System.nanoTime();
+            populate(emails);
+            System.out.printf("Loaded %d users, %d folders, %d emails in %d ms%n",
+                USERS, USERS * FOLDER_NAMES.length, emails, (System.nanoTime() - start) / 1_000_000);
+
+            System.out.println();
+            System.out.println("Without indexes:");
+            measure(lookups);
+
+            start = System.nanoTime();
+            DatabaseInit.applyMigrations();
+            System.out.printf("%nIndexes rebuilt in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+            System.out.println();
+            System.out.println("With indexes:");
+            measure(lookups);
+        } finally {
+            DatabaseConnection.getInstance().closeConnection();
+            System.exit(0);
+        }
+    }
+
+    // drops the migration 1 indexes and forgets the migration, so applyMigrations builds them again
+    private static void dropLookupIndexes() throws SQLException {
+        try (Connection conn = DatabaseConnection.getInstance().getWriteConnection();
+             Statement stmt = conn.createStatement()) {
+            for (String index : LOOKUP_INDEXES) {
+                stmt.executeUpdate("DROP INDEX IF EXISTS " + index);
+            }
+            stmt.executeUpdate("DELETE FROM schema_migrations WHERE version = 1");
+        }
+    }
+
+    // bulk loads users, their default folders and emails spread evenly across the folders
+    private static void populate(int emails) throws SQLException {
+        try (Connection conn = DatabaseConnection.getInstance().getWriteConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement users = conn.prepareStatement(
+                    "INSERT INTO users (email, password, name) VALUES (?, ?, ?)");
+                 PreparedStatement folders = conn.prepareStatement(
+                    "INSERT INTO folders (folder_name, user_email) VALUES (?, ?)")) {
+                for (int u = 0; u < USERS; u++) {
+                    users.setString(1, address(u));
+                    users.setString(2, "password");
+                    users.setString(3, "User " + u);
+                    users.addBatch();
+                    for (String name : FOLDER_NAMES) {
+                        folders.setString(1, name);
+                        folders.setString(2, address(u));
+                        folders.addBatch();
+                    }
+                }
+                users.executeBatch();
+                folders.executeBatch();
+            }
+
+            Random random = new Random(42);
+            int folderCount = USERS * FOLDER_NAMES.length;
+            try (PreparedStatement insert = conn.prepareStatement(
+                    "INSERT INTO emails (sender, recipient, subject, folder_id) VALUES (?, ?, ?, ?)")) {
+                for (int i = 0; i < emails; i++) {
+                    // folder ids start at 1 and are assigned per user in FOLDER_NAMES order
+                    int folderId = 1 + random.nextInt(folderCount);
+                    int recipient = (folderId - 1) / FOLDER_NAMES.length;
+                    insert.setString(1, address(random.nextInt(USERS)));
+                    insert.setString(2, address(recipient));
+                    // bodies live in the content store and play no part in these lookups
+                    insert.setString(3, "Subject " + i);
+                    insert.setInt(4, folderId);
+                    insert.addBatch();
+                    if (i % 10_000 == 9_999) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            conn.commit();
+        }
+    }
+
+    // times the three lookups the indexes target, each against random keys
+    private static void measure(int lookups) throws SQLException {
+        EmailService emailService = EmailService.getInstance();
+        FolderService folderService = FolderService.getInstance();
+        Random random = new Random(7);
+        int folderCount = USERS * FOLDER_NAMES.length;
+
+        long[] byFolder = new long[lookups];
+        long[] byName = new long[lookups];
+        long[] byRecipient = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            int folderId = 1 + random.nextInt(folderCount);
+            long start = System.nanoTime();
+            emailService.getEmailsByFolder(folderId);
+            byFolder[i] = System.nanoTime() - start;
+
+            String user = address(random.nextInt(USERS));
+            start = System.nanoTime();
+            folderService.getFolderByNameAndUser(FOLDER_NAMES[i % FOLDER_NAMES.length], user);
+            byName[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            emailService.getEmailsByRecipient(user);
+            byRecipient[i] = System.nanoTime() - start;
+        }
+
+        System.out.printf("  %-24s %10s %10s %10s%n", "query", "avg(us)", "p50(us)", "p99(us)");
+        report("getEmailsByFolder", byFolder);
+        report("getFolderByNameAndUser", byName);
+        report("getEmailsByRecipient", byRecipient);
+    }
+
+    private static void report(String name, long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+        System.out.printf("  %-24s %10d %10d %10d%n", name,
+            total / sorted.length / 1_000,
+            sorted[sorted.length / 2] / 1_000,
+            sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1_000);
+    }
+
+    private static String address(int user) {
+        return "user" + user + "@bench.local";
+    }
+}
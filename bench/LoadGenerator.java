@@ -0,0 +1,518 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// drives EmailServer through its socket protocol with thousands of simulated client sessions and
+// reports throughput and latency per command plus the server's resource use
+// usage: java LoadGenerator; run from the project root (needs files/db.sql)
+//
+// the server runs in a child jvm on localhost against a temp sqlite file, so client and server costs
+// are measured apart. every session registers, logs in and connects like EmailClient does; a share
+// of them (load.idle) then only listen for new email pushes, the others are picked by an open-loop
+// scheduler that issues load.rate commands per second in the load.mix proportions. sessions connect
+// and the rate climbs linearly over load.rampSec, then the run is measured for load.durationSec.
+// latency is taken from the time a command was scheduled, so queueing in an overloaded run counts.
+// commands and their targets come from load.seed, so runs with the same settings issue the same
+// command sequence
+//
+// load.sessions (1000), load.idle (0.5), load.rate (200), load.rampSec (10), load.durationSec (30),
+// load.mix (send=30,mark=20,move=10,delete=5,fetch=15,page=10,login=10), load.seed (42),
+// load.workers (64), load.serverOpts (extra jvm options for the server, e.g. -Demail.server.io=nio)
+public class LoadGenerator {
+    private static final String HOST = "localhost";
+    private static final int PORT = 12345;
+    private static final int SESSIONS = Integer.getInteger("load.sessions", 1_000);
+    private static final double IDLE_SHARE = Double.parseDouble(System.getProperty("load.idle", "0.5"));
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "200"));
+    private static final int RAMP_SEC = Integer.getInteger("load.rampSec", 10);
+    private static final int DURATION_SEC = Integer.getInteger("load.durationSec", 30);
+    private static final String MIX = System.getProperty("load.mix",
+        "send=30,mark=20,move=10,delete=5,fetch=15,page=10,login=10");
+    private static final long SEED = Long.getLong("load.seed", 42);
+    private static final int WORKERS = Integer.getInteger("load.workers", 64);
+    private static final long REPLY_TIMEOUT_MS = 30_000;
+    // ids a session remembers to act on; enough to spread the mark/move/delete load
+    private static final int KNOWN_IDS = 200;
+    private static final String[] WORDS = {
+        "meeting", "report", "invoice", "project", "deadline", "review", "budget", "update", "schedule",
+        "travel", "contract", "release", "customer", "support", "design", "draft", "summary", "agenda"
+    };
+
+    private enum Command {
+        REGISTER, CONNECT, LOGIN, SEND, MARK, MOVE, DELETE, FETCH, PAGE, PUSH
+    }
+
+    private static final Map<Command, Metrics.Histogram> latencies = new EnumMap<>(Command.class);
+    private static final Map<Command, AtomicLong> errors = new EnumMap<>(Command.class);
+    // measurement starts after the ramp; commands completing before it are not recorded
+    private static volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--server")) {
+            serve();
+            return;
+        }
+        for (Command command : Command.values()) {
+            latencies.put(command, new Metrics.Histogram());
+            errors.put(command, new AtomicLong());
+        }
+
+        Path dir = Files.createTempDirectory("load-generator");
+        // User objects received on login look up their contacts locally, as in EmailClient; keep that
+        // off the project database too
+        System.setProperty("email.db.url", "jdbc:sqlite:" + dir.resolve("client.db"));
+        System.setProperty("email.log.profile", System.getProperty("email.log.profile", "quiet"));
+        Process server = startServer(dir);
+        List<Session> sessions = new CopyOnWriteArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        try {
+            register(workers);
+            BlockingQueue<Session> free = new LinkedBlockingQueue<>();
+            AtomicLong activeCount = new AtomicLong();
+            Random random = new Random(SEED);
+            Command[] mix = parseMix(MIX);
+
+            System.out.printf("Ramping up %d sessions (%.0f%% idle) and %.0f commands/s over %d s%n",
+                SESSIONS, IDLE_SHARE * 100, RATE, RAMP_SEC);
+            long start = System.nanoTime();
+            long rampNanos = TimeUnit.SECONDS.toNanos(RAMP_SEC);
+            Thread connector = new Thread(() -> connectAll(start, rampNanos, sessions, free, activeCount), "connector");
+            connector.setDaemon(true);
+            connector.start();
+            long end = start + rampNanos + TimeUnit.SECONDS.toNanos(DURATION_SEC);
+            long cpuAtStart = -1;
+            long sent = 0;
+            long skipped = 0;
+            double credit = 0;
+            long last = start;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (!measuring && now - start >= rampNanos) {
+                    measuring = true;
+                    cpuAtStart = cpuNanos(server);
+                    System.out.printf("Measuring for %d s with %d sessions connected%n", DURATION_SEC, sessions.size());
+                }
+
+                // schedule the commands due since the last tick at the current point of the rate ramp
+                double rate = RATE * Math.min(1.0, (now - start) / (double) Math.max(1, rampNanos));
+                credit += rate * (now - last) / 1e9;
+                last = now;
+                for (; credit >= 1; credit--) {
+                    Command command = mix[random.nextInt(mix.length)];
+                    long seed = random.nextLong();
+                    if (activeCount.get() == 0) {
+                        skipped++;
+                        continue;
+                    }
+                    long scheduled = now;
+                    workers.execute(() -> execute(free, command, seed, scheduled, sessions));
+                    sent++;
+                }
+                Thread.sleep(1);
+            }
+            long cpuAtEnd = cpuNanos(server);
+
+            // let queued commands finish before reading the server counters
+            measuring = false;
+            workers.shutdown();
+            workers.awaitTermination(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            report(sent, skipped, sessions.size(), cpuAtStart, cpuAtEnd, server, sessions);
+        } finally {
+            workers.shutdownNow();
+            for (Session session : sessions) {
+                session.close();
+            }
+            server.getOutputStream().close();
+            server.waitFor(10, TimeUnit.SECONDS);
+            server.destroy();
+            System.exit(0);
+        }
+    }
+
+    // runs the server until the parent closes our stdin
+    private static void serve() throws IOException {
+        EmailServer server = EmailServer.getInstance();
+        server.start();
+        System.out.println("READY");
+        System.out.flush();
+        while (System.in.read() >= 0) {
+            // wait for the parent
+        }
+        server.stop();
+        System.exit(0);
+    }
+
+    // starts the server jvm with its database and audit log in the temp directory
+    private static Process startServer(Path dir) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-Demail.db.url=jdbc:sqlite:" + dir.resolve("load.db"));
+        command.add("-Demail.audit.file=" + dir.resolve("audit.csv"));
+        command.add("-Demail.metrics.file=" + dir.resolve("metrics.csv"));
+        command.add("-Demail.log.profile=quiet");
+        String serverOpts = System.getProperty("load.serverOpts", "").trim();
+        if (!serverOpts.isEmpty()) {
+            command.addAll(Arrays.asList(serverOpts.split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadGenerator.class.getName());
+        command.add("--server");
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null && !line.equals("READY")) {
+            System.out.println("server: " + line);
+        }
+        if (line == null) {
+            throw new IOException("Server exited before it was ready");
+        }
+        // keep draining so a chatty server never blocks on a full pipe
+        Thread drain = new Thread(() -> {
+            try {
+                String next;
+                while ((next = reader.readLine()) != null) {
+                    System.out.println("server: " + next);
+                }
+            } catch (IOException e) {
+                // server gone
+            }
+        }, "server-output");
+        drain.setDaemon(true);
+        drain.start();
+        return process;
+    }
+
+    // registers every simulated user through the protocol, a few connections at a time
+    private static void register(ExecutorService workers) throws Exception {
+        long start = System.nanoTime();
+        int connections = Math.min(8, SESSIONS);
+        List<Future<?>> done = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            int first = c;
+            done.add(workers.submit(() -> {
+                Session session = new Session(-1);
+                try {
+                    session.open();
+                    for (int i = first; i < SESSIONS; i += connections) {
+                        session.call(Command.REGISTER, "REGISTER:User " + i + ":" + address(i) + ":password");
+                    }
+                } finally {
+                    session.close();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+        System.out.printf("Registered %d users in %d ms%n", SESSIONS, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // connects the sessions evenly over the ramp; the first load.idle share only listens for pushes
+    private static void connectAll(long start, long rampNanos, List<Session> sessions, BlockingQueue<Session> free,
+                                   AtomicLong activeCount) {
+        for (int i = 0; i < SESSIONS; i++) {
+            long due = start + rampNanos * i / SESSIONS;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Session session = connect(i);
+            if (session == null) {
+                continue;
+            }
+            sessions.add(session);
+            if (i >= SESSIONS * IDLE_SHARE) {
+                activeCount.incrementAndGet();
+                free.add(session);
+            }
+        }
+    }
+
+    // opens a session, logs in and connects to the mailbox the way EmailClient does
+    private static Session connect(int index) {
+        Session session = new Session(index);
+        try {
+            session.open();
+            String login = session.call(Command.LOGIN, "LOGIN:" + session.user + ":password");
+            // open the mailbox on the login connection with the session token, as EmailClient does
+            session.call(Command.CONNECT, "SESSION:" + login.substring("LOGIN_SUCCESS:".length()));
+            return session;
+        } catch (IOException e) {
+            session.close();
+            return null;
+        }
+    }
+
+    // runs one scheduled command on the next free active session
+    private static void execute(BlockingQueue<Session> free, Command command, long seed, long scheduled,
+                                List<Session> sessions) {
+        Session session;
+        try {
+            session = free.take();
+        } catch (InterruptedException e) {
+            return;
+        }
+        Random random = new Random(seed);
+        try {
+            Integer id = session.anyId(random);
+            String user = session.user;
+            // a session that holds no email yet sends one instead of marking, moving, deleting or fetching
+            switch (id == null && command != Command.LOGIN && command != Command.PAGE ? Command.SEND : command) {
+                case LOGIN:
+                    session.call(command, "LOGIN:" + user + ":password", scheduled);
+                    break;
+                case SEND:
+                    int recipient = random.nextInt(Math.max(1, sessions.size()));
+                    session.send(address(recipient), random, scheduled);
+                    break;
+                case MARK:
+                    session.call(command, (random.nextBoolean() ? "MARK_READ:" : "MARK_UNREAD:") + user + ":" + id,
+                        scheduled);
+                    break;
+                case MOVE:
+                    session.call(command, "MOVE_EMAIL:" + user + ":" + id + ":" + (random.nextBoolean() ? "spam" : "inbox"),
+                        scheduled);
+                    break;
+                case DELETE:
+                    session.forget(id);
+                    session.call(command, "DELETE_EMAIL:" + user + ":" + id, scheduled);
+                    break;
+                case FETCH:
+                    session.call(command, "FETCH_EMAIL:" + user + ":" + id, scheduled);
+                    break;
+                case PAGE:
+                    session.call(command, "FETCH_PAGE:" + user + ":inbox:0:50", scheduled);
+                    break;
+                default:
+                    break;
+            }
+            free.add(session);
+        } catch (IOException e) {
+            // a broken session leaves the pool; the error was counted by call()
+            session.close();
+        }
+    }
+
+    // expands send=30,mark=20,... into a table that a uniform pick samples in those proportions
+    private static Command[] parseMix(String mix) {
+        List<Command> table = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            Command command = Command.valueOf(pair[0].trim().toUpperCase());
+            for (int i = Integer.parseInt(pair[1].trim()); i > 0; i--) {
+                table.add(command);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("Empty load.mix");
+        }
+        return table.toArray(new Command[0]);
+    }
+
+    private static String address(int index) {
+        return "load" + index + "@example.com";
+    }
+
+    private static void record(Command command, long scheduled) {
+        if (measuring || command == Command.REGISTER) {
+            latencies.get(command).recordSince(scheduled);
+        }
+    }
+
+    // cpu time the server process has used so far, or -1 if the os doesn't report it
+    private static long cpuNanos(Process process) {
+        return process.info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+    }
+
+    private static void report(long sent, long skipped, int sessions, long cpuAtStart, long cpuAtEnd, Process server,
+                               List<Session> all) {
+        System.out.println();
+        System.out.printf("Scheduled %d commands over %d s (%d skipped with no active session), %d sessions%n",
+            sent, RAMP_SEC + DURATION_SEC, skipped, sessions);
+        System.out.printf("%-9s %9s %9s %7s %9s %9s %9s %9s %9s%n",
+            "command", "count", "ops/s", "errors", "mean(ms)", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        long total = 0;
+        for (Command command : Command.values()) {
+            Metrics.Histogram histogram = latencies.get(command);
+            long count = histogram.getCount();
+            if (count == 0 && errors.get(command).get() == 0) {
+                continue;
+            }
+            if (command != Command.PUSH && command != Command.REGISTER) {
+                total += count;
+            }
+            System.out.printf("%-9s %9d %9.1f %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                command.name(), count, command == Command.REGISTER ? Double.NaN : count / (double) DURATION_SEC,
+                errors.get(command).get(), histogram.getMean() / 1e6, histogram.percentile(0.5) / 1e6,
+                histogram.percentile(0.99) / 1e6, histogram.percentile(0.999) / 1e6, histogram.getMax() / 1e6);
+        }
+        System.out.printf("Throughput %.1f commands/s (PUSH is delivery to a connected recipient, "
+            + "REGISTER covers the setup phase)%n", total / (double) DURATION_SEC);
+
+        System.out.println();
+        System.out.println("Server resources:");
+        if (cpuAtStart >= 0 && cpuAtEnd >= 0) {
+            System.out.printf("cpu %.1f%% of one core during the measured window%n",
+                (cpuAtEnd - cpuAtStart) / (DURATION_SEC * 1e9) * 100);
+        }
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(server.pid()), "status"))) {
+                if (line.startsWith("VmRSS:") || line.startsWith("VmHWM:") || line.startsWith("Threads:")) {
+                    System.out.println(line.replaceAll("\\s+", " "));
+                }
+            }
+        } catch (IOException e) {
+            // not on linux
+        }
+        for (Session session : all) {
+            try {
+                String stats = session.call(null, "STATS");
+                System.out.print(stats.substring(stats.indexOf(':') + 1));
+                break;
+            } catch (IOException e) {
+                // try the next session
+            }
+        }
+    }
+
+    // one simulated client connection; a reader thread takes pushes off the socket and hands every
+    // other reply to the command waiting for it
+    private static final class Session {
+        final String user;
+        private Socket socket;
+        private MessageChannel channel;
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        private final List<Integer> ids = new ArrayList<>();
+        private final Set<Integer> known = new HashSet<>();
+        private Thread reader;
+
+        Session(int index) {
+            this.user = index >= 0 ? address(index) : null;
+        }
+
+        void open() throws IOException {
+            socket = new Socket(HOST, PORT);
+            channel = MessageChannel.connect(socket.getInputStream(), socket.getOutputStream());
+            // thousands of these run at once, so keep their stacks small
+            reader = new Thread(null, this::read, "session-" + user, 128 * 1024);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // headers from CONNECT, FETCH_PAGE and FETCH_EMAIL are remembered as ids to act on; a NEW_EMAIL
+        // marker is followed by the pushed email, whose subject carries the time it was sent
+        private void read() {
+            boolean push = false;
+            try {
+                while (true) {
+                    Object message = channel.readMessage();
+                    if (message instanceof Email) {
+                        Email email = (Email) message;
+                        remember(email.getId());
+                        if (push) {
+                            push = false;
+                            String subject = email.getSubject();
+                            if (subject != null && subject.startsWith("load ")) {
+                                record(Command.PUSH, Long.parseLong(subject.substring(5, subject.indexOf(' ', 5))));
+                            }
+                        }
+                    } else if ("NEW_EMAIL".equals(message)) {
+                        push = true;
+                    } else if (message instanceof String) {
+                        replies.add((String) message);
+                    }
+                }
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                replies.add("CLOSED");
+            }
+        }
+
+        synchronized void remember(int id) {
+            if (id > 0 && ids.size() < KNOWN_IDS && known.add(id)) {
+                ids.add(id);
+            }
+        }
+
+        synchronized void forget(int id) {
+            if (known.remove(id)) {
+                ids.remove(Integer.valueOf(id));
+            }
+        }
+
+        synchronized Integer anyId(Random random) {
+            return ids.isEmpty() ? null : ids.get(random.nextInt(ids.size()));
+        }
+
+        String call(Command command, String request) throws IOException {
+            return call(command, request, System.nanoTime());
+        }
+
+        // sends one request and waits for its status reply; failures count as errors for the command
+        String call(Command command, String request, long scheduled) throws IOException {
+            channel.writeMessage(request);
+            channel.flush();
+            return await(command, scheduled);
+        }
+
+        void send(String to, Random random, long scheduled) throws IOException {
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < 40; i++) {
+                body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            Email email = new Email(user, to, "load " + System.nanoTime() + " " + WORDS[random.nextInt(WORDS.length)],
+                body.toString());
+            channel.writeMessage("SEND_EMAIL:" + user);
+            channel.writeMessage(email);
+            channel.flush();
+            await(Command.SEND, scheduled);
+        }
+
+        private String await(Command command, long scheduled) throws IOException {
+            String reply;
+            try {
+                reply = replies.poll(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (reply == null || reply.equals("CLOSED")) {
+                if (command != null) {
+                    errors.get(command).incrementAndGet();
+                }
+                throw new IOException(reply == null ? "Timed out waiting for a reply" : "Connection closed");
+            }
+            if (command != null) {
+                if (reply.contains("_FAILED")) {
+                    errors.get(command).incrementAndGet();
+                } else {
+                    record(command, scheduled);
+                }
+            }
+            return reply;
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// measures SEARCH latency on a large mailbox: one user holds most of the store, the rest is spread
+// over other users so the per-user filter has something to skip
+// usage: java SearchBenchmark [emails in the searched mailbox] [searches]; run from the project root
+public class SearchBenchmark {
+    private static final int USERS = 100;
+    private static final int VOCABULARY = 20_000;
+    private static final int WORDS_PER_BODY = 60;
+    private static final int PAGE_SIZE = 50;
+
+    public static void main(String[] args) throws Exception {
+        int emails = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int searches = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        // point the pool at a throwaway database before DatabaseConnection is loaded
+        File dbFile = File.createTempFile("search-benchmark", ".db");
+        dbFile.deleteOnExit();
+        new File(dbFile.getPath() + "-wal").deleteOnExit();
+        new File(dbFile.getPath() + "-shm").deleteOnExit();
+        System.setProperty("email.db.url", "jdbc:sqlite:" + dbFile.getPath());
+
+        try {
+            DatabaseInit.initDB();
+            long start = System.nanoTime();
+            populate(emails);
+            System.out.printf("Loaded and indexed %d emails (%d in the searched mailbox) in %d ms%n",
+                emails * 2, emails, (System.nanoTime() - start) / 1_000_000);
+
+            measure(searches);
+        } finally {
+            DatabaseConnection.getInstance().closeConnection();
+            System.exit(0);
+        }
+    }
+
+    // inserts through the same tables the write pipeline uses, so the triggers build the index
+    private static void populate(int emails) throws SQLException {
+        try (Connection conn = DatabaseConnection.getInstance().getWriteConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement users = conn.prepareStatement(
+                    "INSERT INTO users (email, password, name) VALUES (?, ?, ?)");
+                 PreparedStatement folders = conn.prepareStatement(
+                    "INSERT INTO folders (folder_name, user_email) VALUES (?, ?)")) {
+                for (int u = 0; u < USERS; u++) {
+                    users.setString(1, address(u));
+                    users.setString(2, "password");
+                    users.setString(3, "User " + u);
+                    users.addBatch();
+                    folders.setString(1, "inbox");
+                    folders.setString(2, address(u));
+                    folders.addBatch();
+                }
+                users.executeBatch();
+                folders.executeBatch();
+            }
+
+            Random random = new Random(42);
+            try (PreparedStatement content = conn.prepareStatement(
+                    "INSERT OR IGNORE INTO body_contents (hash, content) VALUES (?, ?)");
+                 PreparedStatement body = conn.prepareStatement(
+                    "INSERT INTO message_bodies (to_list, cc_list, content_hash) VALUES (?, '', ?)",
+                    PreparedStatement.RETURN_GENERATED_KEYS);
+                 PreparedStatement email = conn.prepareStatement(
+                    "INSERT INTO emails (sender, recipient, subject, folder_id, body_id) VALUES (?, ?, ?, ?, ?)")) {
+                // half the store belongs to user 0, the other half to everyone else
+                for (int i = 0; i < emails * 2; i++) {
+                    int recipient = i % 2 == 0 ? 0 : 1 + random.nextInt(USERS - 1);
+                    String text = words(random, WORDS_PER_BODY);
+                    String hash = EmailService.contentHash(text);
+                    content.setString(1, hash);
+                    content.setString(2, text);
+                    content.executeUpdate();
+
+                    body.setString(1, address(recipient));
+                    body.setString(2, hash);
+                    body.executeUpdate();
+                    int bodyId;
+                    try (var keys = body.getGeneratedKeys()) {
+                        keys.next();
+                        bodyId = keys.getInt(1);
+                    }
+
+                    email.setString(1, address(random.nextInt(USERS)));
+                    email.setString(2, address(recipient));
+                    email.setString(3, words(random, 6));
+                    // folder ids follow user order, one inbox each
+                    email.setInt(4, recipient + 1);
+                    email.setInt(5, bodyId);
+                    email.executeUpdate();
+                }
+            }
+            conn.commit();
+        }
+    }
+
+    // first-page latency for rare, common and two-word queries in the large mailbox, and for common
+    // words in the mailboxes of the other users
+    private static void measure(int searches) throws SQLException {
+        EmailService emailService = EmailService.getInstance();
+        String user = address(0);
+        Random random = new Random(7);
+
+        long[] rare = new long[searches];
+        long[] common = new long[searches];
+        long[] twoWords = new long[searches];
+        long[] headers = new long[searches];
+        long[] smallMailbox = new long[searches];
+        long hits = 0;
+        for (int i = 0; i < searches; i++) {
+            // words are drawn with a skewed distribution, so high indexes are rare and low ones common
+            String rareWord = word(VOCABULARY - 1 - random.nextInt(VOCABULARY / 4));
+            long start = System.nanoTime();
+            hits += emailService.searchEmailIds(user, rareWord, 0, 0, PAGE_SIZE).size();
+            rare[i] = System.nanoTime() - start;
+
+            String commonWord = word(random.nextInt(20));
+            start = System.nanoTime();
+            List<Integer> ids = emailService.searchEmailIds(user, commonWord, 0, 0, PAGE_SIZE);
+            common[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            emailService.getEmailHeaders(ids);
+            headers[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            emailService.searchEmailIds(user, word(random.nextInt(200)) + " " + word(random.nextInt(2_000)),
+                0, 0, PAGE_SIZE);
+            twoWords[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            emailService.searchEmailIds(address(1 + random.nextInt(USERS - 1)), commonWord, 0, 0, PAGE_SIZE);
+            smallMailbox[i] = System.nanoTime() - start;
+        }
+
+        System.out.println();
+        System.out.printf("  %-24s %10s %10s %10s%n", "query", "avg(us)", "p50(us)", "p99(us)");
+        report("rare word", rare);
+        report("common word", common);
+        report("two words", twoWords);
+        report("headers for a page", headers);
+        report("common, small mailbox", smallMailbox);
+        System.out.printf("%n  average rare-word hits per page: %.1f%n", hits / (double) searches);
+    }
+
+    private static void report(String name, long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+        System.out.printf("  %-24s %10d %10d %10d%n", name,
+            total / sorted.length / 1_000,
+            sorted[sorted.length / 2] / 1_000,
+            sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1_000);
+    }
+
+    // text of roughly zipf-distributed words, so a few terms are in most emails and most are rare
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            double skew = Math.pow(random.nextDouble(), 3);
+            text.append(i > 0 ? " " : "").append(word((int) (skew * VOCABULARY)));
+        }
+        return text.toString();
+    }
+
+    private static String word(int index) {
+        return "w" + index + "q";
+    }
+
+    private static String address(int user) {
+        return "user" + user + "@bench.local";
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// compares memory per connection and peak concurrent sessions across EmailServer io modes
+// usage: java ServerModeComparison [connections] [mode,mode,...]
+// each mode runs in its own jvm because EmailServer is a singleton; run from the project root
+public class ServerModeComparison {
+    private static final int PORT = 12345;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--probe")) {
+            probe(Integer.parseInt(args[1]));
+            return;
+        }
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String[] modes = (args.length > 1 ? args[1] : "threaded,virtual,nio").split(",");
+
+        System.out.printf("%-10s %8s %8s %10s %14s %14s%n",
+            "mode", "conns", "peak", "threads", "heap/conn(B)", "rss/conn(B)");
+        for (String mode : modes) {
+            String result = runChild(mode.trim(), connections);
+            System.out.println(result != null ? result : String.format("%-10s failed", mode));
+        }
+    }
+
+    // launches a probe jvm for one io mode and returns its result line
+    private static String runChild(String mode, int connections) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-Demail.server.io=" + mode);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ServerModeComparison.class.getName());
+        command.add("--probe");
+        command.add(String.valueOf(connections));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    result = line.substring("RESULT ".length());
+                }
+            }
+        }
+        process.waitFor();
+        return result;
+    }
+
+    // starts the server in this jvm, opens idle connections and reports the resource delta
+    private static void probe(int connections) throws Exception {
+        EmailServer server = EmailServer.getInstance();
+        server.start();
+        Thread.sleep(500);
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+
+        List<Socket> sockets = new ArrayList<>();
+        List<ObjectOutputStream> streams = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", PORT);
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                out.flush();
+                // wait for the server stream header so the handler is really running
+                new ObjectInputStream(socket.getInputStream());
+                sockets.add(socket);
+                streams.add(out);
+            }
+        } catch (IOException e) {
+            System.out.println("Stopped opening connections at " + sockets.size() + ": " + e.getMessage());
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (server.getActiveSessions() < sockets.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(1000);
+
+        int open = Math.max(1, sockets.size());
+        long heapPerConn = (usedHeap() - heapBefore) / open;
+        long rssPerConn = rssBefore < 0 ? -1 : (residentSetSize() - rssBefore) / open;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        System.out.printf("RESULT %-10s %8d %8d %10d %14d %14d%n",
+            server.getIoMode().name().toLowerCase(), sockets.size(), server.getPeakSessions(),
+            threads, heapPerConn, rssPerConn);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+        System.exit(0);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // resident set size in bytes from /proc, or -1 where it is not available
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not on linux
+        }
+        return -1;
+    }
+}
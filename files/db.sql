@@ -1,3 +1,7 @@
+-- tables in their current shape, while indexes, triggers, views and the search index are created by
+-- the numbered migrations in DatabaseInit, which also bring databases made by older versions up to date.
+-- dropping the inline body columns of an older database needs SQLite 3.35 or newer
+
 CREATE TABLE IF NOT EXISTS users (
     email VARCHAR(255) PRIMARY KEY,
     password VARCHAR(255) NOT NULL,
@@ -12,20 +16,52 @@ CREATE TABLE IF NOT EXISTS folders (
     FOREIGN KEY (user_email) REFERENCES users(email)
 );
 
+-- every body text once, keyed by its sha-256, with ref_count = message_bodies rows using it
+CREATE TABLE IF NOT EXISTS body_contents (
+    hash TEXT PRIMARY KEY,
+    content TEXT NOT NULL,
+    ref_count INTEGER NOT NULL DEFAULT 0
+);
+
+-- one row per sent message, shared by its recipients, with ref_count = emails rows using it
+CREATE TABLE IF NOT EXISTS message_bodies (
+    id INTEGER PRIMARY KEY AUTOINCREMENT,
+    to_list TEXT NOT NULL,
+    cc_list TEXT NOT NULL DEFAULT '',
+    content_hash TEXT REFERENCES body_contents(hash),
+    ref_count INTEGER NOT NULL DEFAULT 0
+);
+
+-- one row per recipient's mailbox copy, whose body lives in message_bodies and body_contents
 CREATE TABLE IF NOT EXISTS emails (
     id INTEGER PRIMARY KEY AUTOINCREMENT,
     sender VARCHAR(255) NOT NULL,
     recipient VARCHAR(255) NOT NULL,
     subject VARCHAR(255) NOT NULL,
-    content TEXT NOT NULL,
     timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     is_read INTEGER DEFAULT 0,
     folder_id INTEGER,
+    body_id INTEGER REFERENCES message_bodies(id),
     FOREIGN KEY (sender) REFERENCES users(email),
     FOREIGN KEY (recipient) REFERENCES users(email),
     FOREIGN KEY (folder_id) REFERENCES folders(id)
 );
 
+-- the last modification sequence handed out in each user's mailbox
+CREATE TABLE IF NOT EXISTS mailbox_state (
+    user_email TEXT PRIMARY KEY,
+    modseq INTEGER NOT NULL DEFAULT 0
+);
+
+-- the latest change of every mailbox row, where deleted rows stay behind as tombstones
+CREATE TABLE IF NOT EXISTS mailbox_changes (
+    user_email TEXT NOT NULL,
+    email_id INTEGER NOT NULL,
+    modseq INTEGER NOT NULL,
+    deleted INTEGER NOT NULL DEFAULT 0,
+    PRIMARY KEY (user_email, email_id)
+) WITHOUT ROWID;
+
 CREATE TABLE IF NOT EXISTS contacts (
     id INTEGER PRIMARY KEY AUTOINCREMENT,
     name VARCHAR(255) NOT NULL,
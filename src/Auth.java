@@ -2,6 +2,8 @@ import java.io.*;
 import java.net.*;
 
 // singleton class handling user authentication and server communication
+// a successful login hands this connection to the user's EmailClient, so the mailbox shares it; the
+// next login or registration opens a new one
 public class Auth {
     // singleton instance
     private static Auth instance;
@@ -9,27 +11,52 @@ public class Auth {
     private User currentUser;
     // socket connection to authentication server
     private Socket serverSocket;
-    // output stream for sending requests to server
-    private ObjectOutputStream out;
-    // input stream for receiving responses from server
-    private ObjectInputStream in;
+    // message channel for sending requests and receiving responses
+    private MessageChannel channel;
 
     // private constructor for singleton pattern
     private Auth() {
         this.currentUser = null;
-        connectToServer();
     }
 
-    // establishes connection to authentication server
-    private void connectToServer() {
+    // establishes connection to authentication server unless one is already open
+    private void connectToServer() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        Socket socket = new Socket("localhost", 12345);
+        try {
+            channel = MessageChannel.connect(socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        serverSocket = socket;
+    }
+
+    // reads the status reply to a request; a new-email push that was queued ahead of a login reply is
+    // skipped, the mailbox lists that email once it is opened
+    private String readStatus() throws IOException, ClassNotFoundException {
+        while (true) {
+            Object message = channel.readMessage();
+            if ("NEW_EMAIL".equals(message)) {
+                channel.readMessage();
+            } else if (message instanceof String) {
+                return (String) message;
+            }
+        }
+    }
+
+    // forgets the current connection after it failed, so the next request opens a new one
+    private void dropConnection() {
         try {
-            serverSocket = new Socket("localhost", 12345);
-            out = new ObjectOutputStream(serverSocket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(serverSocket.getInputStream());
+            if (channel != null) channel.close();
+            if (serverSocket != null) serverSocket.close();
         } catch (IOException e) {
-            System.out.println("Failed to connect to server: " + e.getMessage());
+            // already closed
         }
+        channel = null;
+        serverSocket = null;
     }
 
     // returns singleton instance, creating it if necessary
@@ -53,7 +80,7 @@ public class Auth {
     // logs out current user and cleans up resources
     public void logout() {
         if (currentUser != null) {
-            currentUser.getEmailClient().disconnect();
+            currentUser.getEmailClient().logout();
             currentUser = null;
         }
     }
@@ -61,16 +88,22 @@ public class Auth {
     // authenticates user with email and password
     public boolean login(String email, String password) {
         try {
-            out.writeObject("LOGIN:" + email + ":" + password);
-            out.flush();
+            connectToServer();
+            channel.writeMessage("LOGIN:" + email + ":" + password);
+            channel.flush();
 
-            String response = (String) in.readObject();
-            if (response.equals("LOGIN_SUCCESS")) {
-                currentUser = (User) in.readObject();
+            String response = readStatus();
+            if (response.startsWith("LOGIN_SUCCESS:")) {
+                String token = response.substring("LOGIN_SUCCESS:".length());
+                currentUser = (User) channel.readMessage();
                 currentUser.updateLastLogin();
-                
-                // connect to email server after successful authentication
-                if (currentUser.getEmailClient().connect(email)) {
+
+                // the mailbox takes over this connection; it is closed when the user logs out
+                Socket socket = serverSocket;
+                MessageChannel session = channel;
+                serverSocket = null;
+                channel = null;
+                if (currentUser.getEmailClient().attach(socket, session, email, token)) {
                     System.out.println("Login successful!");
                     return true;
                 } else {
@@ -84,6 +117,7 @@ public class Auth {
             }
         } catch (Exception e) {
             System.out.println("Error during login: " + e.getMessage());
+            dropConnection();
             return false;
         }
     }
@@ -91,10 +125,11 @@ public class Auth {
     // registers a new user with the system
     public boolean register(String name, String email, String password) {
         try {
-            out.writeObject("REGISTER:" + name + ":" + email + ":" + password);
-            out.flush();
+            connectToServer();
+            channel.writeMessage("REGISTER:" + name + ":" + email + ":" + password);
+            channel.flush();
             
-            String response = (String) in.readObject();
+            String response = readStatus();
             if (response.equals("REGISTER_SUCCESS")) {
                 System.out.println("Registration successful!");
                 return true;
@@ -104,19 +139,14 @@ public class Auth {
             }
         } catch (Exception e) {
             System.out.println("Error during registration: " + e.getMessage());
+            dropConnection();
             return false;
         }
     }
 
     // closes all resources when shutting down
     public void close() {
-        try {
-            logout();
-            if (out != null) out.close();
-            if (in != null) in.close();
-            if (serverSocket != null) serverSocket.close();
-        } catch (IOException e) {
-            System.out.println("Error closing resources: " + e.getMessage());
-        }
+        logout();
+        dropConnection();
     }
 }
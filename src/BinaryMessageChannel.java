@@ -0,0 +1,92 @@
+import java.io.*;
+
+// message channel using length-prefixed binary frames with explicit opcodes
+public class BinaryMessageChannel extends MessageChannel {
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // negotiated protocol version
+    private final int version;
+    // reusable scratch buffer for encoding one frame payload
+    private final ByteArrayOutputStream frameBuffer;
+    private final DataOutputStream frameOut;
+
+    public BinaryMessageChannel(InputStream in, OutputStream out, int version) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.version = version;
+        this.frameBuffer = new ByteArrayOutputStream(256);
+        this.frameOut = new DataOutputStream(frameBuffer);
+    }
+
+    @Override
+    public Object readMessage() throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > WireProtocol.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(frame, 1, length - 1));
+        byte opcode = frame[0];
+        switch (opcode) {
+            case WireProtocol.OP_EMAIL:
+                return WireProtocol.decodeEmail(payload, version);
+            case WireProtocol.OP_USER:
+                return WireProtocol.decodeUser(payload);
+            default:
+                return WireProtocol.decodeText(opcode, payload);
+        }
+    }
+
+    @Override
+    public synchronized void writeMessage(Object message) throws IOException {
+        frameBuffer.reset();
+        byte opcode;
+        if (message instanceof String) {
+            opcode = WireProtocol.encodeText((String) message, frameOut);
+        } else if (message instanceof Email) {
+            WireProtocol.encodeEmail((Email) message, frameOut, version);
+            opcode = WireProtocol.OP_EMAIL;
+        } else if (message instanceof User) {
+            WireProtocol.encodeUser((User) message, frameOut);
+            opcode = WireProtocol.OP_USER;
+        } else {
+            throw new NotSerializableException("No binary encoding for " + message.getClass().getName());
+        }
+        frameOut.flush();
+
+        out.writeInt(frameBuffer.size() + 1);
+        out.writeByte(opcode);
+        frameBuffer.writeTo(out);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public String getProtocolName() {
+        return "binary/v" + version;
+    }
+
+    @Override
+    public boolean supportsRequestTags() {
+        return version >= WireProtocol.TAGS_VERSION;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,26 +1,75 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+// bounded pool of sqlite connections; callers close the connection they get to hand it back
+// sqlite runs in wal mode, so readers proceed in parallel while a single writer holds the write lock
 public class DatabaseConnection {
     private static DatabaseConnection instance;
-    private Connection connection;
-    private static final String DB_URL = "jdbc:sqlite:database.db";
+    private static final String DB_URL = System.getProperty("email.db.url", "jdbc:sqlite:database.db");
+    // pool sizing and timing, overridable with system properties
+    private static final int MAX_POOL_SIZE = Integer.getInteger("email.db.pool.size", 8);
+    private static final long CHECKOUT_TIMEOUT_MS = Long.getLong("email.db.pool.timeoutMs", 5_000);
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("email.db.pool.idleMs", 60_000);
+    private static final int BUSY_TIMEOUT_MS = Integer.getInteger("email.db.busyTimeoutMs", 5_000);
+    // connections idle longer than this are validated before being handed out
+    private static final long VALIDATE_AFTER_MS = 5_000;
+    // prepared statements kept open per physical connection
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("email.db.statementCache", 64);
+
+    // idle physical connections, most recently used first
+    private final Deque<PooledConnection> idle;
+    // limits how many connections can be checked out at once
+    private final Semaphore permits;
+    // sqlite allows one writer at a time; serializing here avoids SQLITE_BUSY retries
+    private final ReentrantLock writeLock;
+    private final ScheduledExecutorService evictor;
+    private volatile boolean shutdown;
+
+    // pool metrics
+    private final AtomicInteger activeCount;
+    private final AtomicInteger openCount;
+    private final AtomicLong checkouts;
+    private final AtomicLong checkoutTimeouts;
+    private final AtomicLong totalWaitNanos;
+    private final AtomicLong maxWaitNanos;
+    private final AtomicLong totalCheckoutNanos;
+    private final AtomicLong evictions;
 
     private DatabaseConnection() {
-        initializeConnection();
-    }
+        this.idle = new ArrayDeque<>();
+        this.permits = new Semaphore(MAX_POOL_SIZE, true);
+        this.writeLock = new ReentrantLock(true);
+        this.activeCount = new AtomicInteger();
+        this.openCount = new AtomicInteger();
+        this.checkouts = new AtomicLong();
+        this.checkoutTimeouts = new AtomicLong();
+        this.totalWaitNanos = new AtomicLong();
+        this.maxWaitNanos = new AtomicLong();
+        this.totalCheckoutNanos = new AtomicLong();
+        this.evictions = new AtomicLong();
 
-    private void initializeConnection() {
-        try {
-            connection = DriverManager.getConnection(DB_URL);
-            // Enable foreign keys
-            connection.createStatement().execute("PRAGMA foreign_keys = ON");
-            System.out.println("Database connection established.");
-        } catch (SQLException e) {
-            System.err.println("Failed to establish database connection.");
-            e.printStackTrace();
-        }
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "db-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1_000, IDLE_TIMEOUT_MS / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        Log.info("Database connection pool ready (max {} connections)", MAX_POOL_SIZE);
     }
 
     public static synchronized DatabaseConnection getInstance() {
@@ -30,21 +79,241 @@ public class DatabaseConnection {
         return instance;
     }
 
-    public synchronized Connection getConnection() throws SQLException {
-        if (connection == null || connection.isClosed()) {
-            initializeConnection();
+    // borrows a connection for reading; close it to return it to the pool
+    public Connection getConnection() throws SQLException {
+        return checkout(false);
+    }
+
+    // borrows a connection and takes the write lock until it is closed
+    public Connection getWriteConnection() throws SQLException {
+        return checkout(true);
+    }
+
+    private Connection checkout(boolean forWrite) throws SQLException {
+        if (shutdown) {
+            throw new SQLException("Connection pool is shut down");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(CHECKOUT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                checkoutTimeouts.incrementAndGet();
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+
+        boolean locked = false;
+        try {
+            if (forWrite) {
+                if (!writeLock.tryLock(CHECKOUT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    checkoutTimeouts.incrementAndGet();
+                    throw new SQLException("Timed out waiting for the database write lock");
+                }
+                locked = true;
+            }
+            long waited = System.nanoTime() - start;
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+            PooledConnection pooled = takeIdleOrOpen();
+            activeCount.incrementAndGet();
+            checkouts.incrementAndGet();
+            totalCheckoutNanos.addAndGet(System.nanoTime() - start);
+            return wrap(pooled, locked);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (locked) writeLock.unlock();
+            permits.release();
+            throw new SQLException("Interrupted waiting for the database write lock", e);
+        } catch (SQLException | RuntimeException e) {
+            if (locked) writeLock.unlock();
+            permits.release();
+            throw e;
         }
-        return connection;
     }
 
+    // reuses the most recently returned connection if it is still valid, otherwise opens a new one
+    private PooledConnection takeIdleOrOpen() throws SQLException {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (idle) {
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                return open();
+            }
+            if (System.currentTimeMillis() - pooled.lastUsed < VALIDATE_AFTER_MS || isValid(pooled)) {
+                return pooled;
+            }
+            closePhysical(pooled);
+        }
+    }
+
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.physical.isValid(1);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // opens a physical connection and applies the per-connection pragmas
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(DB_URL);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA foreign_keys = ON");
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MS);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        openCount.incrementAndGet();
+        return new PooledConnection(connection);
+    }
+
+    // returns a connection to the pool once the caller closes its handle
+    private void release(PooledConnection pooled, boolean locked) {
+        try {
+            boolean healthy = !pooled.physical.isClosed();
+            if (healthy && !pooled.physical.getAutoCommit()) {
+                // never hand out a connection with a half-finished transaction
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            if (healthy && !shutdown) {
+                pooled.lastUsed = System.currentTimeMillis();
+                synchronized (idle) {
+                    idle.addFirst(pooled);
+                }
+            } else {
+                closePhysical(pooled);
+            }
+        } catch (SQLException e) {
+            closePhysical(pooled);
+        } finally {
+            activeCount.decrementAndGet();
+            if (locked) writeLock.unlock();
+            permits.release();
+        }
+    }
+
+    // closes connections that have sat idle longer than the idle timeout, keeping one warm
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        synchronized (idle) {
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && idle.size() > 1) {
+                PooledConnection pooled = it.next();
+                if (pooled.lastUsed < cutoff) {
+                    it.remove();
+                    closePhysical(pooled);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void closePhysical(PooledConnection pooled) {
+        try {
+            // cached statements belong to this physical connection and die with it
+            pooled.statements.invalidate();
+            pooled.physical.close();
+        } catch (SQLException e) {
+            Log.warn("Error closing database connection: {}", e.getMessage());
+        } finally {
+            openCount.decrementAndGet();
+        }
+    }
+
+    // hands out a proxy so close() returns the connection instead of closing it
+    private Connection wrap(PooledConnection pooled, boolean locked) {
+        boolean[] returned = {false};
+        return (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[]{Connection.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (!returned[0]) {
+                            returned[0] = true;
+                            release(pooled, locked);
+                        }
+                        return null;
+                    case "isClosed":
+                        return returned[0] || pooled.physical.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Pooled" + pooled.physical;
+                    default:
+                        if (returned[0]) {
+                            throw new SQLException("Connection has already been returned to the pool");
+                        }
+                        // plain and generated-keys statements are served from the per-connection cache
+                        if (method.getName().equals("prepareStatement")) {
+                            if (args.length == 1) {
+                                return pooled.statements.prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+                            }
+                            if (args.length == 2 && args[1] instanceof Integer) {
+                                return pooled.statements.prepare((String) args[0], (Integer) args[1]);
+                            }
+                        }
+                        try {
+                            return method.invoke(pooled.physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            });
+    }
+
+    // snapshot of pool metrics for monitoring
+    public String getPoolStats() {
+        long count = Math.max(1, checkouts.get());
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        return String.format(
+            "active=%d idle=%d open=%d checkouts=%d timeouts=%d evictions=%d "
+                + "avgWaitUs=%d maxWaitUs=%d avgCheckoutUs=%d %s",
+            activeCount.get(), idleCount, openCount.get(), checkouts.get(), checkoutTimeouts.get(),
+            evictions.get(), totalWaitNanos.get() / count / 1_000, maxWaitNanos.get() / 1_000,
+            totalCheckoutNanos.get() / count / 1_000, StatementCache.getStats());
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    // closes every idle connection and refuses further checkouts
     public synchronized void closeConnection() {
-        if (connection != null) {
-            try {
-                connection.close();
-                connection = null;
-            } catch (SQLException e) {
-                System.err.println("Error closing database connection: " + e.getMessage());
+        shutdown = true;
+        evictor.shutdownNow();
+        synchronized (idle) {
+            for (PooledConnection pooled : idle) {
+                closePhysical(pooled);
             }
+            idle.clear();
+        }
+    }
+
+    // a physical connection plus its bookkeeping
+    private static class PooledConnection {
+        final Connection physical;
+        final StatementCache statements;
+        volatile long lastUsed;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new StatementCache(physical, STATEMENT_CACHE_SIZE);
+            this.lastUsed = System.currentTimeMillis();
         }
     }
-}
\ No newline at end of file
+}
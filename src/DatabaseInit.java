@@ -2,37 +2,407 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class DatabaseInit {
     // calc the path to db_structure.sql relative to the src folder
     private static final String DB_STRUCTURE_FILE = "files/db.sql";
 
+    // one schema change applied on top of the base schema in db.sql
+    public interface MigrationStep {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    // a numbered migration; versions are applied once, in ascending order
+    public static final class Migration {
+        final int version;
+        final String description;
+        final MigrationStep step;
+
+        Migration(int version, String description, MigrationStep step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+
+    // ordered schema history; append new entries, never edit or reorder applied ones
+    private static final List<Migration> MIGRATIONS = List.of(
+        new Migration(1, "indexes for folder, recipient and sender lookups", sql(
+            // getEmailsByFolder, ordered by id for paging
+            "CREATE INDEX IF NOT EXISTS idx_emails_folder_id ON emails (folder_id, id)",
+            "CREATE INDEX IF NOT EXISTS idx_emails_recipient ON emails (recipient)",
+            "CREATE INDEX IF NOT EXISTS idx_emails_sender ON emails (sender)",
+            // covers getFolderByNameAndUser and getFoldersByUser: every folders column is in the index
+            "CREATE INDEX IF NOT EXISTS idx_folders_user_name ON folders (user_email, folder_name, id)"
+        )),
+        // db.sql already declares the tables in their current shape, so on a new database migrations 2
+        // and 3 only add what is missing; on an older database they convert the tables in place
+        new Migration(2, "message bodies shared by every recipient of a message", conn -> {
+            sql(
+                // one row per sent message; bcc is deliberately not stored
+                "CREATE TABLE IF NOT EXISTS message_bodies ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "content TEXT NOT NULL, "
+                    + "to_list TEXT NOT NULL, "
+                    + "cc_list TEXT NOT NULL DEFAULT '')"
+            ).apply(conn);
+            // emails rows become per-recipient mailbox entries pointing at the shared body
+            addColumn(conn, "emails", "body_id", "INTEGER REFERENCES message_bodies(id)");
+            if (hasColumn(conn, "emails", "content") && hasColumn(conn, "message_bodies", "content")) {
+                sql(
+                    // full emails as read by the services; rows from before this migration keep their own content
+                    "CREATE VIEW IF NOT EXISTS email_messages AS SELECT "
+                        + "e.id, e.sender, e.recipient, COALESCE(b.to_list, e.recipient) AS to_list, "
+                        + "COALESCE(b.cc_list, '') AS cc_list, e.subject, COALESCE(b.content, e.content) AS content, "
+                        + "e.timestamp, e.is_read, e.folder_id, e.body_id "
+                        + "FROM emails e LEFT JOIN message_bodies b ON b.id = e.body_id"
+                ).apply(conn);
+            }
+        }),
+        new Migration(3, "content-addressed, reference-counted body store", conn -> {
+            boolean inlineBodies = hasColumn(conn, "emails", "content")
+                || hasColumn(conn, "message_bodies", "content");
+            // the inline body columns are dropped below, which sqlite only supports from 3.35
+            if (inlineBodies && !sqliteVersionAtLeast(conn, 3, 35)) {
+                throw new SQLException("Moving bodies into the content store needs SQLite 3.35 or newer, found "
+                    + sqliteVersion(conn));
+            }
+            sql(
+                // each distinct body text once, keyed by its sha-256; ref_count = message_bodies rows using it
+                "CREATE TABLE IF NOT EXISTS body_contents ("
+                    + "hash TEXT PRIMARY KEY, "
+                    + "content TEXT NOT NULL, "
+                    + "ref_count INTEGER NOT NULL DEFAULT 0)"
+            ).apply(conn);
+            addColumn(conn, "message_bodies", "content_hash", "TEXT REFERENCES body_contents(hash)");
+            // number of emails rows (mailbox copies) using the body
+            addColumn(conn, "message_bodies", "ref_count", "INTEGER NOT NULL DEFAULT 0");
+            if (inlineBodies) {
+                backfillContentStore(conn);
+            }
+            sql(
+                "CREATE INDEX IF NOT EXISTS idx_emails_body ON emails (body_id)",
+                "CREATE INDEX IF NOT EXISTS idx_message_bodies_content ON message_bodies (content_hash)",
+                "UPDATE message_bodies SET ref_count = "
+                    + "(SELECT COUNT(*) FROM emails WHERE body_id = message_bodies.id)",
+                // bodies of emails deleted before reference counting existed
+                "DELETE FROM message_bodies WHERE ref_count = 0",
+                "UPDATE body_contents SET ref_count = "
+                    + "(SELECT COUNT(*) FROM message_bodies WHERE content_hash = body_contents.hash)",
+                "DELETE FROM body_contents WHERE ref_count = 0",
+                // bodies now live only in the content store, so listings scan rows without body bytes
+                "DROP VIEW IF EXISTS email_messages"
+            ).apply(conn);
+            dropColumn(conn, "emails", "content");
+            dropColumn(conn, "message_bodies", "content");
+            sql(
+                "CREATE VIEW email_messages AS SELECT "
+                    + "e.id, e.sender, e.recipient, COALESCE(b.to_list, e.recipient) AS to_list, "
+                    + "COALESCE(b.cc_list, '') AS cc_list, e.subject, c.content, "
+                    + "e.timestamp, e.is_read, e.folder_id, e.body_id "
+                    + "FROM emails e LEFT JOIN message_bodies b ON b.id = e.body_id "
+                    + "LEFT JOIN body_contents c ON c.hash = b.content_hash",
+                // reference counts follow every insert and delete, whichever code path runs it
+                "CREATE TRIGGER IF NOT EXISTS emails_body_ref AFTER INSERT ON emails "
+                    + "WHEN NEW.body_id IS NOT NULL BEGIN "
+                    + "UPDATE message_bodies SET ref_count = ref_count + 1 WHERE id = NEW.body_id; END",
+                "CREATE TRIGGER IF NOT EXISTS emails_body_unref AFTER DELETE ON emails "
+                    + "WHEN OLD.body_id IS NOT NULL BEGIN "
+                    + "UPDATE message_bodies SET ref_count = ref_count - 1 WHERE id = OLD.body_id; "
+                    + "DELETE FROM message_bodies WHERE id = OLD.body_id AND ref_count <= 0; END",
+                "CREATE TRIGGER IF NOT EXISTS message_bodies_content_ref AFTER INSERT ON message_bodies "
+                    + "WHEN NEW.content_hash IS NOT NULL BEGIN "
+                    + "UPDATE body_contents SET ref_count = ref_count + 1 WHERE hash = NEW.content_hash; END",
+                "CREATE TRIGGER IF NOT EXISTS message_bodies_content_unref AFTER DELETE ON message_bodies "
+                    + "WHEN OLD.content_hash IS NOT NULL BEGIN "
+                    + "UPDATE body_contents SET ref_count = ref_count - 1 WHERE hash = OLD.content_hash; "
+                    + "DELETE FROM body_contents WHERE hash = OLD.content_hash AND ref_count <= 0; END"
+            ).apply(conn);
+        }),
+        new Migration(4, "full-text search index over mailboxes", conn -> sql(
+            // one document per mailbox row (rowid = emails.id), contentless so no text is stored twice
+            // owner holds a single token derived from the recipient, so every query is scoped to one
+            // user's mailbox by the index itself
+            // deleting rows from a contentless index needs contentless_delete, added in sqlite 3.43; older
+            // libraries get an index that keeps its own copy of the text, which the same triggers maintain
+            "CREATE VIRTUAL TABLE IF NOT EXISTS email_search USING fts5("
+                + "owner, subject, sender, body, "
+                + (sqliteVersionAtLeast(conn, 3, 43) ? "content='', contentless_delete=1, " : "")
+                + "tokenize='unicode61 remove_diacritics 2')",
+            "INSERT INTO email_search (rowid, owner, subject, sender, body) "
+                + "SELECT id, 'u' || hex(recipient), subject, sender, content FROM email_messages",
+            // kept in step with every delivery and delete; moves only change emails.folder_id, which
+            // search reads from the emails row
+            "CREATE TRIGGER IF NOT EXISTS emails_search_insert AFTER INSERT ON emails BEGIN "
+                + "INSERT INTO email_search (rowid, owner, subject, sender, body) "
+                + "VALUES (NEW.id, 'u' || hex(NEW.recipient), NEW.subject, NEW.sender, "
+                + "(SELECT c.content FROM message_bodies b JOIN body_contents c ON c.hash = b.content_hash "
+                + "WHERE b.id = NEW.body_id)); END",
+            "CREATE TRIGGER IF NOT EXISTS emails_search_delete AFTER DELETE ON emails BEGIN "
+                + "DELETE FROM email_search WHERE rowid = OLD.id; END"
+        ).apply(conn)),
+        new Migration(5, "per-user change sequence for incremental mailbox sync", sql(
+            // the last modification sequence handed out in each user's mailbox
+            "CREATE TABLE IF NOT EXISTS mailbox_state ("
+                + "user_email TEXT PRIMARY KEY, "
+                + "modseq INTEGER NOT NULL DEFAULT 0)",
+            // the latest change of every mailbox row, so a client that saw modseq N only needs the rows
+            // above N; deleted rows stay behind as tombstones
+            "CREATE TABLE IF NOT EXISTS mailbox_changes ("
+                + "user_email TEXT NOT NULL, "
+                + "email_id INTEGER NOT NULL, "
+                + "modseq INTEGER NOT NULL, "
+                + "deleted INTEGER NOT NULL DEFAULT 0, "
+                + "PRIMARY KEY (user_email, email_id)) WITHOUT ROWID",
+            "CREATE INDEX IF NOT EXISTS idx_mailbox_changes_modseq ON mailbox_changes (user_email, modseq)",
+            // existing rows count as inserted in id order
+            "INSERT INTO mailbox_changes (user_email, email_id, modseq) "
+                + "SELECT recipient, id, ROW_NUMBER() OVER (PARTITION BY recipient ORDER BY id) FROM emails",
+            "INSERT INTO mailbox_state (user_email, modseq) "
+                + "SELECT user_email, MAX(modseq) FROM mailbox_changes GROUP BY user_email",
+            // every insert, move, read-flag change and delete takes the next sequence of its mailbox,
+            // whichever code path runs it
+            "CREATE TRIGGER IF NOT EXISTS emails_modseq_insert AFTER INSERT ON emails BEGIN "
+                + bumpModseq("NEW", 0) + " END",
+            "CREATE TRIGGER IF NOT EXISTS emails_modseq_update AFTER UPDATE OF folder_id, is_read ON emails "
+                + "WHEN OLD.folder_id IS NOT NEW.folder_id OR OLD.is_read IS NOT NEW.is_read BEGIN "
+                + bumpModseq("NEW", 0) + " END",
+            "CREATE TRIGGER IF NOT EXISTS emails_modseq_delete AFTER DELETE ON emails BEGIN "
+                + bumpModseq("OLD", 1) + " END"
+        )),
+        new Migration(6, "one folder per user and name", sql(
+            // folders created twice by a login racing a delivery: their emails go to the oldest copy
+            "UPDATE emails SET folder_id = (SELECT MIN(k.id) FROM folders f JOIN folders k "
+                + "ON k.user_email = f.user_email AND k.folder_name = f.folder_name WHERE f.id = emails.folder_id) "
+                + "WHERE folder_id IN (SELECT id FROM folders "
+                + "WHERE id NOT IN (SELECT MIN(id) FROM folders GROUP BY user_email, folder_name))",
+            "DELETE FROM folders WHERE id NOT IN (SELECT MIN(id) FROM folders GROUP BY user_email, folder_name)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS idx_folders_unique_name ON folders (user_email, folder_name)"
+        ))
+    );
+
+    // trigger body that advances the row's mailbox sequence and records the row's change under it
+    private static String bumpModseq(String row, int deleted) {
+        return "INSERT INTO mailbox_state (user_email, modseq) VALUES (" + row + ".recipient, 1) "
+            + "ON CONFLICT (user_email) DO UPDATE SET modseq = modseq + 1; "
+            + "INSERT OR REPLACE INTO mailbox_changes (user_email, email_id, modseq, deleted) "
+            + "VALUES (" + row + ".recipient, " + row + ".id, "
+            + "(SELECT modseq FROM mailbox_state WHERE user_email = " + row + ".recipient), " + deleted + ");";
+    }
+
+    // whether a table has a column, read from sqlite's own table description
+    private static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void addColumn(Connection conn, String table, String column, String definition)
+            throws SQLException {
+        if (!hasColumn(conn, table, column)) {
+            sql("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition).apply(conn);
+        }
+    }
+
+    private static void dropColumn(Connection conn, String table, String column) throws SQLException {
+        if (hasColumn(conn, table, column)) {
+            sql("ALTER TABLE " + table + " DROP COLUMN " + column).apply(conn);
+        }
+    }
+
+    // version of the sqlite library behind the driver, e.g. "3.45.1"
+    static String sqliteVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT sqlite_version()")) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+
+    static boolean sqliteVersionAtLeast(Connection conn, int major, int minor) throws SQLException {
+        String[] parts = sqliteVersion(conn).split("\\.");
+        int actualMajor = Integer.parseInt(parts[0]);
+        int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+    }
+
+    // rows are backfilled in chunks so a large mail store is never held in memory at once
+    private static final int BACKFILL_CHUNK = 1_000;
+
+    // wraps plain sql statements as a migration step
+    private static MigrationStep sql(String... statements) {
+        return conn -> {
+            try (Statement stmt = conn.createStatement()) {
+                for (String statement : statements) {
+                    stmt.executeUpdate(statement);
+                }
+            }
+        };
+    }
+
+    // moves every inline body into the content store: each body is hashed and its text stored once,
+    // and emails rows from before migration 2 first get a message_bodies row of their own
+    private static void backfillContentStore(Connection conn) throws SQLException {
+        // message_bodies still carries an inline content column when migration 2 created it
+        boolean inlineMessageBodies = hasColumn(conn, "message_bodies", "content");
+        if (hasColumn(conn, "emails", "content")) {
+            try (PreparedStatement select = conn.prepareStatement(
+                     "SELECT id, recipient, content FROM emails WHERE body_id IS NULL ORDER BY id LIMIT ?");
+                 PreparedStatement storeContent = conn.prepareStatement(
+                     "INSERT OR IGNORE INTO body_contents (hash, content) VALUES (?, ?)");
+                 PreparedStatement insertBody = conn.prepareStatement(inlineMessageBodies
+                         ? "INSERT INTO message_bodies (to_list, cc_list, content_hash, content) VALUES (?, '', ?, ?)"
+                         : "INSERT INTO message_bodies (to_list, cc_list, content_hash) VALUES (?, '', ?)",
+                     Statement.RETURN_GENERATED_KEYS);
+                 PreparedStatement link = conn.prepareStatement("UPDATE emails SET body_id = ? WHERE id = ?")) {
+                select.setInt(1, BACKFILL_CHUNK);
+                List<Object[]> chunk;
+                while (!(chunk = readChunk(select, 3)).isEmpty()) {
+                    for (Object[] row : chunk) {
+                        String content = (String) row[2];
+                        String hash = EmailService.contentHash(content);
+                        storeContent.setString(1, hash);
+                        storeContent.setString(2, content);
+                        storeContent.executeUpdate();
+                        insertBody.setString(1, (String) row[1]);
+                        insertBody.setString(2, hash);
+                        if (inlineMessageBodies) {
+                            insertBody.setString(3, content);
+                        }
+                        insertBody.executeUpdate();
+                        try (ResultSet keys = insertBody.getGeneratedKeys()) {
+                            keys.next();
+                            link.setInt(1, keys.getInt(1));
+                        }
+                        link.setInt(2, ((Number) row[0]).intValue());
+                        link.addBatch();
+                    }
+                    link.executeBatch();
+                }
+            }
+        }
+        if (!inlineMessageBodies) {
+            return;
+        }
+
+        try (PreparedStatement select = conn.prepareStatement(
+                 "SELECT id, content FROM message_bodies WHERE content_hash IS NULL ORDER BY id LIMIT ?");
+             PreparedStatement storeContent = conn.prepareStatement(
+                 "INSERT OR IGNORE INTO body_contents (hash, content) VALUES (?, ?)");
+             PreparedStatement link = conn.prepareStatement(
+                 "UPDATE message_bodies SET content_hash = ? WHERE id = ?")) {
+            select.setInt(1, BACKFILL_CHUNK);
+            List<Object[]> chunk;
+            while (!(chunk = readChunk(select, 2)).isEmpty()) {
+                for (Object[] row : chunk) {
+                    String content = (String) row[1];
+                    String hash = EmailService.contentHash(content);
+                    storeContent.setString(1, hash);
+                    storeContent.setString(2, content);
+                    storeContent.addBatch();
+                    link.setString(1, hash);
+                    link.setInt(2, ((Number) row[0]).intValue());
+                    link.addBatch();
+                }
+                storeContent.executeBatch();
+                link.executeBatch();
+            }
+        }
+    }
+
+    // runs a chunk query and copies its rows out, so the chunk can be updated while it is processed
+    private static List<Object[]> readChunk(PreparedStatement select, int columns) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                Object[] row = new Object[columns];
+                for (int i = 0; i < columns; i++) {
+                    row[i] = rs.getObject(i + 1);
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
     public static void initDB() throws SQLException {
-        Connection conn = DatabaseConnection.getInstance().getConnection();
-        Statement stmt = conn.createStatement();
+        createBaseSchema();
+        applyMigrations();
+    }
 
+    // runs db.sql, which only contains idempotent CREATE ... IF NOT EXISTS statements
+    public static void createBaseSchema() throws SQLException {
         // Load SQL commands from the file
         String[] sqlCommands = new DatabaseInit().loadSQLFile();
 
-        try {
+        // closing the pooled connection hands it back to the pool
+        try (Connection conn = DatabaseConnection.getInstance().getWriteConnection();
+             Statement stmt = conn.createStatement()) {
             // Execute each SQL command
             for (String sql : sqlCommands) {
                 if (!sql.trim().isEmpty()) {
-                    System.out.println("Executing SQL command: " + sql);
+                    Log.debug("Executing SQL command: {}", sql);
                     stmt.executeUpdate(sql);
                 }
             }
 
-            System.out.println("Database initialized successfully!");
-        } finally {
-            // Close the statement
-            if (stmt != null) {
+            Log.info("Database initialized successfully");
+        }
+    }
+
+    // applies every migration newer than the ones recorded in schema_migrations
+    // each migration runs in its own transaction together with its bookkeeping row
+    public static void applyMigrations() throws SQLException {
+        try (Connection conn = DatabaseConnection.getInstance().getWriteConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE IF NOT EXISTS schema_migrations ("
+                    + "version INTEGER PRIMARY KEY, "
+                    + "description TEXT NOT NULL, "
+                    + "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            }
+
+            Set<Integer> applied = new HashSet<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT version FROM schema_migrations")) {
+                while (rs.next()) {
+                    applied.add(rs.getInt(1));
+                }
+            }
+
+            for (Migration migration : MIGRATIONS) {
+                if (applied.contains(migration.version)) {
+                    continue;
+                }
+                Log.info("Applying migration {}: {}", migration.version, migration.description);
+                conn.setAutoCommit(false);
                 try {
-                    stmt.close();
+                    migration.step.apply(conn);
+                    try (PreparedStatement pstmt = conn.prepareStatement(
+                            "INSERT INTO schema_migrations (version, description) VALUES (?, ?)")) {
+                        pstmt.setInt(1, migration.version);
+                        pstmt.setString(2, migration.description);
+                        pstmt.executeUpdate();
+                    }
+                    conn.commit();
                 } catch (SQLException e) {
-                    System.err.println("Error closing statement: " + e.getMessage());
+                    conn.rollback();
+                    throw new SQLException("Migration " + migration.version + " failed: " + e.getMessage(), e);
+                } finally {
+                    conn.setAutoCommit(true);
                 }
             }
         }
@@ -47,7 +417,7 @@ public class DatabaseInit {
                 sqlBuilder.append(line).append("\n");
             }
         } catch (IOException e) {
-            System.err.println("Error reading SQL file: " + e.getMessage());
+            Log.error("Error reading SQL file: {}", e.getMessage());
         }
 
         // split the SQL commands by semicolon and return as an array
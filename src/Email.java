@@ -1,8 +1,16 @@
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 // represents an email message with read status and folder organization
+// to, cc and bcc hold comma-separated address lists; bcc is only set on the sender's copy
 public class Email extends Message implements Serializable {
+    // fixed at the value of the original class, so clients on the java serialization protocol can still
+    // read emails; fields added since then (cc, bcc) arrive as null there and read back as ""
+    private static final long serialVersionUID = 402095549074336988L;
     // unique identifier for the email
     private int id;
     // tracks whether the email has been read by the recipient
@@ -11,6 +19,10 @@ public class Email extends Message implements Serializable {
     private int folderId;
     // current folder name containing this email (for backward compatibility)
     private String folder;
+    // carbon-copy recipients, shown to everyone who receives the email
+    private String cc;
+    // blind carbon-copy recipients, never stored or shown to other recipients
+    private String bcc;
 
     // default constructor
     public Email() {
@@ -19,6 +31,8 @@ public class Email extends Message implements Serializable {
         this.read = false;
         this.folderId = -1;
         this.folder = "inbox";
+        this.cc = "";
+        this.bcc = "";
     }
 
     // creates a new email with default unread status and inbox folder
@@ -28,6 +42,8 @@ public class Email extends Message implements Serializable {
         this.read = false;
         this.folderId = -1;
         this.folder = "inbox";  // default folder for new emails
+        this.cc = "";
+        this.bcc = "";
     }
 
     // retrieves the email id
@@ -60,7 +76,71 @@ public class Email extends Message implements Serializable {
         this.folder = folder;
     }
 
+    public String getCc() { return cc != null ? cc : ""; }
+
+    public void setCc(String cc) { this.cc = cc != null ? cc : ""; }
+
+    public String getBcc() { return bcc != null ? bcc : ""; }
+
+    public void setBcc(String bcc) { this.bcc = bcc != null ? bcc : ""; }
+
+    // every distinct address in to, cc and bcc, in that order; one mailbox copy is stored for each
+    public List<String> getRecipients() {
+        Set<String> recipients = new LinkedHashSet<>();
+        recipients.addAll(parseAddresses(to));
+        recipients.addAll(parseAddresses(getCc()));
+        recipients.addAll(parseAddresses(getBcc()));
+        return new ArrayList<>(recipients);
+    }
+
+    // rewrites to, cc and bcc as ", "-separated lists without blanks or repeated addresses
+    public void normalizeAddresses() {
+        to = String.join(", ", new LinkedHashSet<>(parseAddresses(to)));
+        cc = String.join(", ", new LinkedHashSet<>(parseAddresses(getCc())));
+        bcc = String.join(", ", new LinkedHashSet<>(parseAddresses(getBcc())));
+    }
+
+    // splits a comma- or semicolon-separated address list, dropping blanks
+    public static List<String> parseAddresses(String addresses) {
+        List<String> result = new ArrayList<>();
+        if (addresses == null) {
+            return result;
+        }
+        for (String address : addresses.split("[,;]")) {
+            String trimmed = address.trim();
+            if (!trimmed.isEmpty()) {
+                result.add(trimmed);
+            }
+        }
+        return result;
+    }
+
     public void setTimestamp(LocalDateTime timestamp) {
         this.timestamp = timestamp;
     }
+
+    // true when only the header was loaded and the content still has to be fetched
+    public boolean isHeaderOnly() {
+        return content == null;
+    }
+
+    // copy of this email without the content, as kept in folder listings
+    public Email headerCopy() {
+        Email header = new Email(from, to, subject, null);
+        header.id = id;
+        header.read = read;
+        header.folderId = folderId;
+        header.folder = folder;
+        header.timestamp = timestamp;
+        header.cc = getCc();
+        return header;
+    }
+
+    // the copy a recipient receives: same content and header, its own mailbox id, no bcc list
+    public Email deliveredCopy(int emailId) {
+        Email copy = headerCopy();
+        copy.id = emailId;
+        copy.content = content;
+        return copy;
+    }
 } 
\ No newline at end of file
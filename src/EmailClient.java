@@ -2,25 +2,57 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.TreeSet;
-import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.List;
 import java.util.ArrayList;
 
+// client side of one mailbox connection
+// every request is sent as TAG:id followed by the command, and the server answers with REPLY:id:count
+// followed by that many messages, in whatever order the requests finish. any number of requests can
+// be in flight at once: the *Async methods return as soon as the request is written, and the plain
+// methods wait for their reply. new email pushes arrive untagged as NEW_EMAIL followed by the email
+// after a login the client takes over the connection Auth logged in on and opens the mailbox with the
+// session token, so a logged-in user holds a single connection to the server
+// the client remembers the mailbox change sequence its folders reflect; reopening the session asks only
+// for the changes since then instead of the whole mailbox. folders, recently opened bodies and that
+// sequence are also kept on disk (MailboxStore), so a new client opens straight from the cache and is
+// brought up to date in the background
 public class EmailClient {
+    // headers requested per FETCH_PAGE when scrolling back through a folder
+    private static final int PAGE_SIZE = Integer.getInteger("email.client.pageSize", 50);
+    // how long a request waits for its reply before it fails
+    private static final long REPLY_TIMEOUT_MS = Long.getLong("email.client.replyTimeoutMs", 5_000);
+    // how often changed folders are written to the on-disk cache while connected
+    private static final long CACHE_FLUSH_MS = Long.getLong("email.client.cacheFlushMs", 10_000);
+    // writes the on-disk caches of every client in this process, started on first use
+    private static ScheduledExecutorService cacheWriter;
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private MessageChannel channel;
     private String userEmail;
-    private boolean connected;
+    // token of the login session this client belongs to, if it was attached after a login
+    private String sessionToken;
+    // change sequence of the mailbox as the folders show it; 0 until the server has reported one
+    private volatile long modseq;
+    // on-disk copy of this user's mailbox, or null if the cache is turned off
+    private MailboxStore store;
+    private ScheduledFuture<?> cacheFlush;
+    private volatile boolean connected;
     private Map<String, Folder> folders;
     private Thread inboxListener;
-    private BlockingQueue<Object> responseQueue;
+    // requests waiting for their reply, by tag
+    private final Map<Integer, CompletableFuture<Reply>> pending;
+    private final AtomicInteger nextTag;
+    // keeps the frames of one request together when several threads send at once
+    private final Object writeLock;
 
     public EmailClient() {
         this.connected = false;
-        this.responseQueue = new LinkedBlockingQueue<>();
-        this.folders = new HashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.nextTag = new AtomicInteger();
+        this.writeLock = new Object();
+        this.folders = new ConcurrentHashMap<>();
         initializeFolders();
     }
 
@@ -29,237 +61,787 @@ public class EmailClient {
         folders.put("spam", new Folder("spam", true));
     }
 
-    public boolean connect(String email) {
+    // opens a connection of its own and logs in on it; the server only opens a mailbox for the user
+    // logged in on the same connection
+    public boolean connect(String email, String password) {
+        Socket socket = null;
         try {
             socket = new Socket("localhost", 12345);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(socket.getInputStream());
+            MessageChannel channel = MessageChannel.connect(socket.getInputStream(), socket.getOutputStream());
+            return open(socket, channel, email, null, password);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            System.out.println("Failed to connect: " + describe(e));
+            return false;
+        }
+    }
+
+    // takes over the connection a login succeeded on and opens the session's mailbox on it
+    public boolean attach(Socket socket, MessageChannel channel, String email, String token) {
+        this.sessionToken = token;
+        return open(socket, channel, email, token, null);
+    }
 
-            // Clear folders when connecting
-            initializeFolders();
+    // starts reading from the connection and opens the mailbox with the session token, logging in with
+    // the password first when there is no token yet. a client that already holds this user's mailbox, from an earlier connection
+    // or from the on-disk cache, returns at once and asks only for the changes since in the background;
+    // any other waits for the server's headers
+    private boolean open(Socket socket, MessageChannel channel, String email, String token, String password) {
+        try {
+            this.socket = socket;
+            this.channel = channel;
+            if (!channel.supportsRequestTags()) {
+                System.out.println("Failed to connect: the server does not support tagged requests");
+                disconnect();
+                return false;
+            }
+
+            boolean holding = email.equals(userEmail) && modseq > 0;
+            if (!holding) {
+                // Clear folders when connecting, then fill them from the cache if there is one
+                initializeFolders();
+                modseq = 0;
+                store = MailboxStore.forUser(email);
+                holding = loadCache();
+            }
             this.userEmail = email;
+            this.connected = true;
+            startInboxListener();
+            startCacheFlush();
 
-            // Send email to identify this client
-            out.writeObject(email);
-            out.flush();
-
-            // Wait for connection confirmation
-            Object response = in.readObject();
-            if (response instanceof String) {
-                String responseStr = (String) response;
-                if (responseStr.equals("CONNECT_SUCCESS")) {
-                    this.connected = true;
-                    startInboxListener();
-                    return true;
-                } else if (responseStr.startsWith("CONNECT_FAILED:")) {
-                    System.out.println(responseStr.substring("CONNECT_FAILED:".length()));
+            if (token == null) {
+                Reply login = request("LOGIN:" + email + ":" + password).get(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (!login.status.startsWith("LOGIN_SUCCESS:")) {
+                    System.out.println(login.status.startsWith("LOGIN_FAILED:")
+                        ? login.status.substring("LOGIN_FAILED:".length()) : "Failed to connect: " + login.status);
                     disconnect();
                     return false;
                 }
+                token = login.status.substring("LOGIN_SUCCESS:".length());
+                this.sessionToken = token;
             }
+            String connectRequest = "SESSION:" + token + (modseq > 0 ? ":" + modseq : "");
+            boolean reload = holding;
+            CompletableFuture<Boolean> opened =
+                request(connectRequest).thenApply(reply -> openMailbox(reply, reload));
+            if (holding) {
+                opened.whenComplete((ok, e) -> {
+                    if (e != null) {
+                        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                        System.out.println("Failed to connect: " + describe(cause));
+                    }
+                    if (e != null || !ok) {
+                        disconnect();
+                    }
+                });
+                return true;
+            }
+            if (opened.get(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (ExecutionException e) {
+            System.out.println("Failed to connect: " + describe(e.getCause()));
         } catch (Exception e) {
-            System.out.println("Failed to connect: " + e.getMessage());
-            disconnect();
+            System.out.println("Failed to connect: " + describe(e));
+        }
+        disconnect();
+        return false;
+    }
+
+    // applies the reply that opened the mailbox: the changes since the folders' sequence, or the
+    // newest headers of each folder. a full reload replaces folders the client already held, keeping
+    // the bodies of emails that are still there
+    private boolean openMailbox(Reply reply, boolean reload) {
+        if (reply.status.startsWith("SYNC_SUCCESS:")) {
+            applyChanges(reply);
+            return true;
+        }
+        if (reply.status.equals("CONNECT_SUCCESS") || reply.status.startsWith("CONNECT_SUCCESS:")) {
+            Map<Integer, Email> previous = reload ? emailsById() : Map.of();
+            if (reload) {
+                initializeFolders();
+            }
+            for (Email header : reply.emails()) {
+                mergeEmail(header);
+            }
+            if (reload) {
+                keepBodies(previous);
+            }
+            modseq = reply.status.length() > "CONNECT_SUCCESS:".length()
+                ? Long.parseLong(reply.status.substring("CONNECT_SUCCESS:".length())) : 0;
+            changed();
+            return true;
+        }
+        if (reply.status.startsWith("CONNECT_FAILED:")) {
+            System.out.println(reply.status.substring("CONNECT_FAILED:".length()));
+        } else if (reply.status.startsWith("SESSION_FAILED:")) {
+            System.out.println(reply.status.substring("SESSION_FAILED:".length()));
+        } else {
+            System.out.println("Failed to connect: " + reply.status);
         }
         return false;
     }
 
+    // copies bodies over to the reloaded headers of the same emails; sender and subject are compared
+    // too, so a cache from a server whose ids were reused can't attach a body to the wrong email
+    private void keepBodies(Map<Integer, Email> previous) {
+        Map<Integer, Email> current = emailsById();
+        for (Email email : current.values()) {
+            Email before = previous.get(email.getId());
+            if (email.isHeaderOnly() && before != null && !before.isHeaderOnly()
+                    && Objects.equals(before.getFrom(), email.getFrom())
+                    && Objects.equals(before.getSubject(), email.getSubject())) {
+                email.setContent(before.getContent());
+            }
+        }
+        if (store != null) {
+            store.rebind(current);
+        }
+    }
+
+    // every email the client holds, by id
+    private Map<Integer, Email> emailsById() {
+        Map<Integer, Email> byId = new HashMap<>();
+        for (Folder folder : folders.values()) {
+            for (Email email : folder.getEmails()) {
+                byId.put(email.getId(), email);
+            }
+        }
+        return byId;
+    }
+
+    // fills the folders from the on-disk cache; false if there was nothing usable
+    private boolean loadCache() {
+        MailboxStore.Snapshot snapshot = store != null ? store.load() : null;
+        if (snapshot == null || snapshot.modseq <= 0) {
+            return false;
+        }
+        for (Map.Entry<String, List<Email>> entry : snapshot.folders.entrySet()) {
+            Folder folder = folders.computeIfAbsent(entry.getKey(), name -> new Folder(name, false));
+            for (Email email : entry.getValue()) {
+                folder.addEmail(email);
+            }
+        }
+        modseq = snapshot.modseq;
+        return true;
+    }
+
+    private static synchronized ScheduledExecutorService cacheWriter() {
+        if (cacheWriter == null) {
+            cacheWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mailbox-cache-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return cacheWriter;
+    }
+
+    private void startCacheFlush() {
+        if (store != null && cacheFlush == null && CACHE_FLUSH_MS > 0) {
+            cacheFlush = cacheWriter().scheduleWithFixedDelay(this::saveCache, CACHE_FLUSH_MS, CACHE_FLUSH_MS,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // writes the folders to the on-disk cache if anything changed since the last write; folders
+    // without a sequence (opened by email alone) could not be brought up to date later, so they are
+    // not written
+    private void saveCache() {
+        MailboxStore current = store;
+        if (current == null || !current.isDirty() || modseq <= 0) {
+            return;
+        }
+        try {
+            // the sequence is read before the folders; see MailboxStore.save
+            current.save(modseq, folders);
+        } catch (IOException e) {
+            Log.warn("Could not write the mailbox cache: {}", e.getMessage());
+        }
+    }
+
+    private void changed() {
+        if (store != null) {
+            store.markDirty();
+        }
+    }
+
+    // records that the body of an email in the folders was fetched or opened
+    private void touchBody(Email email) {
+        if (store != null && findEmail(email.getId()) == email) {
+            store.touch(email);
+        }
+    }
+
+    // reads everything the server sends: replies complete their request, pushes are merged into the
+    // folders. replies complete on this thread, so callbacks chained on them should not block
     private void startInboxListener() {
         inboxListener = new Thread(() -> {
-            while (connected) {
-                try {
-                    Object obj = in.readObject();
-                    if (obj instanceof Email) {
-                        Email email = (Email) obj;
-                        // Add email to appropriate folder
-                        Folder folder = folders.get(email.getFolder());
-                        if (folder != null) {
-                            folder.addEmail(email);
-                        } else {
-                            // If folder doesn't exist, add to inbox by default
-                            folders.get("inbox").addEmail(email);
+            try {
+                while (connected) {
+                    Object obj = channel.readMessage();
+                    if (obj instanceof String) {
+                        String text = (String) obj;
+                        if (text.startsWith("REPLY:")) {
+                            readReply(text);
+                        } else if (text.equals("NEW_EMAIL")) {
+                            Object pushed = channel.readMessage();
+                            if (pushed instanceof Email) {
+                                mergeEmail((Email) pushed);
+                            }
                         }
-                    } else if (obj instanceof String) {
-                        responseQueue.offer(obj);
-                    }
-                } catch (EOFException | SocketException e) {
-                    break;
-                } catch (Exception e) {
-                    if (connected) {
-                        e.printStackTrace();
+                    } else if (obj instanceof Email) {
+                        mergeEmail((Email) obj);
                     }
                 }
+            } catch (EOFException | SocketException e) {
+                // connection closed
+            } catch (Exception e) {
+                if (connected) {
+                    Log.error("Error reading from server: {}", e.getMessage(), e);
+                }
+            } finally {
+                failPending(new IOException("Connection closed"));
             }
-        });
+        }, "email-client-listener");
+        inboxListener.setDaemon(true);
         inboxListener.start();
     }
 
-    public List<Email> getInbox() {
+    // reads the messages of one reply and completes the request they answer
+    private void readReply(String header) throws IOException, ClassNotFoundException {
+        String[] parts = header.split(":");
+        int tag = Integer.parseInt(parts[1]);
+        int count = Integer.parseInt(parts[2]);
+        String status = null;
+        List<Object> objects = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Object message = channel.readMessage();
+            if (message instanceof String && status == null) {
+                status = (String) message;
+            } else {
+                objects.add(message);
+            }
+        }
+        CompletableFuture<Reply> request = pending.remove(tag);
+        if (request != null) {
+            // a reply for a request that already timed out is dropped
+            request.complete(new Reply(status != null ? status : "", objects));
+        }
+    }
+
+    // adds a pushed or listed email to its folder, or fills in the body of one the folder already has
+    private void mergeEmail(Email email) {
+        Folder folder = folders.get(email.getFolder());
+        if (folder == null) {
+            // If folder doesn't exist, add to inbox by default
+            folder = folders.get("inbox");
+        }
+        Email known = findEmail(folder, email.getId());
+        if (known == null) {
+            folder.addEmail(email);
+            touchBody(email);
+        } else if (!email.isHeaderOnly()) {
+            known.setContent(email.getContent());
+            folder.setRead(known.getId(), email.isRead());
+            touchBody(known);
+        }
+        changed();
+    }
+
+    // brings the folders up to date with the changes made since they were loaded, e.g. by another
+    // session of the same user; completes with false if the server wants a full reload instead
+    public CompletableFuture<Boolean> syncAsync() {
+        if (modseq <= 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return request("SYNC:" + userEmail + ":" + modseq).thenApply(reply -> {
+            if (!reply.status.startsWith("SYNC_SUCCESS:")) {
+                System.out.println("Failed to sync mailbox: " + reply.status);
+                return false;
+            }
+            applyChanges(reply);
+            return true;
+        });
+    }
+
+    // applies a SYNC_SUCCESS:modseq:deletedIds reply and the changed headers that came with it
+    private void applyChanges(Reply reply) {
+        String[] parts = reply.status.split(":", 3);
+        for (Email header : reply.emails()) {
+            applyChange(header);
+        }
+        if (parts.length == 3 && !parts[2].isEmpty()) {
+            for (String id : parts[2].split(",")) {
+                Email email = findEmail(Integer.parseInt(id));
+                if (email != null) {
+                    folders.get(email.getFolder()).removeEmail(email);
+                }
+                if (store != null) {
+                    store.forget(Integer.parseInt(id));
+                }
+            }
+        }
+        modseq = Long.parseLong(parts[1]);
+        changed();
+    }
+
+    // moves or updates an email the client holds; an email it doesn't hold is added only if it falls
+    // within the headers already loaded for its folder, older ones come with loadOlderEmails
+    private void applyChange(Email header) {
+        Folder target = folders.get(header.getFolder());
+        if (target == null) {
+            target = folders.get("inbox");
+        }
+        Email known = findEmail(header.getId());
+        if (known != null && !target.getName().equals(known.getFolder())) {
+            folders.get(known.getFolder()).removeEmail(known);
+            if (isLoaded(target, header.getId())) {
+                target.addEmail(known);
+            }
+        } else if (known == null && isLoaded(target, header.getId())) {
+            target.addEmail(header);
+            return;
+        }
+        target.setRead(header.getId(), header.isRead());
+    }
+
+    // true if an email with this id belongs within the part of the folder the client has loaded
+    private boolean isLoaded(Folder folder, int emailId) {
+        int oldestId = oldestId(folder);
+        return oldestId == 0 || emailId > oldestId;
+    }
+
+    // the lowest id the client holds in a folder, where loading older emails continues; 0 if empty
+    private static int oldestId(Folder folder) {
+        int oldestId = 0;
+        for (Email email : folder.getEmails()) {
+            if (email.getId() > 0 && (oldestId == 0 || email.getId() < oldestId)) {
+                oldestId = email.getId();
+            }
+        }
+        return oldestId;
+    }
+
+    // sends one tagged request; the future completes with the server's reply or fails on timeout
+    private CompletableFuture<Reply> request(Object... messages) {
+        if (!connected) {
+            return CompletableFuture.failedFuture(new IOException("Not connected"));
+        }
+        int tag = nextTag.incrementAndGet();
+        CompletableFuture<Reply> reply = new CompletableFuture<>();
+        pending.put(tag, reply);
+        reply.orTimeout(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((r, e) -> pending.remove(tag));
+        try {
+            synchronized (writeLock) {
+                channel.writeMessage("TAG:" + tag);
+                for (Object message : messages) {
+                    channel.writeMessage(message);
+                }
+                channel.flush();
+            }
+        } catch (IOException e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    private void failPending(Throwable cause) {
+        for (CompletableFuture<Reply> request : pending.values()) {
+            request.completeExceptionally(cause);
+        }
+        pending.clear();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    // finds an email the client already holds by its id
+    private Email findEmail(Folder folder, int emailId) {
+        return emailId > 0 ? folder.getEmailById(emailId) : null;
+    }
+
+    // returns the email content, fetching the body from the server the first time it is needed
+    public String fetchEmailContent(Email email) {
+        return await(fetchEmailContentAsync(email), null, "fetching email");
+    }
+
+    // completes with the body, or null if the server could not return it
+    public CompletableFuture<String> fetchEmailContentAsync(Email email) {
+        if (!email.isHeaderOnly()) {
+            touchBody(email);
+            return CompletableFuture.completedFuture(email.getContent());
+        }
+        return request("FETCH_EMAIL:" + userEmail + ":" + email.getId()).thenApply(reply -> {
+            List<Email> bodies = reply.emails();
+            if (!reply.status.equals("FETCH_SUCCESS") || bodies.isEmpty()) {
+                System.out.println("Failed to fetch email: " + reply.status);
+                return null;
+            }
+            Email full = bodies.get(0);
+            Folder folder = folders.get(email.getFolder());
+            if (folder != null && findEmail(folder, email.getId()) != null) {
+                mergeEmail(full);
+            }
+            email.setContent(full.getContent());
+            return email.getContent();
+        });
+    }
+
+    // loads the next page of older headers into a folder; returns how many were added
+    public int loadOlderEmails(String folderName) {
+        return await(loadOlderEmailsAsync(folderName), 0, "loading emails");
+    }
+
+    public CompletableFuture<Integer> loadOlderEmailsAsync(String folderName) {
+        Folder folder = folders.get(folderName);
+        if (folder == null) {
+            return CompletableFuture.completedFuture(0);
+        }
+        int oldestId = oldestId(folder);
+        return request("FETCH_PAGE:" + userEmail + ":" + folderName + ":" + oldestId + ":" + PAGE_SIZE)
+            .thenApply(reply -> {
+                if (!reply.status.startsWith("PAGE_SUCCESS:")) {
+                    System.out.println("Failed to load emails: " + reply.status);
+                    return 0;
+                }
+                for (Email header : reply.emails()) {
+                    mergeEmail(header);
+                }
+                return Integer.parseInt(reply.status.substring("PAGE_SUCCESS:".length()));
+            });
+    }
+
+    // one page of search results, best match first; folderName null or empty searches every folder
+    // hits the client already holds are returned as those instances, so later changes show up in both
+    public List<Email> searchEmails(String query, String folderName, int offset) {
+        return await(searchEmailsAsync(query, folderName, offset), new ArrayList<>(), "searching emails");
+    }
+
+    public CompletableFuture<List<Email>> searchEmailsAsync(String query, String folderName, int offset) {
+        return request("SEARCH:" + userEmail + ":" + (folderName != null ? folderName : "") + ":"
+                + offset + ":" + PAGE_SIZE + ":" + query)
+            .thenApply(reply -> {
+                List<Email> results = new ArrayList<>();
+                if (!reply.status.startsWith("SEARCH_SUCCESS:")) {
+                    System.out.println("Search failed: " + reply.status);
+                    return results;
+                }
+                // search hits are not folder pages; merging them would skew loadOlderEmails
+                for (Email hit : reply.emails()) {
+                    Email known = findEmail(hit.getId());
+                    results.add(known != null ? known : hit);
+                }
+                return results;
+            });
+    }
+
+    // read-only live views of a folder, newest first; see Folder.getEmails
+    public Collection<Email> getInbox() {
         return folders.get("inbox").getEmails();
     }
 
-    public List<Email> getSpam() {
+    public Collection<Email> getSpam() {
         return folders.get("spam").getEmails();
     }
 
-    public List<Email> getEmailsByFolder(String folderName) {
+    public Collection<Email> getEmailsByFolder(String folderName) {
+        Folder folder = folders.get(folderName);
+        return folder != null ? folder.getEmails() : Collections.emptyList();
+    }
+
+    // one page of a folder as held by the client, newest first; positions stay put while it is shown
+    public List<Email> getEmails(String folderName, int offset, int limit) {
         Folder folder = folders.get(folderName);
-        return folder != null ? folder.getEmails() : new ArrayList<>();
+        return folder != null ? folder.getEmails(offset, limit) : new ArrayList<>();
+    }
+
+    // number of emails the client holds in a folder
+    public int getFolderSize(String folderName) {
+        Folder folder = folders.get(folderName);
+        return folder != null ? folder.size() : 0;
     }
 
     public Set<String> getFolders() {
         return new HashSet<>(folders.keySet());
     }
 
-    public void moveEmailToFolder(int emailIndex, String targetFolder) {
+    // moves an email, addressed by its id, to another folder
+    public void moveEmailToFolder(int emailId, String targetFolder) {
+        await(moveEmailToFolderAsync(emailId, targetFolder), false, "moving email");
+    }
+
+    public CompletableFuture<Boolean> moveEmailToFolderAsync(int emailId, String targetFolder) {
         if (!folders.containsKey(targetFolder)) {
             System.out.println("Target folder does not exist.");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
+        return request("MOVE_EMAIL:" + userEmail + ":" + emailId + ":" + targetFolder).thenApply(reply -> {
+            if (!reply.status.equals("MOVE_SUCCESS")) {
+                System.out.println("Failed to move email: " + reply.status);
+                return false;
+            }
+            Email email = findEmail(emailId);
+            if (email != null) {
+                folders.get(email.getFolder()).removeEmail(email);
+                folders.get(targetFolder).addEmail(email);
+                changed();
+            }
+            return true;
+        });
+    }
 
-        try {
-            out.writeObject("MOVE_EMAIL:" + userEmail + ":" + emailIndex + ":" + targetFolder);
-            String response = waitForResponse();
-            if (response.equals("MOVE_SUCCESS")) {
-                // Find email in current folder and move it
-                for (Folder folder : folders.values()) {
-                    List<Email> emails = folder.getEmails();
-                    if (emailIndex < emails.size()) {
-                        Email email = emails.get(emailIndex);
-                        folder.removeEmail(email);
-                        folders.get(targetFolder).addEmail(email);
-                        break;
-                    }
-                }
-            } else {
-                System.out.println("Failed to move email: " + response);
+    // deletes an email by its id
+    public void deleteEmail(int emailId) {
+        await(deleteEmailAsync(emailId), false, "deleting email");
+    }
+
+    public CompletableFuture<Boolean> deleteEmailAsync(int emailId) {
+        return request("DELETE_EMAIL:" + userEmail + ":" + emailId).thenApply(reply -> {
+            if (!reply.status.equals("DELETE_SUCCESS")) {
+                System.out.println("Failed to delete email: " + reply.status);
+                return false;
             }
-        } catch (Exception e) {
-            System.out.println("Error moving email: " + e.getMessage());
+            Email email = findEmail(emailId);
+            if (email != null) {
+                folders.get(email.getFolder()).removeEmail(email);
+            }
+            if (store != null) {
+                store.forget(emailId);
+            }
+            return true;
+        });
+    }
+
+    public void markEmailAsRead(int emailId) {
+        await(markEmailAsync(emailId, true), false, "marking email as read");
+    }
+
+    public void markEmailAsUnread(int emailId) {
+        await(markEmailAsync(emailId, false), false, "marking email as unread");
+    }
+
+    public CompletableFuture<Boolean> markEmailAsync(int emailId, boolean read) {
+        return request((read ? "MARK_READ:" : "MARK_UNREAD:") + userEmail + ":" + emailId).thenApply(reply -> {
+            if (!reply.status.equals("MARK_SUCCESS")) {
+                System.out.println("Failed to mark email as " + (read ? "read" : "unread") + ": " + reply.status);
+                return false;
+            }
+            updateEmailReadStatus(emailId, read);
+            return true;
+        });
+    }
+
+    // marks many emails at once: one request per MAX_BULK_EMAILS ids, all in flight together; each
+    // request succeeds or fails as a whole. completes with how many emails were marked
+    public CompletableFuture<Integer> markEmailsAsync(Collection<Integer> emailIds, boolean read) {
+        String command = (read ? "MARK_READ:" : "MARK_UNREAD:") + userEmail + ":";
+        return bulk(emailIds, ids -> request(command + ids), (reply, chunk) -> {
+            if (!reply.status.equals("MARK_SUCCESS")) {
+                System.out.println("Failed to mark emails as " + (read ? "read" : "unread") + ": " + reply.status);
+                return false;
+            }
+            for (int emailId : chunk) {
+                updateEmailReadStatus(emailId, read);
+            }
+            return true;
+        });
+    }
+
+    // moves many emails to one folder, like markEmailsAsync
+    public CompletableFuture<Integer> moveEmailsToFolderAsync(Collection<Integer> emailIds, String targetFolder) {
+        if (!folders.containsKey(targetFolder)) {
+            System.out.println("Target folder does not exist.");
+            return CompletableFuture.completedFuture(0);
         }
+        String command = "MOVE_EMAIL:" + userEmail + ":";
+        return bulk(emailIds, ids -> request(command + ids + ":" + targetFolder), (reply, chunk) -> {
+            if (!reply.status.equals("MOVE_SUCCESS")) {
+                System.out.println("Failed to move emails: " + reply.status);
+                return false;
+            }
+            for (int emailId : chunk) {
+                Email email = findEmail(emailId);
+                if (email != null) {
+                    folders.get(email.getFolder()).removeEmail(email);
+                    folders.get(targetFolder).addEmail(email);
+                }
+            }
+            changed();
+            return true;
+        });
     }
 
-    public void deleteEmail(int emailIndex) {
-        try {
-            out.writeObject("DELETE_EMAIL:" + userEmail + ":" + emailIndex);
-            String response = waitForResponse();
-            if (response.equals("DELETE_SUCCESS")) {
-                // Remove email from its folder
-                for (Folder folder : folders.values()) {
-                    List<Email> emails = folder.getEmails();
-                    if (emailIndex < emails.size()) {
-                        folder.removeEmail(emails.get(emailIndex));
-                        break;
-                    }
+    // deletes many emails, like markEmailsAsync
+    public CompletableFuture<Integer> deleteEmailsAsync(Collection<Integer> emailIds) {
+        return bulk(emailIds, ids -> request("DELETE_EMAIL:" + userEmail + ":" + ids), (reply, chunk) -> {
+            if (!reply.status.equals("DELETE_SUCCESS")) {
+                System.out.println("Failed to delete emails: " + reply.status);
+                return false;
+            }
+            for (int emailId : chunk) {
+                Email email = findEmail(emailId);
+                if (email != null) {
+                    folders.get(email.getFolder()).removeEmail(email);
+                }
+                if (store != null) {
+                    store.forget(emailId);
                 }
-            } else {
-                System.out.println("Failed to delete email: " + response);
             }
-        } catch (Exception e) {
-            System.out.println("Error deleting email: " + e.getMessage());
-        }
+            changed();
+            return true;
+        });
     }
 
-    public void markEmailAsRead(int emailIndex) {
-        try {
-            out.writeObject("MARK_READ:" + userEmail + ":" + emailIndex);
-            String response = waitForResponse();
-            if (response.equals("MARK_SUCCESS")) {
-                updateEmailReadStatus(emailIndex, true);
-            } else {
-                System.out.println("Failed to mark email as read: " + response);
+    // sends a bulk command per chunk of ids (comma separated) and applies each successful reply
+    private CompletableFuture<Integer> bulk(Collection<Integer> emailIds,
+                                            Function<String, CompletableFuture<Reply>> send,
+                                            BiFunction<Reply, List<Integer>, Boolean> apply) {
+        List<Integer> ids = new ArrayList<>(new LinkedHashSet<>(emailIds));
+        List<CompletableFuture<Integer>> chunks = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += EmailServer.MAX_BULK_EMAILS) {
+            List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + EmailServer.MAX_BULK_EMAILS));
+            StringBuilder list = new StringBuilder();
+            for (int emailId : chunk) {
+                list.append(list.length() > 0 ? "," : "").append(emailId);
             }
-        } catch (Exception e) {
-            System.out.println("Error marking email as read: " + e.getMessage());
+            chunks.add(send.apply(list.toString())
+                .thenApply(reply -> apply.apply(reply, chunk) ? chunk.size() : 0)
+                .exceptionally(e -> 0));
         }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            int succeeded = 0;
+            for (CompletableFuture<Integer> chunk : chunks) {
+                succeeded += chunk.join();
+            }
+            return succeeded;
+        });
     }
 
-    public void markEmailAsUnread(int emailIndex) {
-        try {
-            out.writeObject("MARK_UNREAD:" + userEmail + ":" + emailIndex);
-            String response = waitForResponse();
-            if (response.equals("MARK_SUCCESS")) {
-                updateEmailReadStatus(emailIndex, false);
-            } else {
-                System.out.println("Failed to mark email as unread: " + response);
+    private void updateEmailReadStatus(int emailId, boolean isRead) {
+        for (Folder folder : folders.values()) {
+            if (folder.setRead(emailId, isRead)) {
+                changed();
+                break;
             }
-        } catch (Exception e) {
-            System.out.println("Error marking email as unread: " + e.getMessage());
         }
     }
 
-    private void updateEmailReadStatus(int emailIndex, boolean isRead) {
+    // finds an email the client holds in any folder by its id
+    private Email findEmail(int emailId) {
         for (Folder folder : folders.values()) {
-            List<Email> emails = folder.getEmails();
-            if (emailIndex < emails.size()) {
-                emails.get(emailIndex).setRead(isRead);
-                break;
+            Email email = findEmail(folder, emailId);
+            if (email != null) {
+                return email;
             }
         }
+        return null;
+    }
+
+    // waits for an async result; a transport failure or timeout is reported and gives the fallback
+    private static <T> T await(CompletableFuture<T> future, T fallback, String action) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            System.out.println("Error " + action + ": " + describe(e.getCause() != null ? e.getCause() : e));
+            return fallback;
+        }
     }
 
-    private String waitForResponse() throws InterruptedException {
-        Object response = responseQueue.poll(5, TimeUnit.SECONDS);
-        if (response == null) {
-            throw new InterruptedException("Timeout waiting for response");
+    private static String describe(Throwable e) {
+        if (e instanceof TimeoutException) {
+            return "Timeout waiting for response";
         }
-        return (String) response;
+        return e.getMessage();
     }
 
     public boolean sendEmail(String to, String subject, String content) {
-        try {
-            Email email = new Email(userEmail, to, subject, content);
-            out.writeObject("SEND_EMAIL:" + userEmail);
-            out.writeObject(email);
-            out.flush();
-            
-            String response = waitForResponse();
-            if (!response.equals("SEND_SUCCESS")) {
-                System.out.println("Failed to send email: " + response);
+        return sendEmail(to, "", "", subject, content);
+    }
+
+    // to, cc and bcc are comma-separated address lists; the server stores the body once for all of them
+    public boolean sendEmail(String to, String cc, String bcc, String subject, String content) {
+        return await(sendEmailAsync(to, cc, bcc, subject, content), false, "sending email");
+    }
+
+    public CompletableFuture<Boolean> sendEmailAsync(String to, String cc, String bcc, String subject,
+                                                     String content) {
+        Email email = new Email(userEmail, to, subject, content);
+        email.setCc(cc);
+        email.setBcc(bcc);
+        return request("SEND_EMAIL:" + userEmail, email).thenApply(reply -> {
+            if (!reply.status.equals("SEND_SUCCESS")) {
+                System.out.println("Failed to send email: " + reply.status);
                 return false;
             }
             return true;
-        } catch (Exception e) {
-            System.out.println("Error sending email: " + e.getMessage());
-            return false;
+        });
+    }
+
+    // ends the login session on the server, then closes the connection
+    public void logout() {
+        if (sessionToken != null && connected) {
+            await(request("LOGOUT:" + sessionToken), null, "logging out");
         }
+        sessionToken = null;
+        disconnect();
     }
 
+    // closes the connection and writes the on-disk cache; requests still waiting fail. the session
+    // itself stays valid on the server for a while
     public void disconnect() {
         connected = false;
+        if (cacheFlush != null) {
+            cacheFlush.cancel(false);
+            cacheFlush = null;
+        }
+        saveCache();
         try {
-            if (inboxListener != null) {
-                inboxListener.interrupt();
+            if (channel != null) {
+                channel.close();
+            } else if (socket != null) {
+                socket.close();
             }
-            // if (out != null) out.close();
-            // if (in != null) in.close();
-            // if (socket != null) socket.close();
-        // } catch (IOException e) {
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            // already closed
         }
+        failPending(new IOException("Disconnected"));
     }
 
-    public List<Email> getSortedInbox() {
-        TreeSet<Email> sortedEmails = new TreeSet<>(new Comparator<Email>() {
-            @Override
-            public int compare(Email e1, Email e2) {
-                return e2.getTimestamp().compareTo(e1.getTimestamp()); // descending order
-            }
-        });
-        sortedEmails.addAll(getInbox());
-        return new ArrayList<>(sortedEmails);
+    // folders already keep their emails newest first, so these are read-only views, not sorted copies
+    public Collection<Email> getSortedInbox() {
+        return getInbox();
+    }
+
+    public Collection<Email> getSortedSpam() {
+        return getSpam();
     }
 
-    public List<Email> getSortedSpam() {
-        TreeSet<Email> sortedEmails = new TreeSet<>(new Comparator<Email>() {
-            @Override
-            public int compare(Email e1, Email e2) {
-                return e2.getTimestamp().compareTo(e1.getTimestamp()); // descending order
+    // the status string of a reply and the emails or other objects sent with it
+    private static final class Reply {
+        final String status;
+        final List<Object> objects;
+
+        Reply(String status, List<Object> objects) {
+            this.status = status;
+            this.objects = objects;
+        }
+
+        List<Email> emails() {
+            List<Email> emails = new ArrayList<>();
+            for (Object object : objects) {
+                if (object instanceof Email) {
+                    emails.add((Email) object);
+                }
             }
-        });
-        sortedEmails.addAll(getSpam());
-        return new ArrayList<>(sortedEmails);
+            return emails;
+        }
     }
-} 
\ No newline at end of file
+}
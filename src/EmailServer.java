@@ -1,8 +1,10 @@
 import java.io.*;
 import java.net.*;
+import java.security.SecureRandom;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // singleton server class handling email operations and user management
 public class EmailServer {
@@ -14,12 +16,42 @@ public class EmailServer {
     private final int PORT = 12345;
     // flag indicating if server is running
     private boolean running;
-    // maps user emails to their folder structure
-    private Map<String, Map<String, Folder>> userFolders;
-    // maps connected clients to their output streams
-    private Map<String, ObjectOutputStream> clientOutputStreams;
+    // newest headers kept in memory per folder; older pages are read from the database on request
+    private static final int PAGE_SIZE = Integer.getInteger("email.server.pageSize", 50);
+    // bounds for the mailbox cache: number of cached users and total cached headers
+    private static final int MAILBOX_CACHE_USERS = Integer.getInteger("email.server.mailboxCache.users", 10_000);
+    private static final long MAILBOX_CACHE_HEADERS = Long.getLong("email.server.mailboxCache.headers", 1_000_000);
+    // per-user folder structure (header-only, bodies are fetched by id); connected users are pinned
+    private final MailboxCache mailboxCache;
+    // maps connected clients to their message channels
+    private Map<String, MessageChannel> clientChannels;
+    // login sessions by token, and the session each connection is attached to
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<MessageChannel, Session> channelSessions = new ConcurrentHashMap<>();
+    private static final long SESSION_TTL_MS = Long.getLong("email.server.sessionTtlMs", 30 * 60_000L);
+    private static final SecureRandom TOKENS = new SecureRandom();
+    // a client further behind than this many changes gets the full mailbox instead of the deltas
+    private static final int SYNC_MAX_CHANGES = Integer.getInteger("email.server.sync.maxChanges", 5_000);
+    // most emails one MOVE_EMAIL, DELETE_EMAIL or MARK command may address
+    public static final int MAX_BULK_EMAILS = 500;
+    private volatile long lastSessionSweep;
     // thread pool for handling client connections
     private ExecutorService executorService;
+    // connection engine selected at startup
+    private final IoMode ioMode;
+    // selector-based engine used when running in nio mode
+    private NioServerEngine nioEngine;
+    // number of connection handlers currently running, and the highest value seen
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger peakSessions = new AtomicInteger();
+    // runs post-commit delivery work (in-memory update and push) off the db writer thread
+    private ExecutorService deliveryExecutor;
+    // drains the per-connection outbound queues; a connection is served by at most one writer at a time
+    private ExecutorService outboundWriters;
+    // runs tagged requests, so one connection can have several in flight
+    private ExecutorService requestExecutor;
+    // when true SEND_SUCCESS is only sent after the email is committed; otherwise once it is queued
+    private final boolean durableAck = !"queued".equalsIgnoreCase(System.getProperty("email.server.ack"));
     // indicates if running in server or client mode
     private boolean isServerMode;
     // database services
@@ -27,72 +59,149 @@ public class EmailServer {
     private final FolderService folderService;
     private final EmailService emailService;
 
+    // request metrics; the per-command histograms are resolved without allocating on every request
+    private static final Metrics METRICS = Metrics.getInstance();
+    private static final String[] COMMAND_NAMES = {
+        "LOGIN", "REGISTER", "SEND_EMAIL", "MOVE_EMAIL", "DELETE_EMAIL", "MARK_READ", "MARK_UNREAD",
+        "FETCH_EMAIL", "FETCH_PAGE", "SEARCH", "STATS", "SESSION", "LOGOUT", "SYNC"
+    };
+    private static final Metrics.Histogram[] COMMAND_TIMES = new Metrics.Histogram[COMMAND_NAMES.length];
+    static {
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            COMMAND_TIMES[i] = METRICS.histogram("command." + COMMAND_NAMES[i]);
+        }
+    }
+    // anything else on the string path is a CONNECT (mailbox load); bare Email objects are deliveries
+    private static final Metrics.Histogram CONNECT_TIME = METRICS.histogram("command.CONNECT");
+    private static final Metrics.Histogram EMAIL_TIME = METRICS.histogram("command.EMAIL");
+    private static final Metrics.Counter COMMAND_ERRORS = METRICS.counter("commands.errors");
+    private static final Metrics.Counter CONNECTIONS = METRICS.counter("connections.accepted");
+    private static final Metrics.Histogram DELIVERY_TIME = METRICS.histogram("delivery.latency");
+    private static final Metrics.Counter DELIVERED = METRICS.counter("delivery.messages");
+    private static final Metrics.Counter DELIVERED_RECIPIENTS = METRICS.counter("delivery.recipients");
+    private static final Metrics.Counter DELIVERY_FAILURES = METRICS.counter("delivery.failures");
+
+    // how client connections are served
+    public enum IoMode {
+        // one blocking handler thread per connection
+        THREADED,
+        // a few selector event loops plus a fixed worker pool for request handling
+        NIO,
+        // one blocking handler per connection, each on its own virtual thread
+        VIRTUAL;
+
+        // parses the email.server.io startup switch, defaulting to threaded mode
+        static IoMode fromProperty() {
+            String value = System.getProperty("email.server.io", "threaded");
+            try {
+                return IoMode.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                Log.warn("Unknown server io mode '{}', using threaded", value);
+                return THREADED;
+            }
+        }
+    }
+
     // private constructor for singleton pattern
     private EmailServer(boolean isServerMode) {
         this.isServerMode = isServerMode;
-        this.userFolders = new ConcurrentHashMap<>();
+        this.ioMode = IoMode.fromProperty();
+        this.mailboxCache = new MailboxCache(MAILBOX_CACHE_USERS, MAILBOX_CACHE_HEADERS,
+            user -> clientChannels != null && clientChannels.containsKey(user), this::loadMailbox);
         this.userService = UserService.getInstance();
         this.folderService = FolderService.getInstance();
         this.emailService = EmailService.getInstance();
         
         if (isServerMode) {
-            this.clientOutputStreams = new ConcurrentHashMap<>();
-            this.executorService = Executors.newCachedThreadPool();
+            this.clientChannels = new ConcurrentHashMap<>();
+            this.deliveryExecutor = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+            this.outboundWriters = Executors.newFixedThreadPool(
+                Integer.getInteger("email.server.writerThreads", Math.max(2, Runtime.getRuntime().availableProcessors())),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "outbound-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            if (ioMode == IoMode.VIRTUAL) {
+                this.requestExecutor = newVirtualThreadExecutor();
+            } else {
+                this.requestExecutor = Executors.newFixedThreadPool(
+                    Integer.getInteger("email.server.requestThreads", 64),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "request-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            }
+            if (ioMode == IoMode.THREADED) {
+                this.executorService = Executors.newCachedThreadPool();
+            } else if (ioMode == IoMode.VIRTUAL) {
+                this.executorService = newVirtualThreadExecutor();
+            }
             // init database
             try {
                 DatabaseInit.initDB();
             } catch (SQLException e) {
-                System.out.println("Database initialization failed: " + e.getMessage());
-                e.printStackTrace();
+                Log.error("Database initialization failed: {}", e.getMessage(), e);
             }
         }
     }
 
-    // creates default folders for a new user
-    private void initializeUserFolders(String email) throws SQLException {
+    // virtual threads need java 21; older runtimes fall back to the cached pool
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads are not available on this JVM, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // builds a user's mailbox on a cache miss, creating the default folders if they are missing
+    private Mailbox loadMailbox(String email) throws SQLException {
         // Create default folders in database
         folderService.createDefaultFolders(email);
         
         // Initialize in-memory folder structure
-        Map<String, Folder> folders = new HashMap<>();
-        folders.put("inbox", new Folder("inbox", true));
-        folders.put("spam", new Folder("spam", true));
-        userFolders.put(email, folders);
+        Mailbox mailbox = new Mailbox();
+        mailbox.addFolder(new Folder("inbox", true));
+        mailbox.addFolder(new Folder("spam", true));
         
         // Load existing emails from database into memory
-        loadUserEmails(email);
+        loadUserEmails(email, mailbox);
+        return mailbox;
     }
 
-    // loads user's emails from database into memory
-    private void loadUserEmails(String email) throws SQLException {
-        Map<String, Folder> folders = userFolders.get(email);
-        if (folders == null) return;
-
-        System.out.println("\n=== Loading Emails for " + email + " ===");
+    // loads the newest page of email headers of each folder into memory
+    private void loadUserEmails(String email, Mailbox mailbox) throws SQLException {
+        Log.debug("Loading emails for {}", email);
         // Get all folders for the user
         List<Folder> dbFolders = folderService.getFoldersByUser(email);
-        System.out.println("Found " + dbFolders.size() + " folders in database");
-        
+
+        boolean trace = Log.isTraceEnabled();
         for (Folder dbFolder : dbFolders) {
-            System.out.println("Processing folder: " + dbFolder.getName() + " (ID: " + dbFolder.getId() + ")");
-            // Get emails for each folder
-            List<Email> emails = emailService.getEmailsByFolder(dbFolder.getId());
-            System.out.println("Found " + emails.size() + " emails in folder");
-            
+            // Get the newest headers of each folder; bodies stay in the database until opened
+            List<Email> emails = emailService.getEmailHeadersPage(dbFolder.getId(), 0, PAGE_SIZE);
+            if (Log.isDebugEnabled()) {
+                Log.debug("Loaded {} email headers from folder {} (id {})", emails.size(), dbFolder.getName(),
+                    dbFolder.getId());
+            }
+
             // Add emails to in-memory folder
-            Folder memFolder = folders.get(dbFolder.getName());
+            Folder memFolder = mailbox.getFolder(dbFolder.getName());
             if (memFolder != null) {
                 memFolder.setId(dbFolder.getId());  // Set the folder ID
-                System.out.println("Setting memory folder ID to: " + dbFolder.getId());
                 for (Email emailObj : emails) {
-                    memFolder.addEmail(emailObj);
-                    System.out.println("Added email: " + emailObj.getSubject() + " (ID: " + emailObj.getId() + ")");
+                    mailbox.addEmail(memFolder, emailObj);
+                    if (trace) {
+                        Log.trace("Added email {} (id {})", emailObj.getSubject(), emailObj.getId());
+                    }
                 }
             } else {
-                System.err.println("Memory folder not found for: " + dbFolder.getName());
+                Log.warn("Memory folder not found for: {}", dbFolder.getName());
             }
         }
-        System.out.println("=== Email Loading Complete ===\n");
     }
 
     // returns singleton instance in server mode
@@ -111,11 +220,19 @@ public class EmailServer {
     // starts the email server
     public void start() {
         if (!isServerMode) return;
-        
+
+        registerGauges();
+        METRICS.startDump();
+
+        if (ioMode == IoMode.NIO) {
+            startNio();
+            return;
+        }
+
         try {
             serverSocket = new ServerSocket(PORT);
             running = true;
-            System.out.println("Email server started on port " + PORT);
+            Log.info("Email server started on port {} ({})", PORT, ioMode.name().toLowerCase());
 
             // accept client connections in separate thread
             new Thread(() -> {
@@ -125,15 +242,52 @@ public class EmailServer {
                         handleNewConnection(clientSocket);
                     } catch (IOException e) {
                         if (running) {
-                            e.printStackTrace();
+                            Log.error("Error accepting connection: {}", e.getMessage(), e);
                         }
                     }
                 }
             }).start();
 
         } catch (IOException e) {
-            System.out.println("Could not start server: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("Could not start server: {}", e.getMessage(), e);
+        }
+    }
+
+    // starts the selector-based engine; event loop and worker counts come from system properties
+    private void startNio() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int ioThreads = Integer.getInteger("email.server.ioThreads", Math.max(1, cores / 2));
+        int workerThreads = Integer.getInteger("email.server.workerThreads", Math.max(4, cores * 2));
+
+        nioEngine = new NioServerEngine(PORT, ioThreads, workerThreads, (in, out) -> {
+            MessageChannel channel = new QueuedMessageChannel(MessageChannel.accept(in, out), outboundWriters);
+            CONNECTIONS.increment();
+            return new NioServerEngine.Session() {
+                @Override
+                public void processNext() throws Exception {
+                    handleClientObject(channel.readMessage(), channel);
+                }
+
+                @Override
+                public int available() throws IOException {
+                    return channel.available();
+                }
+
+                @Override
+                public void closed() {
+                    handleDisconnect(channel);
+                }
+            };
+        });
+
+        try {
+            running = true;
+            nioEngine.start();
+            Log.info("Email server started on port {} (nio, {} event loops, {} workers)", PORT, ioThreads,
+                workerThreads);
+        } catch (IOException e) {
+            running = false;
+            Log.error("Could not start server: {}", e.getMessage(), e);
         }
     }
 
@@ -141,94 +295,314 @@ public class EmailServer {
     private void handleNewConnection(Socket clientSocket) {
         if (!isServerMode) return;
         
+        CONNECTIONS.increment();
         executorService.submit(() -> {
+            int active = activeSessions.incrementAndGet();
+            peakSessions.accumulateAndGet(active, Math::max);
+            MessageChannel channel = null;
             try {
-                ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-                out.flush();
-                ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
+                channel = new QueuedMessageChannel(
+                    MessageChannel.accept(clientSocket.getInputStream(), clientSocket.getOutputStream()),
+                    outboundWriters);
 
                 while (running) {
                     try {
-                        Object obj = in.readObject();
-                        if (obj instanceof String) {
-                            String command = (String) obj;
-                            if (command.startsWith("LOGIN:")) {
-                                handleLogin(command.substring(6), in, out);
-                            } else if (command.startsWith("REGISTER:")) {
-                                handleRegister(command.substring(9), in, out);
-                            } else if (command.startsWith("SEND_EMAIL:")) {
-                                handleSendEmail(command.substring(11), in, out);
-                            } else {
-                                handleCommand(command, out);
-                            }
-                        } else if (obj instanceof Email) {
-                            Email email = (Email) obj;
-                            System.out.println("Received email directly:");
-                            System.out.println("From: " + email.getFrom());
-                            System.out.println("To: " + email.getTo());
-                            System.out.println("Subject: " + email.getSubject());
-                            deliverEmail(email);
-                            // Send acknowledgment
-                            out.writeObject("SEND_SUCCESS");
-                            out.flush();
-                        }
+                        handleClientObject(channel.readMessage(), channel);
                     } catch (EOFException | SocketException e) {
                         break;  // client disconnected
                     }
                 }
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Error handling client connection: {}", e.getMessage(), e);
             } finally {
+                activeSessions.decrementAndGet();
+                if (channel != null) {
+                    handleDisconnect(channel);
+                }
                 try {
                     clientSocket.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Error closing client socket: {}", e.getMessage(), e);
                 }
             }
         });
     }
 
-    // handles email sending command
-    private void handleSendEmail(String emailData, ObjectInputStream in, ObjectOutputStream out) throws IOException {
+    // unregisters a closed connection so its user's mailbox becomes evictable again
+    private void handleDisconnect(MessageChannel channel) {
+        Session session = channelSessions.remove(channel);
+        if (session != null) {
+            session.detach(channel);
+        }
+        if (clientChannels.values().removeIf(registered -> registered == channel)) {
+            mailboxCache.cleanUp();
+        }
+    }
+
+    // hit, miss and eviction counters of the mailbox cache
+    public String getMailboxCacheStats() {
+        return mailboxCache.getStats();
+    }
+
+    // queue, write, flush and overflow counters of the outbound connection queues
+    public String getOutboundStats() {
+        int depth = 0;
+        int deepest = 0;
+        for (MessageChannel channel : clientChannels.values()) {
+            if (channel instanceof QueuedMessageChannel) {
+                int queued = ((QueuedMessageChannel) channel).getQueueDepth();
+                depth += queued;
+                deepest = Math.max(deepest, queued);
+            }
+        }
+        return QueuedMessageChannel.getStats() + " connectedDepth=" + depth + " maxDepth=" + deepest;
+    }
+
+    // returns the number of currently connected client sessions
+    public int getActiveSessions() {
+        return nioEngine != null ? nioEngine.getOpenConnections() : activeSessions.get();
+    }
+
+    // returns the highest number of concurrent client sessions since startup
+    public int getPeakSessions() {
+        return nioEngine != null ? nioEngine.getPeakConnections() : peakSessions.get();
+    }
+
+    // gauges read whenever metrics are rendered or dumped
+    private void registerGauges() {
+        METRICS.gauge("sessions.active", this::getActiveSessions);
+        METRICS.gauge("sessions.peak", this::getPeakSessions);
+        METRICS.gauge("sessions.loggedIn", this::getSessionCount);
+        METRICS.gauge("outbound.queued", QueuedMessageChannel::getQueuedTotal);
+        METRICS.gauge("writePipeline.depth", emailService::getPendingWrites);
+        METRICS.gauge("db.pool.active", () -> DatabaseConnection.getInstance().getActiveCount());
+        METRICS.gauge("audit.queued", () -> Logger.getInstance().getQueued());
+        METRICS.gauge("mailboxCache.mailboxes", mailboxCache::size);
+        METRICS.gauge("mailboxCache.headers", mailboxCache::getTotalWeight);
+        METRICS.gauge("mailboxCache.heapBytes", mailboxCache::estimateHeapBytes);
+        METRICS.gauge("jvm.heap.used", () -> Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+    }
+
+    // metrics plus the component counters, as returned by STATS
+    public String getStats() {
+        return METRICS.render()
+            + "db.pool " + DatabaseConnection.getInstance().getPoolStats() + "\n"
+            + "outbound " + getOutboundStats() + "\n"
+            + "mailboxCache " + getMailboxCacheStats() + "\n"
+            + "audit " + Logger.getInstance().getStats() + "\n";
+    }
+
+    // returns the connection engine this server was started with
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    // handles one request received from a client; shared by every connection engine
+    // untagged requests are answered inline, in order. a request preceded by TAG:id is handed to the
+    // request pool and answered with REPLY:id:count whenever it finishes, so a client can pipeline
+    // many requests on one connection and get the fast ones back first
+    private void handleClientObject(Object obj, MessageChannel channel)
+            throws IOException {
+        if (obj instanceof String && ((String) obj).startsWith("TAG:") && channel instanceof QueuedMessageChannel) {
+            handleTagged(Integer.parseInt(((String) obj).substring(4)), (QueuedMessageChannel) channel);
+            return;
+        }
+        handleRequest(obj, readAttachment(obj, channel), channel);
+    }
+
+    // reads the tagged request and its attachment on the connection's reader, then runs it on the pool
+    private void handleTagged(int tag, QueuedMessageChannel channel) throws IOException {
+        Object request;
+        try {
+            request = channel.readMessage();
+        } catch (ClassNotFoundException e) {
+            throw new StreamCorruptedException("Unknown request type: " + e.getMessage());
+        }
+        Object attachment = readAttachment(request, channel);
+
+        channel.acquireRequestSlot();
+        try {
+            requestExecutor.execute(() -> {
+                channel.beginReply(tag);
+                try {
+                    handleRequest(request, attachment, channel);
+                } catch (IOException e) {
+                    // the reply could not be queued; drop the connection like the inline path does
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // already closing
+                    }
+                } catch (RuntimeException e) {
+                    Log.error("Error handling tagged request {}", tag, e);
+                    channel.discardReply();
+                    replyFailed(channel, e);
+                } finally {
+                    channel.endReply();
+                    channel.releaseRequestSlot();
+                    // a CONNECT finishing after the client left must not keep the mailbox pinned
+                    if (channel.isClosed()) {
+                        handleDisconnect(channel);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            channel.releaseRequestSlot();
+            throw new IOException("Server is shutting down", e);
+        }
+    }
+
+    // answers a tagged request whose handler failed, so the client doesn't wait for its timeout
+    private static void replyFailed(MessageChannel channel, RuntimeException cause) {
+        try {
+            channel.writeMessage("REQUEST_FAILED:" + cause.getClass().getSimpleName());
+            channel.flush();
+        } catch (IOException e) {
+            // the connection is gone
+        }
+    }
+
+    // the email that follows SEND_EMAIL, read together with the command so both can go to a worker
+    private static Object readAttachment(Object request, MessageChannel channel) throws IOException {
+        if (!(request instanceof String) || !((String) request).startsWith("SEND_EMAIL:")) {
+            return null;
+        }
+        try {
+            return channel.readMessage();
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    // times one request and dispatches it to its handler
+    private void handleRequest(Object obj, Object attachment, MessageChannel channel) throws IOException {
+        long start = System.nanoTime();
+        Metrics.Histogram timer = obj instanceof String ? commandTimer((String) obj) : EMAIL_TIME;
+        try {
+            dispatch(obj, attachment, channel);
+        } catch (IOException | RuntimeException e) {
+            COMMAND_ERRORS.increment();
+            throw e;
+        } finally {
+            timer.recordSince(start);
+        }
+    }
+
+    // latency histogram of the command a request starts with
+    private static Metrics.Histogram commandTimer(String command) {
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            String name = COMMAND_NAMES[i];
+            if (command.startsWith(name)
+                    && (command.length() == name.length() || command.charAt(name.length()) == ':')) {
+                return COMMAND_TIMES[i];
+            }
+        }
+        return CONNECT_TIME;
+    }
+
+    private void dispatch(Object obj, Object attachment, MessageChannel channel) throws IOException {
+        if (obj instanceof String) {
+            String command = (String) obj;
+            if (command.startsWith("LOGIN:")) {
+                handleLogin(command.substring(6), channel);
+            } else if (command.startsWith("REGISTER:")) {
+                handleRegister(command.substring(9), channel);
+            } else if (command.startsWith("SEND_EMAIL:")) {
+                handleSendEmail(attachment, channel);
+            } else {
+                handleCommand(command, channel);
+            }
+        } else if (obj instanceof Email) {
+            Email email = (Email) obj;
+            Log.debug("Received email directly from {} to {}", email.getFrom(), email.getTo());
+            if (authorize(channel, email.getFrom(), "SEND_FAILED") == null) {
+                return;
+            }
+            String error = awaitDelivery(deliverEmail(email));
+            // Send acknowledgment
+            channel.writeMessage(error == null ? "SEND_SUCCESS" : "SEND_FAILED:" + error);
+            channel.flush();
+        }
+    }
+
+    // handles email sending command; obj is the message that followed SEND_EMAIL
+    private void handleSendEmail(Object obj, MessageChannel channel) throws IOException {
         try {
-            // Wait for the Email object
-            Object obj = in.readObject();
             if (obj instanceof Email) {
                 Email email = (Email) obj;
-                deliverEmail(email);
-                out.writeObject("SEND_SUCCESS");
+                // only the logged-in user can send, and only as themselves
+                if (authorize(channel, email.getFrom(), "SEND_FAILED") == null) {
+                    return;
+                }
+                String error = awaitDelivery(deliverEmail(email));
+                channel.writeMessage(error == null ? "SEND_SUCCESS" : "SEND_FAILED:" + error);
             } else {
-                out.writeObject("SEND_FAILED:Invalid email data");
+                channel.writeMessage("SEND_FAILED:Invalid email data");
             }
-            out.flush();
+            channel.flush();
         } catch (Exception e) {
-            out.writeObject("SEND_FAILED:" + e.getMessage());
-            out.flush();
-            e.printStackTrace();
+            channel.writeMessage("SEND_FAILED:" + e.getMessage());
+            channel.flush();
+            Log.error("Error sending email: {}", e.getMessage(), e);
         }
     }
 
     // routes commands to appropriate handlers
-    private void handleCommand(String command, ObjectOutputStream out) throws IOException {
+    private void handleCommand(String command, MessageChannel channel) throws IOException {
         if (command.startsWith("MOVE_EMAIL:")) {
-            handleMoveEmail(command, out);
+            handleMoveEmail(command, channel);
         } else if (command.startsWith("DELETE_EMAIL:")) {
-            handleDeleteEmail(command, out);
+            handleDeleteEmail(command, channel);
         } else if (command.startsWith("MARK_READ:")) {
-            handleMarkEmail(command, true, out);
+            handleMarkEmail(command, true, channel);
         } else if (command.startsWith("MARK_UNREAD:")) {
-            handleMarkEmail(command, false, out);
-        } else {
-            handleEmailConnection(command, out);
+            handleMarkEmail(command, false, channel);
+        } else if (command.startsWith("FETCH_EMAIL:")) {
+            handleFetchEmail(command, channel);
+        } else if (command.startsWith("FETCH_PAGE:")) {
+            handleFetchPage(command, channel);
+        } else if (command.startsWith("SEARCH:")) {
+            handleSearch(command, channel);
+        } else if (command.equals("STATS")) {
+            channel.writeMessage("STATS_SUCCESS:" + getStats());
+            channel.flush();
+        } else if (command.startsWith("SESSION:")) {
+            handleSession(command.substring(8), channel);
+        } else if (command.startsWith("LOGOUT:")) {
+            handleLogout(command.substring(7), channel);
+        } else if (command.startsWith("SYNC:")) {
+            handleSync(command, channel);
+        } else if (authorize(channel, command, "CONNECT_FAILED") != null) {
+            // a bare-email CONNECT opens the mailbox of the user logged in on this connection
+            handleEmailConnection(command, channel, -1);
         }
     }
 
+    // the user logged in on this connection, if a request names that same user; otherwise answers
+    // <failure>:Not logged in or <failure>:Access denied and returns null. requests name their user
+    // for older clients, but only the session decides whose mailbox they touch
+    private String authorize(MessageChannel channel, String requestedUser, String failure) throws IOException {
+        Session session = channelSessions.get(channel);
+        String error = null;
+        if (session == null || sessions.get(session.token) != session) {
+            error = "Not logged in";
+        } else if (!session.email.equals(requestedUser)) {
+            error = "Access denied";
+        }
+        if (error != null) {
+            channel.writeMessage(failure + ":" + error);
+            channel.flush();
+            return null;
+        }
+        return session.email;
+    }
+
     // authenticates user login attempt
-    private void handleLogin(String credentials, ObjectInputStream in, ObjectOutputStream out) throws IOException {
+    private void handleLogin(String credentials, MessageChannel channel) throws IOException {
         String[] parts = credentials.split(":");
         if (parts.length != 2) {
-            out.writeObject("LOGIN_FAILED:Invalid credentials");
-            out.flush();
+            channel.writeMessage("LOGIN_FAILED:Invalid credentials");
+            channel.flush();
             return;
         }
         String email = parts[0];
@@ -237,32 +611,32 @@ public class EmailServer {
         try {
             User user = userService.getUserByEmail(email);
             if (user != null && user.getPassword().equals(password)) {
-                // Initialize user folders if not already done
-                if (!userFolders.containsKey(email)) {
-                    initializeUserFolders(email);
-                }
+                // Add to connected clients first so the mailbox is pinned once loaded
+                clientChannels.put(email, channel);
+                // Load the user's mailbox if it is not cached
+                mailboxCache.get(email);
                 // Update last login time
                 user.updateLastLogin();
                 userService.updateLastLogin(user);
-                // Add to connected clients
-                clientOutputStreams.put(email, out);
                 
-                out.writeObject("LOGIN_SUCCESS");
-                out.writeObject(user);
-                out.flush();
+                // the token lets the mailbox attach to this same connection (or a later one) without
+                // sending the password again
+                channel.writeMessage("LOGIN_SUCCESS:" + startSession(email, channel));
+                channel.writeMessage(user);
+                channel.flush();
             } else {
-                out.writeObject("LOGIN_FAILED:Invalid email or password");
-                out.flush();
+                channel.writeMessage("LOGIN_FAILED:Invalid email or password");
+                channel.flush();
             }
         } catch (SQLException e) {
-            out.writeObject("LOGIN_FAILED:Database error");
-            out.flush();
-            e.printStackTrace();
+            channel.writeMessage("LOGIN_FAILED:Database error");
+            channel.flush();
+            Log.error("Database error during login: {}", e.getMessage(), e);
         }
     }
 
     // registers a new user
-    private void handleRegister(String userData, ObjectInputStream in, ObjectOutputStream out) throws IOException {
+    private void handleRegister(String userData, MessageChannel channel) throws IOException {
         String[] parts = userData.split(":");
         String name = parts[0];
         String email = parts[1];
@@ -271,8 +645,8 @@ public class EmailServer {
         try {
             // Check if user already exists
             if (userService.getUserByEmail(email) != null) {
-                out.writeObject("REGISTER_FAILED:Email already exists");
-                out.flush();
+                channel.writeMessage("REGISTER_FAILED:Email already exists");
+                channel.flush();
                 return;
             }
 
@@ -280,252 +654,660 @@ public class EmailServer {
             User newUser = new User(name, email, password);
             userService.createUser(newUser);
             
-            // Initialize user folders
-            initializeUserFolders(email);
+            // Create the default folders and cache the new mailbox
+            mailboxCache.get(email);
             
-            out.writeObject("REGISTER_SUCCESS");
-            out.flush();
+            channel.writeMessage("REGISTER_SUCCESS");
+            channel.flush();
         } catch (SQLException e) {
-            out.writeObject("REGISTER_FAILED:Database error");
-            out.flush();
-            e.printStackTrace();
+            channel.writeMessage("REGISTER_FAILED:Database error");
+            channel.flush();
+            Log.error("Database error during registration: {}", e.getMessage(), e);
         } catch (IllegalArgumentException e) {
-            out.writeObject("REGISTER_FAILED:" + e.getMessage());
-            out.flush();
+            channel.writeMessage("REGISTER_FAILED:" + e.getMessage());
+            channel.flush();
         }
     }
 
-    // moves an email between folders
-    private void handleMoveEmail(String emailData, ObjectOutputStream out) throws IOException {
+    // moves emails between folders; MOVE_EMAIL:user:emailIds:targetFolder
+    // emailIds is one id or a comma separated list; a list is moved in one transaction, and only if
+    // every email in it belongs to the user
+    private void handleMoveEmail(String emailData, MessageChannel channel) throws IOException {
         String[] parts = emailData.split(":");
-        String userEmail = parts[1];
-        int emailIndex = Integer.parseInt(parts[2]);
+        String userEmail = authorize(channel, parts[1], "MOVE_FAILED");
+        if (userEmail == null) {
+            return;
+        }
+        List<Integer> emailIds = parseEmailIds(parts[2]);
         String targetFolder = parts[3];
 
         try {
-            Map<String, Folder> folders = userFolders.get(userEmail);
-            if (folders != null) {
-                Email emailToMove = null;
-                Folder sourceFolder = null;
-                
-                // Find email and source folder
-                for (Folder folder : folders.values()) {
-                    List<Email> emails = folder.getEmails();
-                    if (emailIndex < emails.size()) {
-                        emailToMove = emails.get(emailIndex);
-                        sourceFolder = folder;
-                        break;
-                    }
+            Mailbox mailbox = mailboxCache.get(userEmail);
+            Folder target = mailbox.getFolder(targetFolder);
+            if (target == null || target.getId() <= 0) {
+                channel.writeMessage("MOVE_FAILED:Invalid folder");
+            } else if (emailIds == null) {
+                channel.writeMessage("MOVE_FAILED:Invalid email list");
+            } else if (!ownsEmails(mailbox, emailIds)) {
+                channel.writeMessage("MOVE_FAILED:Email not found");
+            } else {
+                // Update in database, then the cached copies of the emails that are in memory
+                if (emailIds.size() == 1) {
+                    emailService.moveEmailToFolder(emailIds.get(0), target.getId());
+                } else {
+                    emailService.moveEmailsToFolder(emailIds, target.getId());
                 }
-
-                if (emailToMove != null && sourceFolder != null && folders.containsKey(targetFolder)) {
-                    // Get target folder from database
-                    Folder dbTargetFolder = folderService.getFolderByNameAndUser(targetFolder, userEmail);
-                    if (dbTargetFolder != null) {
-                        // Update in database
-                        emailService.moveEmailToFolder(emailToMove.getId(), dbTargetFolder.getId());
-                        
-                        // Update in memory
-                        sourceFolder.removeEmail(emailToMove);
-                        emailToMove.setFolderId(dbTargetFolder.getId());
-                        emailToMove.setFolder(targetFolder);
-                        folders.get(targetFolder).addEmail(emailToMove);
-                        
-                        out.writeObject("MOVE_SUCCESS");
-                    } else {
-                        out.writeObject("MOVE_FAILED:Target folder not found in database");
+                mailboxCache.apply(userEmail, cached -> {
+                    Folder cachedTarget = cached.getFolder(targetFolder);
+                    if (cachedTarget == null) {
+                        return;
+                    }
+                    for (int emailId : emailIds) {
+                        cached.moveEmail(emailId, cachedTarget);
                     }
+                });
+                channel.writeMessage("MOVE_SUCCESS");
+            }
+        } catch (SQLException e) {
+            channel.writeMessage("MOVE_FAILED:Database error");
+            Log.error("Database error moving emails: {}", e.getMessage(), e);
+        }
+        channel.flush();
+    }
+
+    // deletes emails; DELETE_EMAIL:user:emailIds, with emailIds as in MOVE_EMAIL
+    private void handleDeleteEmail(String emailData, MessageChannel channel) throws IOException {
+        String[] parts = emailData.split(":");
+        String userEmail = authorize(channel, parts[1], "DELETE_FAILED");
+        if (userEmail == null) {
+            return;
+        }
+        List<Integer> emailIds = parseEmailIds(parts[2]);
+
+        try {
+            Mailbox mailbox = mailboxCache.get(userEmail);
+            if (emailIds == null) {
+                channel.writeMessage("DELETE_FAILED:Invalid email list");
+            } else if (ownsEmails(mailbox, emailIds)) {
+                // Delete from database, then from memory
+                if (emailIds.size() == 1) {
+                    emailService.deleteEmail(emailIds.get(0));
                 } else {
-                    out.writeObject("MOVE_FAILED:Invalid email or folder");
+                    emailService.deleteEmails(emailIds);
                 }
+                mailboxCache.apply(userEmail, cached -> {
+                    for (int emailId : emailIds) {
+                        cached.removeEmail(emailId);
+                    }
+                });
+                channel.writeMessage("DELETE_SUCCESS");
             } else {
-                out.writeObject("MOVE_FAILED:User not found");
+                channel.writeMessage("DELETE_FAILED:Email not found");
             }
         } catch (SQLException e) {
-            out.writeObject("MOVE_FAILED:Database error");
-            e.printStackTrace();
+            channel.writeMessage("DELETE_FAILED:Database error");
+            Log.error("Database error deleting emails: {}", e.getMessage(), e);
         }
-        out.flush();
+        channel.flush();
     }
 
-    // deletes an email from a folder
-    private void handleDeleteEmail(String emailData, ObjectOutputStream out) throws IOException {
+    // marks emails as read or unread; MARK_READ:user:emailIds or MARK_UNREAD:user:emailIds, with
+    // emailIds as in MOVE_EMAIL
+    private void handleMarkEmail(String emailData, boolean markAsRead, MessageChannel channel) throws IOException {
         String[] parts = emailData.split(":");
-        String userEmail = parts[1];
-        int emailIndex = Integer.parseInt(parts[2]);
+        String userEmail = authorize(channel, parts[1], "MARK_FAILED");
+        if (userEmail == null) {
+            return;
+        }
+        List<Integer> emailIds = parseEmailIds(parts[2]);
 
         try {
-            Map<String, Folder> folders = userFolders.get(userEmail);
-            if (folders != null) {
-                Email emailToDelete = null;
-                Folder sourceFolder = null;
-                
-                // Find email and its folder
-                for (Folder folder : folders.values()) {
-                    List<Email> emails = folder.getEmails();
-                    if (emailIndex < emails.size()) {
-                        emailToDelete = emails.get(emailIndex);
-                        sourceFolder = folder;
-                        break;
-                    }
-                }
-
-                if (emailToDelete != null && sourceFolder != null) {
-                    // Delete from database
-                    emailService.deleteEmail(emailToDelete.getId());
-                    
-                    // Delete from memory
-                    sourceFolder.removeEmail(emailToDelete);
-                    
-                    out.writeObject("DELETE_SUCCESS");
+            Mailbox mailbox = mailboxCache.get(userEmail);
+            if (emailIds == null) {
+                channel.writeMessage("MARK_FAILED:Invalid email list");
+            } else if (ownsEmails(mailbox, emailIds)) {
+                // Update in database, then the cached copies of the emails that are in memory
+                if (emailIds.size() == 1) {
+                    emailService.updateEmailReadStatus(emailIds.get(0), markAsRead);
                 } else {
-                    out.writeObject("DELETE_FAILED:Invalid email index");
+                    emailService.updateEmailsReadStatus(emailIds, markAsRead);
                 }
+                mailboxCache.apply(userEmail, cached -> {
+                    for (int emailId : emailIds) {
+                        cached.setRead(emailId, markAsRead);
+                    }
+                });
+                channel.writeMessage("MARK_SUCCESS");
             } else {
-                out.writeObject("DELETE_FAILED:User not found");
+                channel.writeMessage("MARK_FAILED:Email not found");
             }
         } catch (SQLException e) {
-            out.writeObject("DELETE_FAILED:Database error");
-            e.printStackTrace();
+            channel.writeMessage("MARK_FAILED:Database error");
+            Log.error("Database error marking emails: {}", e.getMessage(), e);
         }
-        out.flush();
+        channel.flush();
     }
 
-    // marks an email as read or unread
-    private void handleMarkEmail(String emailData, boolean markAsRead, ObjectOutputStream out) throws IOException {
-        String[] parts = emailData.split(":");
-        String userEmail = parts[1];
-        int emailIndex = Integer.parseInt(parts[2]);
+    // parses one email id or a comma separated list of distinct ids; null if malformed or longer
+    // than MAX_BULK_EMAILS
+    private static List<Integer> parseEmailIds(String ids) {
+        String[] values = ids.split(",");
+        if (values.length > MAX_BULK_EMAILS) {
+            return null;
+        }
+        Set<Integer> emailIds = new LinkedHashSet<>();
+        try {
+            for (String value : values) {
+                emailIds.add(Integer.parseInt(value.trim()));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new ArrayList<>(emailIds);
+    }
 
+    // true if every email is in one of the user's folders; cached headers answer from the id index,
+    // older emails (outside the cached page) are checked with one header lookup for all of them
+    private boolean ownsEmails(Mailbox mailbox, List<Integer> emailIds) throws SQLException {
+        List<Integer> uncached = new ArrayList<>();
+        for (int emailId : emailIds) {
+            if (mailbox.getEmail(emailId) == null) {
+                uncached.add(emailId);
+            }
+        }
+        if (uncached.isEmpty()) {
+            return true;
+        }
+        List<Email> headers = emailService.getEmailHeaders(uncached);
+        if (headers.size() != uncached.size()) {
+            return false;
+        }
+        for (Email header : headers) {
+            if (mailbox.getFolderById(header.getFolderId()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // sends the full email (with content) for FETCH_EMAIL:user:id
+    // the email goes out before the status so the client has merged it when the status arrives
+    private void handleFetchEmail(String command, MessageChannel channel) throws IOException {
+        String[] parts = command.split(":");
+        if (parts.length != 3) {
+            channel.writeMessage("FETCH_FAILED:Malformed fetch");
+            channel.flush();
+            return;
+        }
+        String userEmail = authorize(channel, parts[1], "FETCH_FAILED");
+        if (userEmail == null) {
+            return;
+        }
+        int emailId;
         try {
-            Map<String, Folder> folders = userFolders.get(userEmail);
-            if (folders != null) {
-                Email emailToMark = null;
-                
-                // Find email in any folder
-                for (Folder folder : folders.values()) {
-                    List<Email> emails = folder.getEmails();
-                    if (emailIndex < emails.size()) {
-                        emailToMark = emails.get(emailIndex);
-                        break;
-                    }
-                }
+            emailId = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            channel.writeMessage("FETCH_FAILED:Malformed fetch");
+            channel.flush();
+            return;
+        }
 
-                if (emailToMark != null) {
-                    // Update in database
-                    emailService.updateEmailReadStatus(emailToMark.getId(), markAsRead);
-                    
-                    // Update in memory
-                    emailToMark.setRead(markAsRead);
-                    
-                    out.writeObject("MARK_SUCCESS");
-                } else {
-                    out.writeObject("MARK_FAILED:Invalid email index");
+        try {
+            Mailbox mailbox = mailboxCache.get(userEmail);
+            Email email = emailService.getEmailById(emailId);
+            Folder folder = email != null ? mailbox.getFolderById(email.getFolderId()) : null;
+            if (folder != null) {
+                email.setFolder(folder.getName());
+                channel.writeMessage(email);
+                channel.writeMessage("FETCH_SUCCESS");
+            } else {
+                channel.writeMessage("FETCH_FAILED:Email not found");
+            }
+        } catch (SQLException e) {
+            channel.writeMessage("FETCH_FAILED:Database error");
+            Log.error("Database error fetching email: {}", e.getMessage(), e);
+        }
+        channel.flush();
+    }
+
+    // sends one page of headers older than beforeId for FETCH_PAGE:user:folder:beforeId:limit
+    // pages are read straight from the database and are not kept in server memory
+    private void handleFetchPage(String command, MessageChannel channel) throws IOException {
+        String[] parts = command.split(":");
+        if (parts.length != 5) {
+            channel.writeMessage("PAGE_FAILED:Malformed page request");
+            channel.flush();
+            return;
+        }
+        String userEmail = authorize(channel, parts[1], "PAGE_FAILED");
+        if (userEmail == null) {
+            return;
+        }
+        String folderName = parts[2];
+        int beforeId;
+        int limit;
+        try {
+            beforeId = Integer.parseInt(parts[3]);
+            limit = Math.max(1, Math.min(Integer.parseInt(parts[4]), PAGE_SIZE * 10));
+        } catch (NumberFormatException e) {
+            channel.writeMessage("PAGE_FAILED:Malformed page request");
+            channel.flush();
+            return;
+        }
+
+        try {
+            Folder folder = mailboxCache.get(userEmail).getFolder(folderName);
+            if (folder != null && folder.getId() > 0) {
+                List<Email> page = emailService.getEmailHeadersPage(folder.getId(), beforeId, limit);
+                for (Email header : page) {
+                    header.setFolder(folderName);
+                    channel.writeMessage(header);
                 }
+                channel.writeMessage("PAGE_SUCCESS:" + page.size());
             } else {
-                out.writeObject("MARK_FAILED:User not found");
+                channel.writeMessage("PAGE_FAILED:Folder not found");
+            }
+        } catch (SQLException e) {
+            channel.writeMessage("PAGE_FAILED:Database error");
+            Log.error("Database error fetching folder page: {}", e.getMessage(), e);
+        }
+        channel.flush();
+    }
+
+    // starts a session for a user who just logged in on this connection and returns its token; logging
+    // in again on the same connection keeps the session it already has
+    private String startSession(String email, MessageChannel channel) {
+        Session current = channelSessions.get(channel);
+        if (current != null && current.email.equals(email) && sessions.get(current.token) == current) {
+            return current.token;
+        }
+        sweepSessions();
+        byte[] bytes = new byte[18];
+        TOKENS.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session session = new Session(token, email);
+        sessions.put(token, session);
+        attachSession(session, channel);
+        return token;
+    }
+
+    private void attachSession(Session session, MessageChannel channel) {
+        Session previous = channelSessions.put(channel, session);
+        if (previous != null && previous != session) {
+            previous.detach(channel);
+        }
+        session.attach(channel);
+    }
+
+    // SESSION:token[:modseq] opens the mailbox of a logged-in session on this connection. a client that
+    // still holds the mailbox as of modseq gets only the changes since then (see writeChanges); any
+    // other gets CONNECT_SUCCESS:modseq with the newest headers of each folder. a modseq that is not a
+    // number gets SESSION_FAILED
+    private void handleSession(String request, MessageChannel channel) throws IOException {
+        int colon = request.indexOf(':');
+        String token = colon < 0 ? request : request.substring(0, colon);
+        long since;
+        try {
+            since = colon < 0 ? 0 : Long.parseLong(request.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            channel.writeMessage("SESSION_FAILED:Malformed session");
+            channel.flush();
+            return;
+        }
+        Session session = sessions.get(token);
+        if (session == null || session.isExpired(System.currentTimeMillis())) {
+            if (session != null) {
+                sessions.remove(token, session);
+            }
+            channel.writeMessage("CONNECT_FAILED:Session expired, please log in again");
+            channel.flush();
+            return;
+        }
+        attachSession(session, channel);
+        handleEmailConnection(session.email, channel, since);
+    }
+
+    // SYNC:user:modseq sends the user's changes since modseq, or SYNC_FAILED if the client is too far
+    // behind and has to reload the mailbox
+    private void handleSync(String command, MessageChannel channel) throws IOException {
+        String[] parts = command.split(":");
+        if (parts.length != 3) {
+            channel.writeMessage("SYNC_FAILED:Malformed sync");
+            channel.flush();
+            return;
+        }
+        String userEmail = authorize(channel, parts[1], "SYNC_FAILED");
+        if (userEmail == null) {
+            return;
+        }
+        long since;
+        try {
+            since = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            channel.writeMessage("SYNC_FAILED:Malformed sync");
+            channel.flush();
+            return;
+        }
+        try {
+            if (!writeChanges(mailboxCache.get(userEmail), userEmail, since, channel)) {
+                channel.writeMessage("SYNC_FAILED:Full resync required");
             }
         } catch (SQLException e) {
-            out.writeObject("MARK_FAILED:Database error");
-            e.printStackTrace();
+            channel.writeMessage("SYNC_FAILED:Database error");
+            Log.error("Database error syncing mailbox: {}", e.getMessage(), e);
+        }
+        channel.flush();
+    }
+
+    // writes the headers of the mailbox rows changed after since, followed by
+    // SYNC_SUCCESS:modseq:deletedIds (comma separated); false, with nothing written, if since is not a
+    // sequence of this mailbox or more than SYNC_MAX_CHANGES rows changed since
+    private boolean writeChanges(Mailbox mailbox, String userEmail, long since, MessageChannel channel)
+            throws SQLException, IOException {
+        if (since <= 0) {
+            return false;
+        }
+        // read first: anything changed while the rest is read is sent again next time, never missed
+        long modseq = emailService.getModseq(userEmail);
+        if (since > modseq) {
+            return false;
+        }
+        List<EmailService.MailboxChange> changes =
+            emailService.getChangesSince(userEmail, since, SYNC_MAX_CHANGES + 1);
+        if (changes.size() > SYNC_MAX_CHANGES) {
+            return false;
+        }
+
+        List<Integer> changedIds = new ArrayList<>();
+        StringBuilder deleted = new StringBuilder();
+        for (EmailService.MailboxChange change : changes) {
+            if (change.deleted) {
+                deleted.append(deleted.length() > 0 ? "," : "").append(change.emailId);
+            } else {
+                changedIds.add(change.emailId);
+            }
+        }
+        List<Email> headers = emailService.getEmailHeaders(changedIds);
+        Set<Integer> found = new HashSet<>();
+        for (Email header : headers) {
+            Folder folder = mailbox.getFolderById(header.getFolderId());
+            if (folder != null) {
+                header.setFolder(folder.getName());
+                channel.writeMessage(header);
+                found.add(header.getId());
+            }
+        }
+        // rows deleted after the changes were read
+        for (int emailId : changedIds) {
+            if (!found.contains(emailId)) {
+                deleted.append(deleted.length() > 0 ? "," : "").append(emailId);
+            }
+        }
+        channel.writeMessage("SYNC_SUCCESS:" + modseq + ":" + deleted);
+        return true;
+    }
+
+    // LOGOUT:token ends a session; the connection stays open and can log in again
+    private void handleLogout(String token, MessageChannel channel) throws IOException {
+        Session session = sessions.remove(token);
+        if (session != null) {
+            channelSessions.remove(channel, session);
+            if (clientChannels.remove(session.email, channel)) {
+                mailboxCache.cleanUp();
+            }
+        }
+        channel.writeMessage("LOGOUT_SUCCESS");
+        channel.flush();
+    }
+
+    // drops sessions that have had no connection for longer than their ttl; runs at most once a minute
+    private void sweepSessions() {
+        long now = System.currentTimeMillis();
+        if (now - lastSessionSweep < 60_000) {
+            return;
         }
-        out.flush();
+        lastSessionSweep = now;
+        sessions.values().removeIf(session -> session.isExpired(now));
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
     }
 
     // handles client connection to email server
-    private void handleEmailConnection(String email, ObjectOutputStream out) throws IOException {
+    // since < 0 is a bare-email CONNECT, answered with a plain CONNECT_SUCCESS for older clients
+    private void handleEmailConnection(String email, MessageChannel channel, long since) throws IOException {
         try {
-            if (userFolders.containsKey(email)) {
-                clientOutputStreams.put(email, out);
-                out.writeObject("CONNECT_SUCCESS");
+            if (userService.getUserByEmail(email) != null) {
+                // register first so the mailbox is pinned as soon as it is loaded
+                clientChannels.put(email, channel);
+                Mailbox mailbox = mailboxCache.get(email);
+                if (since > 0 && writeChanges(mailbox, email, since, channel)) {
+                    channel.flush();
+                    return;
+                }
+                // the sequence is read before the headers, like writeChanges does
+                long modseq = since < 0 ? 0 : emailService.getModseq(email);
+                channel.writeMessage(since < 0 ? "CONNECT_SUCCESS" : "CONNECT_SUCCESS:" + modseq);
                 
-                // Send existing emails to the client
-                Map<String, Folder> folders = userFolders.get(email);
-                for (Folder folder : folders.values()) {
-                    for (Email emailObj : folder.getEmails()) {
-                        out.writeObject(emailObj);
+                // Send the loaded headers to the client; bodies are fetched when opened
+                for (Folder folder : mailbox.getFolders()) {
+                    Collection<Email> emails = folder.getEmails();
+                    if (!channel.supportsHeaderOnly()) {
+                        emails = withBodies(emails, folder.getName());
+                    }
+                    for (Email emailObj : emails) {
+                        channel.writeMessage(emailObj);
                     }
                 }
-                out.flush();
+                channel.flush();
             } else {
-                out.writeObject("CONNECT_FAILED:User not found");
-                out.flush();
+                channel.writeMessage("CONNECT_FAILED:User not found");
+                channel.flush();
             }
         } catch (Exception e) {
-            System.err.println("Error handling email connection: " + e.getMessage());
-            e.printStackTrace();
-            out.writeObject("CONNECT_FAILED:Server error");
-            out.flush();
+            Log.error("Error handling email connection: {}", e.getMessage(), e);
+            channel.writeMessage("CONNECT_FAILED:Server error");
+            channel.flush();
         }
     }
 
-    // delivers an email to recipient's inbox
-    public void deliverEmail(Email email) {
-        System.out.println("\n=== Delivering Email ===");
-        System.out.println("From: " + email.getFrom());
-        System.out.println("To: " + email.getTo());
-        System.out.println("Subject: " + email.getSubject());
-        
-        String recipient = email.getTo();
-        Map<String, Folder> recipientFolders = userFolders.get(recipient);
-        
+    // full copies of cached headers, for clients that can't fetch bodies themselves
+    private List<Email> withBodies(Collection<Email> headers, String folderName) throws SQLException {
+        List<Integer> ids = new ArrayList<>(headers.size());
+        for (Email header : headers) {
+            ids.add(header.getId());
+        }
+        List<Email> emails = emailService.getEmails(ids);
+        for (Email email : emails) {
+            email.setFolder(folderName);
+        }
+        return emails;
+    }
+
+    // answers SEARCH:user:folder:offset:limit:query with one page of ranked results: the matching
+    // headers, best first, followed by SEARCH_SUCCESS:count; an empty folder searches every folder
+    private void handleSearch(String command, MessageChannel channel) throws IOException {
+        // the query is last so it may contain ':'
+        String[] parts = command.split(":", 6);
+        if (parts.length != 6) {
+            channel.writeMessage("SEARCH_FAILED:Malformed search");
+            channel.flush();
+            return;
+        }
+        String userEmail = authorize(channel, parts[1], "SEARCH_FAILED");
+        if (userEmail == null) {
+            return;
+        }
+        String folderName = parts[2];
+        int offset;
+        int limit;
+        try {
+            offset = Math.max(0, Integer.parseInt(parts[3]));
+            limit = Math.max(1, Math.min(Integer.parseInt(parts[4]), PAGE_SIZE * 10));
+        } catch (NumberFormatException e) {
+            channel.writeMessage("SEARCH_FAILED:Malformed search");
+            channel.flush();
+            return;
+        }
+        String query = parts[5];
+
         try {
-            // Initialize recipient folders if they don't exist
-            if (recipientFolders == null) {
-                System.out.println("Initializing recipient folders");
-                initializeUserFolders(recipient);
-                recipientFolders = userFolders.get(recipient);
+            Mailbox mailbox = mailboxCache.get(userEmail);
+            int folderId = 0;
+            if (!folderName.isEmpty()) {
+                Folder folder = mailbox.getFolder(folderName);
+                if (folder == null || folder.getId() <= 0) {
+                    channel.writeMessage("SEARCH_FAILED:Folder not found");
+                    channel.flush();
+                    return;
+                }
+                folderId = folder.getId();
             }
-            
-            if (recipientFolders != null) {
-                System.out.println("Found recipient folders");
-                // Get inbox folder from database
-                Folder inboxFolder = folderService.getFolderByNameAndUser("inbox", recipient);
-                if (inboxFolder != null && inboxFolder.getId() > 0) {
-                    System.out.println("Found inbox folder with ID: " + inboxFolder.getId());
-                    // Save email to database
-                    email.setFolderId(inboxFolder.getId());
-                    int emailId = emailService.createEmail(email, inboxFolder.getId());
-                    email.setId(emailId);  // Set the generated ID
-                    System.out.println("Email saved to database with ID: " + emailId);
-                    
-                    // Add to in-memory inbox
-                    Folder inbox = recipientFolders.get("inbox");
-                    if (inbox != null) {
-                        inbox.setId(inboxFolder.getId());  // Ensure memory folder has correct ID
-                        inbox.addEmail(email);
-                        System.out.println("Email added to in-memory inbox");
-                        
-                        // notify recipient if they are connected
-                        ObjectOutputStream recipientOut = clientOutputStreams.get(recipient);
-                        if (recipientOut != null) {
-                            try {
-                                recipientOut.writeObject("NEW_EMAIL");
-                                recipientOut.writeObject(email);
-                                recipientOut.flush();
-                                System.out.println("Recipient notified of new email");
-                            } catch (IOException e) {
-                                System.err.println("Failed to notify recipient: " + e.getMessage());
-                                e.printStackTrace();
-                                clientOutputStreams.remove(recipient);
-                            }
-                        } else {
-                            System.out.println("Recipient is not connected");
-                        }
+
+            List<Integer> ids = emailService.searchEmailIds(userEmail, query, folderId, offset, limit);
+            List<Email> results = emailService.getEmailHeaders(ids);
+            for (Email header : results) {
+                Folder folder = mailbox.getFolderById(header.getFolderId());
+                if (folder != null) {
+                    header.setFolder(folder.getName());
+                }
+                channel.writeMessage(header);
+            }
+            channel.writeMessage("SEARCH_SUCCESS:" + results.size());
+        } catch (SQLException e) {
+            channel.writeMessage("SEARCH_FAILED:Database error");
+            Log.error("Database error searching emails: {}", e.getMessage(), e);
+        }
+        channel.flush();
+    }
+
+    // delivers an email to the inbox of every to, cc and bcc recipient; the body and all mailbox
+    // rows are queued on the group-commit pipeline as one message and committed together
+    // the returned future completes once the email is stored and every recipient has been notified
+    public CompletableFuture<Void> deliverEmail(Email email) {
+        Log.debug("Delivering email from {} to {}: {}", email.getFrom(), email.getTo(), email.getSubject());
+
+        // the stored and the pushed copies show the same cleaned-up address lists
+        email.normalizeAddresses();
+        List<String> recipients = email.getRecipients();
+        if (recipients.isEmpty()) {
+            DELIVERY_FAILURES.increment();
+            return CompletableFuture.failedFuture(new SQLException("No recipients"));
+        }
+
+        try {
+            // the recipients' mailboxes are not loaded just to deliver
+            List<Integer> inboxIds = new ArrayList<>(recipients.size());
+            for (String recipient : recipients) {
+                inboxIds.add(resolveInboxId(recipient));
+            }
+
+            long start = System.nanoTime();
+            return emailService.createMessageAsync(email, recipients, inboxIds)
+                .thenComposeAsync(emailIds -> notifyRecipients(email, recipients, emailIds, inboxIds), deliveryExecutor)
+                .whenComplete((done, error) -> {
+                    DELIVERY_TIME.recordSince(start);
+                    if (error == null) {
+                        DELIVERED.increment();
+                        DELIVERED_RECIPIENTS.add(recipients.size());
                     } else {
-                        System.err.println("Inbox folder not found in memory");
+                        DELIVERY_FAILURES.increment();
                     }
-                } else {
-                    System.err.println("Inbox folder not found in database or has invalid ID");
+                });
+        } catch (SQLException e) {
+            Log.error("Database error while delivering email: {}", e.getMessage(), e);
+            DELIVERY_FAILURES.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // id of the recipient's inbox, creating the default folders for a recipient that has none yet
+    private int resolveInboxId(String recipient) throws SQLException {
+        Folder inboxFolder = folderService.getFolderByNameAndUser("inbox", recipient);
+        if (inboxFolder == null) {
+            if (userService.getUserByEmail(recipient) == null) {
+                throw new SQLException("Unknown recipient " + recipient);
+            }
+            Log.debug("Initializing folders for {}", recipient);
+            folderService.createDefaultFolders(recipient);
+            inboxFolder = folderService.getFolderByNameAndUser("inbox", recipient);
+        }
+        if (inboxFolder == null || inboxFolder.getId() <= 0) {
+            Log.error("Inbox folder not found in database or has invalid ID for {}", recipient);
+            throw new SQLException("Inbox not found for " + recipient);
+        }
+        return inboxFolder.getId();
+    }
+
+    // updates each recipient's cached inbox and queues their push in parallel on the delivery pool
+    private CompletableFuture<Void> notifyRecipients(Email email, List<String> recipients, List<Integer> emailIds,
+                                                     List<Integer> inboxIds) {
+        CompletableFuture<?>[] notified = new CompletableFuture<?>[recipients.size()];
+        for (int i = 0; i < recipients.size(); i++) {
+            String recipient = recipients.get(i);
+            Email delivered = email.deliveredCopy(emailIds.get(i));
+            int inboxId = inboxIds.get(i);
+            notified[i] = CompletableFuture.runAsync(
+                () -> storeDeliveredEmail(delivered, recipient, inboxId), deliveryExecutor);
+        }
+        return CompletableFuture.allOf(notified);
+    }
+
+    // adds a committed email to the recipient's cached inbox and pushes it if they are connected
+    // the database row is already committed, so a mailbox that is not cached picks it up when loaded,
+    // and one being loaded gets it added once the load finishes
+    private void storeDeliveredEmail(Email email, String recipient, int inboxId) {
+        email.setFolder("inbox");
+        email.setFolderId(inboxId);
+
+        // only the header stays resident; the pushed copy below still carries the body
+        Email header = email.headerCopy();
+        mailboxCache.apply(recipient, recipientMailbox -> {
+            Folder inbox = recipientMailbox.getFolder("inbox");
+            if (inbox == null) {
+                return;
+            }
+            inbox.setId(inboxId);  // Ensure memory folder has correct ID
+            // a mailbox loaded after the commit already holds this email, so addEmail skips it
+            if (recipientMailbox.addEmail(inbox, header)) {
+                // older headers stay reachable via FETCH_PAGE
+                recipientMailbox.trim(inbox, PAGE_SIZE);
+            }
+        });
+
+        // notify recipient if they are connected
+        // the push is only queued here; a slow recipient never holds up the delivery thread
+        MessageChannel recipientChannel = clientChannels.get(recipient);
+        if (recipientChannel instanceof QueuedMessageChannel) {
+            if (((QueuedMessageChannel) recipientChannel).push("NEW_EMAIL", email)) {
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Email {} delivered to {}, notified", email.getId(), recipient);
                 }
             } else {
-                System.err.println("Failed to initialize recipient folders");
+                Log.warn("Outbound queue of {} is full, new email notification not sent", recipient);
             }
-        } catch (SQLException e) {
-            System.err.println("Database error while delivering email: " + e.getMessage());
-            e.printStackTrace();
+        } else if (Log.isDebugEnabled()) {
+            Log.debug("Email {} delivered to {}, not connected", email.getId(), recipient);
+        }
+    }
+
+    // waits for a delivery when acks are durable; returns the failure reason, or null on success
+    private String awaitDelivery(CompletableFuture<Void> delivery) {
+        if (!durableAck) {
+            return null;
+        }
+        try {
+            delivery.get(30, TimeUnit.SECONDS);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+        } catch (TimeoutException e) {
+            return "Timed out storing email";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "Interrupted";
         }
-        System.out.println("=== Email Delivery Complete ===\n");
     }
 
     // stops the server and cleans up resources
@@ -533,10 +1315,22 @@ public class EmailServer {
         if (!isServerMode) return;
         
         running = false;
+        METRICS.stopDump();
         try {
+            if (nioEngine != null) {
+                nioEngine.stop();
+            }
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (requestExecutor != null) {
+                requestExecutor.shutdown();
+            }
+            // commit whatever is still queued before tearing down connections
+            emailService.shutdown();
+            if (deliveryExecutor != null) {
+                deliveryExecutor.shutdown();
+            }
             if (executorService != null) {
                 executorService.shutdown();
                 try {
@@ -547,16 +1341,50 @@ public class EmailServer {
                     executorService.shutdownNow();
                 }
             }
-            for (ObjectOutputStream out : clientOutputStreams.values()) {
+            for (MessageChannel channel : clientChannels.values()) {
                 try {
-                    out.close();
+                    channel.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Error closing client channel: {}", e.getMessage(), e);
                 }
             }
-            clientOutputStreams.clear();
+            clientChannels.clear();
+            channelSessions.clear();
+            sessions.clear();
+            if (outboundWriters != null) {
+                outboundWriters.shutdown();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Error stopping server: {}", e.getMessage(), e);
+        }
+    }
+
+    // a logged-in user; it stays valid while a connection is attached and for SESSION_TTL_MS after
+    // the last one closed
+    private static final class Session {
+        final String token;
+        final String email;
+        private MessageChannel channel;
+        private long detachedAt;
+
+        Session(String token, String email) {
+            this.token = token;
+            this.email = email;
+        }
+
+        synchronized void attach(MessageChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void detach(MessageChannel channel) {
+            if (this.channel == channel) {
+                this.channel = null;
+                this.detachedAt = System.currentTimeMillis();
+            }
+        }
+
+        synchronized boolean isExpired(long now) {
+            return channel == null && now - detachedAt > SESSION_TTL_MS;
         }
     }
-} 
\ No newline at end of file
+}
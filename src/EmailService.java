@@ -1,12 +1,49 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class EmailService extends GenericDatabaseService<Email> {
     private static EmailService instance;
+    // one row per recipient mailbox, pointing at the message's shared body row
     private static final String TABLE_NAME = "emails";
+    private static final String[] EMAIL_COLUMNS = {"sender", "recipient", "subject", "folder_id", "body_id"};
+    // one row per sent message (to/cc lists), pointing at its content by hash
+    private static final String BODY_TABLE = "message_bodies";
+    private static final String[] BODY_COLUMNS = {"to_list", "cc_list", "content_hash"};
+    // content-addressed store: each distinct body text once, reference counted by triggers (migration 3)
+    private static final String CONTENT_TABLE = "body_contents";
+    private static final String[] CONTENT_COLUMNS = {"hash", "content"};
+    // mailbox rows joined with their body; all reads go through it
+    private static final String VIEW_NAME = "email_messages";
+    // everything a folder listing shows; content is left out and fetched by id when opened
+    private static final String[] HEADER_COLUMNS =
+        {"id", "sender", "recipient", "to_list", "cc_list", "subject", "timestamp", "is_read", "folder_id"};
+    // full-text search over one user's mailbox rows; owner scoping happens inside the index (migration 4)
+    // bm25 has to score every match, which is far too slow for common words in a large mailbox, so only
+    // the newest RANK_WINDOW matches are ranked (weights: owner 0, subject 3, sender 2, body 1) and any
+    // further matches follow newest first
+    private static final int RANK_WINDOW = Integer.getInteger("email.search.rankWindow", 500);
+    // %s is left empty, or filled with SEARCH_FOLDER to restrict the matches to one folder
+    private static final String SEARCH_MATCHES = "FROM email_search s%s "
+        + "WHERE email_search MATCH ('owner : u' || hex(?) || ' AND ' || ?) ORDER BY s.rowid DESC LIMIT ?";
+    private static final String SEARCH_FOLDER = " JOIN emails e ON e.id = s.rowid AND e.folder_id = ?";
+    private static final String RANKED_SQL = "SELECT rowid FROM (SELECT s.rowid, "
+        + "bm25(email_search, 0.0, 3.0, 2.0, 1.0) AS score " + SEARCH_MATCHES + ") "
+        + "ORDER BY score, rowid DESC LIMIT ? OFFSET ?";
+    private static final String RECENT_SQL = "SELECT s.rowid " + SEARCH_MATCHES + " OFFSET ?";
+    // group-commit queue for new emails, started on first use
+    private EmailWritePipeline writePipeline;
 
     private EmailService() {
         super();
@@ -19,35 +56,251 @@ public class EmailService extends GenericDatabaseService<Email> {
         return instance;
     }
 
+    // stores the email in a single mailbox (the folder of its to address) and returns the row id
     public int createEmail(Email email, int folderId) throws SQLException {
-        String[] columns = {"sender", "recipient", "subject", "content", "folder_id"};
-        Object[] values = {
-            email.getFrom(),
+        int id = writeMessages(List.of(toMessage(email, List.of(email.getTo()), List.of(folderId)))).get(0).get(0);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Created email with id {}", id);
+        }
+        return id;
+    }
+
+    // queues a message on the group-commit pipeline: the body is stored once and recipients.get(i)
+    // gets a mailbox row in folderIds.get(i), all in the same transaction
+    // completes with the mailbox row ids in recipient order
+    public CompletableFuture<List<Integer>> createMessageAsync(Email email, List<String> recipients,
+                                                               List<Integer> folderIds) {
+        return getWritePipeline().submit(toMessage(email, recipients, folderIds));
+    }
+
+    private synchronized EmailWritePipeline getWritePipeline() {
+        if (writePipeline == null) {
+            writePipeline = new EmailWritePipeline(this::writeMessages);
+        }
+        return writePipeline;
+    }
+
+    // the content-store row, the body row and one mailbox row per recipient; bcc is not part of the
+    // stored message. the hash is computed here, on the caller's thread, not on the single writer
+    private EmailWritePipeline.NewMessage toMessage(Email email, List<String> recipients, List<Integer> folderIds) {
+        String content = email.getContent() != null ? email.getContent() : "";
+        String hash = contentHash(content);
+        Object[] body = {
             email.getTo(),
-            email.getSubject(),
-            email.getContent(),
-            folderId
+            email.getCc(),
+            hash
         };
-        int id = create(TABLE_NAME, columns, values);
-        System.out.println("Created email with ID: " + id);
-        return id;
+        List<Object[]> mailboxRows = new ArrayList<>(recipients.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            mailboxRows.add(new Object[]{
+                email.getFrom(),
+                recipients.get(i),
+                email.getSubject(),
+                folderIds.get(i)
+            });
+        }
+        return new EmailWritePipeline.NewMessage(new Object[]{hash, content}, body, mailboxRows);
+    }
+
+    // sha-256 of the body text, hex encoded; the key of the content store
+    public static String contentHash(String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // stores a batch of messages in one transaction: contents not stored yet, then every body, then
+    // all mailbox rows pointing at their body; returns each message's mailbox row ids
+    // reference counts are kept by the insert triggers
+    private List<List<Integer>> writeMessages(List<EmailWritePipeline.NewMessage> messages) throws SQLException {
+        List<List<Integer>> ids = inTransaction(conn -> {
+            List<Object[]> contents = new ArrayList<>(messages.size());
+            List<Object[]> bodies = new ArrayList<>(messages.size());
+            for (EmailWritePipeline.NewMessage message : messages) {
+                contents.add(message.content);
+                bodies.add(message.body);
+            }
+            insertOrIgnoreAll(conn, CONTENT_TABLE, CONTENT_COLUMNS, contents);
+            List<Integer> bodyIds = insertAll(conn, BODY_TABLE, BODY_COLUMNS, bodies);
+
+            List<Object[]> rows = new ArrayList<>();
+            for (int i = 0; i < messages.size(); i++) {
+                for (Object[] row : messages.get(i).mailboxRows) {
+                    Object[] withBody = Arrays.copyOf(row, row.length + 1);
+                    withBody[row.length] = bodyIds.get(i);
+                    rows.add(withBody);
+                }
+            }
+            List<Integer> rowIds = insertAll(conn, TABLE_NAME, EMAIL_COLUMNS, rows);
+
+            List<List<Integer>> perMessage = new ArrayList<>(messages.size());
+            int next = 0;
+            for (EmailWritePipeline.NewMessage message : messages) {
+                int count = message.mailboxRows.size();
+                perMessage.add(rowIds.subList(next, next + count));
+                next += count;
+            }
+            return perMessage;
+        });
+
+        for (EmailWritePipeline.NewMessage message : messages) {
+            for (Object[] row : message.mailboxRows) {
+                Logger.getInstance().log("INSERT_" + TABLE_NAME + "_VALUES:" + Arrays.toString(row));
+            }
+        }
+        return ids;
+    }
+
+    // number of queued email inserts not yet committed
+    public synchronized int getPendingWrites() {
+        return writePipeline == null ? 0 : writePipeline.getQueueDepth();
+    }
+
+    // flushes queued inserts and stops the writer thread
+    public synchronized void shutdown() {
+        if (writePipeline != null) {
+            writePipeline.shutdown();
+            writePipeline = null;
+        }
     }
 
     public Email getEmailById(int emailId) throws SQLException {
-        List<Email> emails = read(TABLE_NAME, "id = ?", new Object[]{emailId}, this::mapResultSet);
+        List<Email> emails = read(VIEW_NAME, "id = ?", new Object[]{emailId}, this::mapResultSet);
         return emails.isEmpty() ? null : emails.get(0);
     }
 
+    // header-only (content is null), like every listing; bodies are fetched by id
     public List<Email> getEmailsByFolder(int folderId) throws SQLException {
-        return read(TABLE_NAME, "folder_id = ?", new Object[]{folderId}, this::mapResultSet);
+        return read(VIEW_NAME, HEADER_COLUMNS, "folder_id = ?", new Object[]{folderId}, this::mapHeader);
+    }
+
+    // ids of the user's emails matching every word of the query in subject, sender or body, best
+    // match first within the rank window and newest first after it; folderId <= 0 searches all folders
+    public List<Integer> searchEmailIds(String userEmail, String query, int folderId, int offset, int limit)
+            throws SQLException {
+        String match = toMatchExpression(query);
+        List<Integer> ids = new ArrayList<>();
+        if (match == null) {
+            return ids;
+        }
+        String folder = folderId > 0 ? SEARCH_FOLDER : "";
+        if (offset < RANK_WINDOW) {
+            int ranked = Math.min(limit, RANK_WINDOW - offset);
+            ids.addAll(query(String.format(RANKED_SQL, folder),
+                searchParams(userEmail, match, folderId, RANK_WINDOW, ranked, offset), rs -> rs.getInt(1)));
+            if (ids.size() < ranked) {
+                // fewer matches than the window holds, so there is nothing after it
+                return ids;
+            }
+        }
+        if (ids.size() < limit) {
+            // positions past the window are the same in both orders, so the newest-first query picks up there
+            ids.addAll(query(String.format(RECENT_SQL, folder),
+                searchParams(userEmail, match, folderId, limit - ids.size(), Math.max(offset, RANK_WINDOW)),
+                rs -> rs.getInt(1)));
+        }
+        return ids;
+    }
+
+    private static Object[] searchParams(String userEmail, String match, int folderId, int... limits) {
+        List<Object> params = new ArrayList<>();
+        if (folderId > 0) {
+            params.add(folderId);
+        }
+        params.add(userEmail);
+        params.add(match);
+        for (int limit : limits) {
+            params.add(limit);
+        }
+        return params.toArray();
+    }
+
+    // turns free text into an fts5 expression of quoted terms, so user input can never be parsed as
+    // query syntax; the last word matches as a prefix, for queries typed as far as the user got.
+    // null if there is nothing to search for
+    private static String toMatchExpression(String query) {
+        StringBuilder terms = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                terms.append(terms.length() > 0 ? " " : "").append('"').append(word).append('"');
+                word.setLength(0);
+            }
+        }
+        if (terms.length() == 0) {
+            return null;
+        }
+        return "{subject sender body} : (" + terms + "*)";
+    }
+
+    // header-only emails for the given ids, in the same order; ids that no longer exist are skipped
+    public List<Email> getEmailHeaders(List<Integer> emailIds) throws SQLException {
+        return getEmailsById(emailIds, HEADER_COLUMNS, this::mapHeader);
+    }
+
+    // full emails, with content, for the given ids, in the same order
+    public List<Email> getEmails(List<Integer> emailIds) throws SQLException {
+        return getEmailsById(emailIds, null, this::mapResultSet);
+    }
+
+    private List<Email> getEmailsById(List<Integer> emailIds, String[] columns, ResultSetMapper<Email> mapper)
+            throws SQLException {
+        List<Email> ordered = new ArrayList<>(emailIds.size());
+        if (emailIds.isEmpty()) {
+            return ordered;
+        }
+        StringBuilder where = new StringBuilder("id IN (");
+        for (int i = 0; i < emailIds.size(); i++) {
+            where.append(i == 0 ? "?" : ", ?");
+        }
+        where.append(")");
+        Map<Integer, Email> byId = new HashMap<>();
+        List<Email> rows = columns != null
+            ? read(VIEW_NAME, columns, where.toString(), emailIds.toArray(), mapper)
+            : read(VIEW_NAME, where.toString(), emailIds.toArray(), mapper);
+        for (Email email : rows) {
+            byId.put(email.getId(), email);
+        }
+        for (int emailId : emailIds) {
+            Email email = byId.get(emailId);
+            if (email != null) {
+                ordered.add(email);
+            }
+        }
+        return ordered;
+    }
+
+    // header-only lookup by id, e.g. to check which folder an email is in
+    public Email getEmailHeader(int emailId) throws SQLException {
+        List<Email> emails = read(VIEW_NAME, HEADER_COLUMNS, "id = ?", "id", 1, new Object[]{emailId}, this::mapHeader);
+        return emails.isEmpty() ? null : emails.get(0);
+    }
+
+    // newest-first page of header-only emails (content is null) with ids below beforeId
+    // pass beforeId <= 0 for the first page; keyset paging walks the (folder_id, id) index
+    public List<Email> getEmailHeadersPage(int folderId, int beforeId, int limit) throws SQLException {
+        if (beforeId <= 0) {
+            return read(VIEW_NAME, HEADER_COLUMNS, "folder_id = ?", "id DESC", limit,
+                new Object[]{folderId}, this::mapHeader);
+        }
+        return read(VIEW_NAME, HEADER_COLUMNS, "folder_id = ? AND id < ?", "id DESC", limit,
+            new Object[]{folderId, beforeId}, this::mapHeader);
     }
 
+    // header-only, see getEmailsByFolder
     public List<Email> getEmailsByRecipient(String recipient) throws SQLException {
-        return read(TABLE_NAME, "recipient = ?", new Object[]{recipient}, this::mapResultSet);
+        return read(VIEW_NAME, HEADER_COLUMNS, "recipient = ?", new Object[]{recipient}, this::mapHeader);
     }
 
+    // header-only, see getEmailsByFolder
     public List<Email> getEmailsBySender(String sender) throws SQLException {
-        return read(TABLE_NAME, "sender = ?", new Object[]{sender}, this::mapResultSet);
+        return read(VIEW_NAME, HEADER_COLUMNS, "sender = ?", new Object[]{sender}, this::mapHeader);
     }
 
     public void updateEmailReadStatus(int emailId, boolean isRead) throws SQLException {
@@ -62,18 +315,83 @@ public class EmailService extends GenericDatabaseService<Email> {
         update(TABLE_NAME, columns, values, "id = ?", new Object[]{emailId});
     }
 
+    // the delete triggers release the email's body and content once nothing references them
     public void deleteEmail(int emailId) throws SQLException {
         delete(TABLE_NAME, "id = ?", new Object[]{emailId});
     }
 
+    // moves several emails to one folder in a single transaction
+    public void moveEmailsToFolder(List<Integer> emailIds, int folderId) throws SQLException {
+        List<Object[]> values = new ArrayList<>(emailIds.size());
+        List<Object[]> whereParams = new ArrayList<>(emailIds.size());
+        for (int emailId : emailIds) {
+            values.add(new Object[]{folderId});
+            whereParams.add(new Object[]{emailId});
+        }
+        updateAll(TABLE_NAME, new String[]{"folder_id"}, values, "id = ?", whereParams);
+    }
+
+    // sets the read flag on several emails in a single transaction
+    public void updateEmailsReadStatus(List<Integer> emailIds, boolean isRead) throws SQLException {
+        List<Object[]> values = new ArrayList<>(emailIds.size());
+        List<Object[]> whereParams = new ArrayList<>(emailIds.size());
+        for (int emailId : emailIds) {
+            values.add(new Object[]{isRead ? 1 : 0});
+            whereParams.add(new Object[]{emailId});
+        }
+        updateAll(TABLE_NAME, new String[]{"is_read"}, values, "id = ?", whereParams);
+    }
+
+    // deletes several emails with one statement per chunk of ids
+    public int deleteEmails(List<Integer> emailIds) throws SQLException {
+        return deleteWhereIn(TABLE_NAME, "id", emailIds);
+    }
+
+    // the user's current modification sequence; every insert, move, read-flag change and delete in
+    // the mailbox advances it (migration 5)
+    public long getModseq(String userEmail) throws SQLException {
+        List<Long> modseq = query("SELECT modseq FROM mailbox_state WHERE user_email = ?",
+            new Object[]{userEmail}, rs -> rs.getLong(1));
+        return modseq.isEmpty() ? 0 : modseq.get(0);
+    }
+
+    // the rows of the user's mailbox changed after modseq since, oldest change first, at most limit
+    public List<MailboxChange> getChangesSince(String userEmail, long since, int limit) throws SQLException {
+        return query("SELECT email_id, modseq, deleted FROM mailbox_changes "
+                + "WHERE user_email = ? AND modseq > ? ORDER BY modseq LIMIT ?",
+            new Object[]{userEmail, since, limit},
+            rs -> new MailboxChange(rs.getInt(1), rs.getLong(2), rs.getInt(3) == 1));
+    }
+
+    // the latest change of one mailbox row
+    public static final class MailboxChange {
+        public final int emailId;
+        public final long modseq;
+        public final boolean deleted;
+
+        MailboxChange(int emailId, long modseq, boolean deleted) {
+            this.emailId = emailId;
+            this.modseq = modseq;
+            this.deleted = deleted;
+        }
+    }
+
     @Override
     protected Email mapResultSet(ResultSet rs) throws SQLException {
+        Email email = mapHeader(rs);
+        email.setContent(rs.getString("content"));
+        return email;
+    }
+
+    // maps the header columns only; the content stays null until the body is fetched
+    private Email mapHeader(ResultSet rs) throws SQLException {
         Email email = new Email(
             rs.getString("sender"),
-            rs.getString("recipient"),
+            rs.getString("to_list"),
             rs.getString("subject"),
-            rs.getString("content")
+            null
         );
+        email.setCc(rs.getString("cc_list"));
         email.setId(rs.getInt("id"));
         email.setFolderId(rs.getInt("folder_id"));
 
@@ -89,7 +407,7 @@ public class EmailService extends GenericDatabaseService<Email> {
                 LocalDateTime timestamp = LocalDateTime.parse(timestampStr.replace(" ", "T"));
                 email.setTimestamp(timestamp);
             } catch (Exception e) {
-                System.err.println("Error parsing timestamp: " + timestampStr);
+                Log.warn("Error parsing timestamp: {}", timestampStr);
                 email.setTimestamp(LocalDateTime.now());  // Fallback to current time
             }
         }
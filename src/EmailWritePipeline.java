@@ -0,0 +1,176 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// write-behind queue for new emails: a single writer thread commits queued messages in batched
+// transactions, so many deliveries share one commit (and one fsync) instead of one each
+// a message (its body plus one mailbox row per recipient) is never split across transactions
+public class EmailWritePipeline {
+    // a batch is committed once it holds this many messages or the oldest has waited this long
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("email.write.batchSize", 256);
+    private static final long MAX_DELAY_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("email.write.maxDelayMs", 5));
+    // messages that may wait for the writer; a sender finding the queue full waits up to
+    // email.write.offerTimeoutMs for space and then fails, so a stalled disk slows senders down
+    // instead of growing the heap
+    private static final int QUEUE_CAPACITY = Integer.getInteger("email.write.queueCapacity", MAX_BATCH_SIZE * 16);
+    private static final long OFFER_TIMEOUT_MS = Long.getLong("email.write.offerTimeoutMs", 5_000);
+
+    // stores one batch of messages in a single transaction, returning each message's mailbox row
+    // ids in the order of its rows
+    public interface BatchWriter {
+        List<List<Integer>> write(List<NewMessage> messages) throws SQLException;
+    }
+
+    // a message to store: its content-store row, the shared body row and one mailbox row per recipient
+    public static final class NewMessage {
+        final Object[] content;
+        final Object[] body;
+        final List<Object[]> mailboxRows;
+
+        public NewMessage(Object[] content, Object[] body, List<Object[]> mailboxRows) {
+            this.content = content;
+            this.body = body;
+            this.mailboxRows = mailboxRows;
+        }
+    }
+
+    private final BatchWriter batchWriter;
+    private final BlockingQueue<PendingMessage> queue;
+    private final Thread writer;
+    private volatile boolean running;
+
+    public EmailWritePipeline(BatchWriter batchWriter) {
+        this.batchWriter = batchWriter;
+        this.queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        this.running = true;
+        this.writer = new Thread(this::runWriter, "email-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // queues a message; the future completes with the generated mailbox row ids once the batch
+    // holding it is committed. blocks while the queue is full, failing the future if no space
+    // frees up within OFFER_TIMEOUT_MS
+    public CompletableFuture<List<Integer>> submit(NewMessage message) {
+        PendingMessage pending = new PendingMessage(message);
+        if (!running) {
+            pending.future.completeExceptionally(new SQLException("Email write pipeline is stopped"));
+            return pending.future;
+        }
+        try {
+            if (!queue.offer(pending, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.warn("Email write queue is full ({} messages), rejecting email", QUEUE_CAPACITY);
+                pending.future.completeExceptionally(new SQLException("Email write queue is full"));
+                return pending.future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.future.completeExceptionally(new SQLException("Interrupted waiting for the email write queue"));
+            return pending.future;
+        }
+        // shutdown() may have run between the check and the offer; if the writer has not taken the
+        // message by now it may never do so, so fail it here
+        if (!running && queue.remove(pending)) {
+            pending.future.completeExceptionally(new SQLException("Email write pipeline is stopped"));
+        }
+        return pending.future;
+    }
+
+    // number of messages waiting to be committed
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void runWriter() {
+        List<PendingMessage> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                // keep collecting until the batch is full or the first message has waited long enough
+                long deadline = System.nanoTime() + MAX_DELAY_NANOS;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        queue.drainTo(batch, MAX_BATCH_SIZE - batch.size());
+                        break;
+                    }
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+
+                commit(batch);
+            } catch (InterruptedException e) {
+                if (!running) break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        // anything still queued after an interrupted or timed-out shutdown is never written
+        List<PendingMessage> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (PendingMessage pending : left) {
+            pending.future.completeExceptionally(new SQLException("Email write pipeline is stopped"));
+        }
+    }
+
+    // stores the whole batch in one transaction and completes each caller's future
+    // if the batch fails its messages are retried one per transaction, so a single bad message (an
+    // unknown folder, a constraint violation) fails only its own sender
+    private void commit(List<PendingMessage> batch) {
+        List<NewMessage> messages = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            messages.add(pending.message);
+        }
+
+        List<List<Integer>> ids;
+        try {
+            ids = batchWriter.write(messages);
+        } catch (SQLException | RuntimeException e) {
+            if (batch.size() == 1) {
+                batch.get(0).future.completeExceptionally(e);
+                return;
+            }
+            Log.warn("Batch of {} emails failed, retrying one by one: {}", batch.size(), e.getMessage());
+            for (PendingMessage pending : batch) {
+                commit(Collections.singletonList(pending));
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future.complete(ids.get(i));
+        }
+    }
+
+    // stops accepting messages and waits for the queued ones to be committed
+    public void shutdown() {
+        running = false;
+        try {
+            writer.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // one queued message and the future of its generated mailbox row ids
+    private static class PendingMessage {
+        final NewMessage message;
+        final CompletableFuture<List<Integer>> future;
+
+        PendingMessage(NewMessage message) {
+            this.message = message;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
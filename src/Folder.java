@@ -1,31 +1,49 @@
 import java.io.Serializable;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 // represents an email folder that can contain multiple email messages
+// emails are kept newest first, indexed by id, with a running unread count
+// changes are serialized on the folder; reads of the email order take no lock and never copy the folder
 public class Folder implements Serializable {
     // unique identifier for the folder
     private int id;
     // name of the folder (inbox, sent, trash, etc.)
     private String name;
-    // list of emails contained in this folder
-    private List<Email> emails;
+    // emails ordered newest first by (timestamp, id, insertion order); a concurrent map, so the
+    // read-only view handed out stays safe to iterate while the folder changes
+    private final ConcurrentSkipListMap<OrderKey, Email> emails;
+    // the order key each email was inserted with, so removal never scans; also counts the emails
+    private final Map<Email, OrderKey> keys;
+    // emails with a database id, by id
+    private final Map<Integer, Email> emailsById;
+    // number of unread emails, maintained on every change
+    private int unreadCount;
+    // tie-breaker for emails with the same timestamp and no id yet
+    private long nextSeq;
     // indicates if this is a system folder (inbox, spam) that cannot be deleted
     private boolean isSystem;
 
     // default constructor
     public Folder() {
-        this.id = -1;
-        this.name = "";
-        this.emails = new ArrayList<>();
-        this.isSystem = true;
+        this("", true);
     }
 
     // creates a new folder with specified name and system status
     public Folder(String name, boolean isSystem) {
         this.id = -1;
         this.name = name.toLowerCase();  // normalize folder names to lowercase
-        this.emails = new ArrayList<>();
+        this.emails = new ConcurrentSkipListMap<>();
+        this.keys = new IdentityHashMap<>();
+        this.emailsById = new HashMap<>();
         this.isSystem = isSystem;
     }
 
@@ -49,48 +67,131 @@ public class Folder implements Serializable {
         return isSystem;
     }
 
-    // returns a defensive copy of the emails list
-    public List<Email> getEmails() {
-        return new ArrayList<>(emails);
+    // read-only live view of the emails, newest first; nothing is copied, and iterating it while the
+    // folder changes sees each email at most once without failing. its size() walks the folder, use
+    // size() on the folder instead
+    public Collection<Email> getEmails() {
+        return Collections.unmodifiableCollection(emails.values());
+    }
+
+    // a copy of at most limit emails starting at position offset, newest first; a cursor for showing
+    // or sending a large folder a page at a time, with positions that stay put while the page is used
+    public synchronized List<Email> getEmails(int offset, int limit) {
+        List<Email> page = new ArrayList<>(Math.max(0, Math.min(limit, keys.size() - offset)));
+        Iterator<Email> it = emails.values().iterator();
+        for (int skipped = 0; skipped < offset && it.hasNext(); skipped++) {
+            it.next();
+        }
+        while (page.size() < limit && it.hasNext()) {
+            page.add(it.next());
+        }
+        return page;
     }
 
     // adds an email to this folder and updates the email's folder reference
-    public void addEmail(Email email) {
-        emails.add(email);
+    public synchronized void addEmail(Email email) {
+        if (keys.containsKey(email)) {
+            return;
+        }
+        OrderKey key = new OrderKey(email.getTimestamp(), email.getId(), nextSeq++);
+        emails.put(key, email);
+        keys.put(email, key);
+        if (email.getId() > 0) {
+            emailsById.put(email.getId(), email);
+        }
+        if (!email.isRead()) {
+            unreadCount++;
+        }
         email.setFolder(name);
     }
 
     // removes an email from this folder
-    public void removeEmail(Email email) {
-        emails.remove(email);
+    public synchronized void removeEmail(Email email) {
+        OrderKey key = keys.remove(email);
+        if (key == null) {
+            return;
+        }
+        emails.remove(key);
+        if (email.getId() > 0) {
+            emailsById.remove(email.getId());
+        }
+        if (!email.isRead()) {
+            unreadCount--;
+        }
+    }
+
+    // looks up an email by its database id
+    public synchronized Email getEmailById(int emailId) {
+        return emailsById.get(emailId);
     }
 
-    // retrieves an email by its index in the folder
-    public Email getEmail(int index) {
-        if (index >= 0 && index < emails.size()) {
-            return emails.get(index);
+    // updates the read flag of an email in this folder and the unread count with it
+    public synchronized boolean setRead(int emailId, boolean read) {
+        Email email = emailsById.get(emailId);
+        if (email == null) {
+            return false;
         }
-        return null;
+        if (email.isRead() != read) {
+            unreadCount += read ? -1 : 1;
+            email.setRead(read);
+        }
+        return true;
+    }
+
+    // retrieves an email by its position, newest first
+    public synchronized Email getEmail(int index) {
+        if (index < 0 || index >= keys.size()) {
+            return null;
+        }
+        return getEmails(index, 1).get(0);
+    }
+
+    // the oldest email in the folder, or null if it is empty
+    public synchronized Email getOldest() {
+        return emails.isEmpty() ? null : emails.lastEntry().getValue();
     }
 
     // counts the number of unread emails in the folder
-    public int getUnreadCount() {
-        return (int) emails.stream().filter(e -> !e.isRead()).count();
+    public synchronized int getUnreadCount() {
+        return unreadCount;
     }
 
     // checks if the folder contains no emails
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return emails.isEmpty();
     }
 
     // returns the total number of emails in the folder
-    public int size() {
-        return emails.size();
+    public synchronized int size() {
+        return keys.size();
     }
 
     // formats folder information for display
     @Override
-    public String toString() {
-        return name + " (" + emails.size() + " emails, " + getUnreadCount() + " unread)";
+    public synchronized String toString() {
+        return name + " (" + keys.size() + " emails, " + unreadCount + " unread)";
+    }
+
+    // sort key fixed at insertion: newer timestamps first, then higher ids, then later inserts
+    private static final class OrderKey implements Comparable<OrderKey>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final LocalDateTime timestamp;
+        final int emailId;
+        final long seq;
+
+        OrderKey(LocalDateTime timestamp, int emailId, long seq) {
+            this.timestamp = timestamp != null ? timestamp : LocalDateTime.MIN;
+            this.emailId = emailId;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(OrderKey other) {
+            int byTime = other.timestamp.compareTo(timestamp);
+            if (byTime != 0) return byTime;
+            if (emailId != other.emailId) return Integer.compare(other.emailId, emailId);
+            return Long.compare(other.seq, seq);
+        }
     }
-} 
\ No newline at end of file
+}
@@ -1,10 +1,15 @@
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class FolderService extends GenericDatabaseService<Folder> {
     private static FolderService instance;
     private static final String TABLE_NAME = "folders";
+    private static final String[] DEFAULT_FOLDERS = {"inbox", "spam"};
 
     private FolderService() {
         super();
@@ -50,9 +55,31 @@ public class FolderService extends GenericDatabaseService<Folder> {
         delete(TABLE_NAME, "id = ?", new Object[]{folderId});
     }
 
+    // creates whichever default folders the user is missing with one lookup and one batched insert
+    // the insert ignores folders created meanwhile (a login racing a delivery); the unique index on
+    // (user_email, folder_name) from migration 6 keeps them from being created twice
     public void createDefaultFolders(String userEmail) throws SQLException {
-        createFolder("inbox", userEmail);
-        createFolder("spam", userEmail);
+        Set<String> existing = new HashSet<>();
+        for (Folder folder : getFoldersByUser(userEmail)) {
+            existing.add(folder.getName());
+        }
+
+        List<Object[]> rows = new ArrayList<>();
+        for (String folderName : DEFAULT_FOLDERS) {
+            if (!existing.contains(folderName)) {
+                rows.add(new Object[]{folderName, userEmail});
+            }
+        }
+        if (rows.isEmpty()) {
+            return;
+        }
+        inTransaction(conn -> {
+            insertOrIgnoreAll(conn, TABLE_NAME, new String[]{"folder_name", "user_email"}, rows);
+            return null;
+        });
+        for (Object[] values : rows) {
+            Logger.getInstance().log("INSERT_" + TABLE_NAME + "_VALUES:" + Arrays.toString(values));
+        }
     }
 
     @Override
@@ -2,8 +2,23 @@ import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class GenericDatabaseService<T> {
+    // sqlite caps bound parameters per statement; IN lists are split into chunks of this size
+    private static final int MAX_IN_PARAMS = 500;
+    // sql text per (operation, table, columns, where clause), so hot queries skip rebuilding it
+    private static final Map<SqlKey, String> SQL_CACHE = new ConcurrentHashMap<>();
+    // latency of each database call, including the wait for a pooled connection
+    private static final Metrics.Histogram CREATE_TIME = Metrics.getInstance().histogram("db.create");
+    private static final Metrics.Histogram QUERY_TIME = Metrics.getInstance().histogram("db.query");
+    private static final Metrics.Histogram UPDATE_TIME = Metrics.getInstance().histogram("db.update");
+    private static final Metrics.Histogram DELETE_TIME = Metrics.getInstance().histogram("db.delete");
+    private static final Metrics.Histogram TRANSACTION_TIME = Metrics.getInstance().histogram("db.transaction");
+    private static final Metrics.Histogram UPDATE_ALL_TIME = Metrics.getInstance().histogram("db.updateAll");
+    private static final Metrics.Histogram DELETE_IN_TIME = Metrics.getInstance().histogram("db.deleteWhereIn");
     private final DatabaseConnection dbConnection;
 
     protected GenericDatabaseService() {
@@ -11,54 +26,61 @@ public abstract class GenericDatabaseService<T> {
     }
 
     public int create(String tableName, String[] columns, Object[] values) throws SQLException {
-        System.out.println("Creating record in table: " + tableName);
-        StringBuilder query = new StringBuilder("INSERT INTO " + tableName + " (");
-        StringBuilder placeholders = new StringBuilder(") VALUES (");
-
-        for (int i = 0; i < columns.length; i++) {
-            query.append(columns[i]);
-            placeholders.append("?");
-            if (i < columns.length - 1) {
-                query.append(", ");
-                placeholders.append(", ");
-            }
-        }
-        placeholders.append(")");
-        query.append(placeholders);
-
-        System.out.println("Full SQL query: " + query);
-        System.out.println("Values: " + Arrays.toString(values));
+        String query = insertSql(tableName, columns);
+        Log.debug("Creating record in {}: {} values {}", tableName, query, values);
 
-        try (Connection conn = dbConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(query.toString(), Statement.RETURN_GENERATED_KEYS)) {
+        long start = System.nanoTime();
+        try (Connection conn = dbConnection.getWriteConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
             for (int i = 0; i < values.length; i++) {
                 pstmt.setObject(i + 1, values[i]);
             }
-            int rowsAffected = pstmt.executeUpdate();
-            System.out.println("Rows affected: " + rowsAffected);
+            pstmt.executeUpdate();
             // log the full query
             Logger.getInstance().log("INSERT_" + tableName + "_VALUES:" + Arrays.toString(values));
             
             try (ResultSet generatedKeys = pstmt.getGeneratedKeys()) {
                 if (generatedKeys.next()) {
                     int id = generatedKeys.getInt(1);
-                    System.out.println("Generated ID: " + id);
+                    if (Log.isDebugEnabled()) {
+                        Log.debug("Created record {} in {}", id, tableName);
+                    }
                     return id;
                 }
             }
+        } finally {
+            CREATE_TIME.recordSince(start);
         }
-        System.out.println("No ID was generated");
+        Log.debug("No ID was generated for {}", tableName);
         return -1;  // Return -1 if no ID was generated
     }
 
     public List<T> read(String tableName, String whereClause, Object[] params, ResultSetMapper<T> mapper) throws SQLException {
-        List<T> results = new ArrayList<>();
-        String query = "SELECT * FROM " + tableName;
-        if (whereClause != null && !whereClause.isEmpty()) {
-            query += " WHERE " + whereClause;
-        }
+        return query(selectSql(tableName, whereClause), params, mapper);
+    }
+
+    // reads only the given columns, e.g. to leave large text columns out of listings
+    public List<T> read(String tableName, String[] columns, String whereClause, Object[] params,
+                        ResultSetMapper<T> mapper) throws SQLException {
+        return query(selectColumnsSql(tableName, columns, whereClause), params, mapper);
+    }
+
+    // reads only the given columns, sorted by orderBy and capped at limit rows
+    // used for keyset pages: put the last seen key in the where clause instead of using OFFSET
+    public List<T> read(String tableName, String[] columns, String whereClause, String orderBy, int limit,
+                        Object[] params, ResultSetMapper<T> mapper) throws SQLException {
+        Object[] pageParams = params != null ? Arrays.copyOf(params, params.length + 1) : new Object[1];
+        pageParams[pageParams.length - 1] = limit;
+        return query(selectPageSql(tableName, columns, whereClause, orderBy), pageParams, mapper);
+    }
+
+    // runs a select the generic builders can't express (joins, virtual tables) with the shared
+    // logging and pooled read connection
+    protected <R> List<R> query(String query, Object[] params, ResultSetMapper<R> mapper) throws SQLException {
+        List<R> results = new ArrayList<>();
         Logger.getInstance().log(query + "_PARAMS:" + (params != null ? Arrays.toString(params) : "[]"));
 
+        long start = System.nanoTime();
         try (Connection conn = dbConnection.getConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             if (params != null) {
@@ -72,29 +94,21 @@ public abstract class GenericDatabaseService<T> {
                     results.add(mapper.map(rs));
                 }
             }
+        } finally {
+            QUERY_TIME.recordSince(start);
         }
         return results;
     }
 
     public void update(String tableName, String[] columns, Object[] values, String whereClause, Object[] whereParams) throws SQLException {
-        StringBuilder query = new StringBuilder("UPDATE " + tableName + " SET ");
-
-        for (int i = 0; i < columns.length; i++) {
-            query.append(columns[i]).append(" = ?");
-            if (i < columns.length - 1) {
-                query.append(", ");
-            }
-        }
-
-        if (whereClause != null && !whereClause.isEmpty()) {
-            query.append(" WHERE ").append(whereClause);
-        }
+        String query = updateSql(tableName, columns, whereClause);
 
         Logger.getInstance().log(query + "_VALUES:" + Arrays.toString(values) +
                 (whereParams != null ? "_WHERE_PARAMS:" + Arrays.toString(whereParams) : ""));
 
-        try (Connection conn = dbConnection.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(query.toString())) {
+        long start = System.nanoTime();
+        try (Connection conn = dbConnection.getWriteConnection();
+             PreparedStatement pstmt = conn.prepareStatement(query)) {
             int paramIndex = 1;
 
             // Set values for SET clause
@@ -110,18 +124,18 @@ public abstract class GenericDatabaseService<T> {
             }
 
             pstmt.executeUpdate();
+        } finally {
+            UPDATE_TIME.recordSince(start);
         }
     }
 
     public void delete(String tableName, String whereClause, Object[] params) throws SQLException {
-        String query = "DELETE FROM " + tableName;
-        if (whereClause != null && !whereClause.isEmpty()) {
-            query += " WHERE " + whereClause;
-        }
+        String query = deleteSql(tableName, whereClause);
 
         Logger.getInstance().log(query + "_PARAMS:" + (params != null ? Arrays.toString(params) : "[]"));
 
-        try (Connection conn = dbConnection.getConnection();
+        long start = System.nanoTime();
+        try (Connection conn = dbConnection.getWriteConnection();
              PreparedStatement pstmt = conn.prepareStatement(query)) {
             if (params != null) {
                 for (int i = 0; i < params.length; i++) {
@@ -129,7 +143,302 @@ public abstract class GenericDatabaseService<T> {
                 }
             }
             pstmt.executeUpdate();
+        } finally {
+            DELETE_TIME.recordSince(start);
+        }
+    }
+
+    // inserts many rows with one prepared statement in a single transaction
+    // returns the generated ids in the same order as the rows
+    public List<Integer> createAll(String tableName, String[] columns, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<Integer> ids = inTransaction(conn -> insertAll(conn, tableName, columns, rows));
+
+        for (Object[] values : rows) {
+            Logger.getInstance().log("INSERT_" + tableName + "_VALUES:" + Arrays.toString(values));
+        }
+        return ids;
+    }
+
+    // runs work on the write connection in a single transaction, rolling back if it throws
+    // lets a service combine several inserts and updates into one atomic write
+    protected <R> R inTransaction(TransactionWork<R> work) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = dbConnection.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                R result = work.run(conn);
+                conn.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        } finally {
+            TRANSACTION_TIME.recordSince(start);
+        }
+    }
+
+    // batch-inserts rows on an open connection, skipping rows whose key already exists
+    // used for content-addressed rows, where an existing row with the same key is the same data
+    protected void insertOrIgnoreAll(Connection conn, String tableName, String[] columns, List<Object[]> rows)
+            throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(insertOrIgnoreSql(tableName, columns))) {
+            for (Object[] values : rows) {
+                for (int i = 0; i < values.length; i++) {
+                    pstmt.setObject(i + 1, values[i]);
+                }
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+    }
+
+    // batch-inserts rows on an open connection (inside inTransaction); ids are returned in row order
+    protected List<Integer> insertAll(Connection conn, String tableName, String[] columns, List<Object[]> rows)
+            throws SQLException {
+        List<Integer> ids = new ArrayList<>(rows.size());
+        if (rows.isEmpty()) {
+            return ids;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement(insertSql(tableName, columns),
+                Statement.RETURN_GENERATED_KEYS)) {
+            for (Object[] values : rows) {
+                for (int i = 0; i < values.length; i++) {
+                    pstmt.setObject(i + 1, values[i]);
+                }
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            collectGeneratedKeys(conn, pstmt, rows.size(), ids);
+        }
+        return ids;
+    }
+
+    // drivers that only report the last key (sqlite) get the rest derived from it: the batch ran in
+    // one transaction under the write lock, so its autoincrement ids are consecutive
+    private void collectGeneratedKeys(Connection conn, PreparedStatement pstmt, int count, List<Integer> ids)
+            throws SQLException {
+        try (ResultSet keys = pstmt.getGeneratedKeys()) {
+            while (keys.next()) {
+                ids.add(keys.getInt(1));
+            }
+        }
+        if (ids.size() == count) {
+            return;
+        }
+
+        int lastId;
+        if (!ids.isEmpty()) {
+            lastId = ids.get(ids.size() - 1);
+        } else {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()")) {
+                lastId = rs.next() ? rs.getInt(1) : -1;
+            }
+        }
+        ids.clear();
+        for (int i = 0; i < count; i++) {
+            ids.add(lastId < 0 ? -1 : lastId - count + 1 + i);
+        }
+    }
+
+    // runs the same UPDATE once per row in a single transaction
+    // valuesList.get(i) fills the SET clause and whereParamsList.get(i) the WHERE clause for row i
+    public int[] updateAll(String tableName, String[] columns, List<Object[]> valuesList,
+                           String whereClause, List<Object[]> whereParamsList) throws SQLException {
+        if (valuesList.isEmpty()) {
+            return new int[0];
+        }
+        if (whereParamsList != null && whereParamsList.size() != valuesList.size()) {
+            throw new IllegalArgumentException("Each updated row needs its own WHERE parameters");
+        }
+
+        String query = updateSql(tableName, columns, whereClause);
+
+        int[] counts;
+        long start = System.nanoTime();
+        try (Connection conn = dbConnection.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                for (int row = 0; row < valuesList.size(); row++) {
+                    int paramIndex = 1;
+                    for (Object value : valuesList.get(row)) {
+                        pstmt.setObject(paramIndex++, value);
+                    }
+                    if (whereParamsList != null) {
+                        for (Object param : whereParamsList.get(row)) {
+                            pstmt.setObject(paramIndex++, param);
+                        }
+                    }
+                    pstmt.addBatch();
+                }
+                counts = pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } finally {
+            UPDATE_ALL_TIME.recordSince(start);
+        }
+
+        Logger.getInstance().log(query + "_BATCH_ROWS:" + valuesList.size());
+        return counts;
+    }
+
+    // deletes every row whose column matches one of the keys, in one transaction
+    // keys are sent in chunks to stay under sqlite's bound-parameter limit
+    public int deleteWhereIn(String tableName, String column, List<?> keys) throws SQLException {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        int deleted = 0;
+        long start = System.nanoTime();
+        try (Connection conn = dbConnection.getWriteConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (int from = 0; from < keys.size(); from += MAX_IN_PARAMS) {
+                    List<?> chunk = keys.subList(from, Math.min(keys.size(), from + MAX_IN_PARAMS));
+                    String query = deleteInSql(tableName, column, chunk.size());
+                    try (PreparedStatement pstmt = conn.prepareStatement(query)) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            pstmt.setObject(i + 1, chunk.get(i));
+                        }
+                        deleted += pstmt.executeUpdate();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } finally {
+            DELETE_IN_TIME.recordSince(start);
         }
+
+        Logger.getInstance().log("DELETE FROM " + tableName + " WHERE " + column + " IN_PARAMS:" + keys);
+        return deleted;
+    }
+
+    private static String insertSql(String tableName, String[] columns) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("INSERT", tableName, columns, null),
+            key -> buildInsertSql("INSERT INTO ", tableName, columns));
+    }
+
+    private static String insertOrIgnoreSql(String tableName, String[] columns) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("INSERT_OR_IGNORE", tableName, columns, null),
+            key -> buildInsertSql("INSERT OR IGNORE INTO ", tableName, columns));
+    }
+
+    private static String buildInsertSql(String verb, String tableName, String[] columns) {
+        StringBuilder query = new StringBuilder(verb + tableName + " (");
+        StringBuilder placeholders = new StringBuilder(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            query.append(columns[i]);
+            placeholders.append("?");
+            if (i < columns.length - 1) {
+                query.append(", ");
+                placeholders.append(", ");
+            }
+        }
+        placeholders.append(")");
+        return query.append(placeholders).toString();
+    }
+
+    private static String selectSql(String tableName, String whereClause) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("SELECT", tableName, null, whereClause),
+            key -> "SELECT * FROM " + tableName + whereSuffix(whereClause));
+    }
+
+    private static String selectColumnsSql(String tableName, String[] columns, String whereClause) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("SELECT_COLUMNS", tableName, columns, whereClause),
+            key -> "SELECT " + String.join(", ", columns) + " FROM " + tableName + whereSuffix(whereClause));
+    }
+
+    private static String selectPageSql(String tableName, String[] columns, String whereClause, String orderBy) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("SELECT_PAGE", tableName, columns, whereClause + "|" + orderBy),
+            key -> "SELECT " + String.join(", ", columns) + " FROM " + tableName + whereSuffix(whereClause)
+                + " ORDER BY " + orderBy + " LIMIT ?");
+    }
+
+    private static String updateSql(String tableName, String[] columns, String whereClause) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("UPDATE", tableName, columns, whereClause), key -> {
+            StringBuilder query = new StringBuilder("UPDATE " + tableName + " SET ");
+            for (int i = 0; i < columns.length; i++) {
+                query.append(columns[i]).append(" = ?");
+                if (i < columns.length - 1) {
+                    query.append(", ");
+                }
+            }
+            return query.append(whereSuffix(whereClause)).toString();
+        });
+    }
+
+    private static String deleteSql(String tableName, String whereClause) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("DELETE", tableName, null, whereClause),
+            key -> "DELETE FROM " + tableName + whereSuffix(whereClause));
+    }
+
+    private static String deleteInSql(String tableName, String column, int count) {
+        return SQL_CACHE.computeIfAbsent(new SqlKey("DELETE_IN", tableName, new String[]{column}, String.valueOf(count)), key -> {
+            StringBuilder query = new StringBuilder("DELETE FROM " + tableName + " WHERE " + column + " IN (");
+            for (int i = 0; i < count; i++) {
+                query.append(i == 0 ? "?" : ", ?");
+            }
+            return query.append(")").toString();
+        });
+    }
+
+    private static String whereSuffix(String whereClause) {
+        return whereClause != null && !whereClause.isEmpty() ? " WHERE " + whereClause : "";
+    }
+
+    // identifies one generated statement: operation, table, column list and where clause
+    private static final class SqlKey {
+        private final String operation;
+        private final String tableName;
+        private final String[] columns;
+        private final String whereClause;
+        private final int hash;
+
+        SqlKey(String operation, String tableName, String[] columns, String whereClause) {
+            this.operation = operation;
+            this.tableName = tableName;
+            // a copy, so a caller reusing its array can't change a key already in the cache
+            this.columns = columns == null ? null : columns.clone();
+            this.whereClause = whereClause;
+            this.hash = ((operation.hashCode() * 31 + tableName.hashCode()) * 31
+                + Arrays.hashCode(this.columns)) * 31 + Objects.hashCode(whereClause);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SqlKey)) return false;
+            SqlKey other = (SqlKey) o;
+            return hash == other.hash
+                && operation.equals(other.operation)
+                && tableName.equals(other.tableName)
+                && Arrays.equals(columns, other.columns)
+                && Objects.equals(whereClause, other.whereClause);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // work run by inTransaction on the write connection
+    public interface TransactionWork<R> {
+        R run(Connection conn) throws SQLException;
     }
 
     // Interface for mapping ResultSet to entity
@@ -0,0 +1,54 @@
+import java.io.*;
+
+// message channel over java object serialization, kept for clients that predate the binary protocol
+public class LegacyMessageChannel extends MessageChannel {
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    // writes our stream header first so both sides can construct their input streams
+    public LegacyMessageChannel(InputStream in, OutputStream out) throws IOException {
+        this.out = new ObjectOutputStream(out);
+        this.out.flush();
+        this.in = new ObjectInputStream(in);
+    }
+
+    @Override
+    public Object readMessage() throws IOException, ClassNotFoundException {
+        return in.readObject();
+    }
+
+    @Override
+    public synchronized void writeMessage(Object message) throws IOException {
+        out.writeObject(message);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public String getProtocolName() {
+        return "legacy";
+    }
+
+    // clients from before the binary protocol have no FETCH_EMAIL, so they get every email in full
+    @Override
+    public boolean supportsHeaderOnly() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+}
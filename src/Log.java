@@ -0,0 +1,174 @@
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+// leveled console logging for the server and database code
+// messages use {} placeholders that are only filled in when the level is enabled, and the fixed-arity
+// overloads avoid a varargs array, so a disabled call costs one comparison and allocates nothing.
+// the level is fixed at startup, which lets the jit drop disabled calls entirely.
+// object arrays are printed element by element.
+// wrap calls whose arguments are themselves expensive (or boxed primitives in a loop) in isDebugEnabled()
+//
+// email.log.profile: quiet (default, WARN) or dev (DEBUG, for development)
+// email.log.level: TRACE, DEBUG, INFO, WARN, ERROR or OFF, overrides the profile
+public final class Log {
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final Level LEVEL = levelFromProperties();
+    private static final int THRESHOLD = LEVEL.ordinal();
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private Log() {
+    }
+
+    private static Level levelFromProperties() {
+        String profile = System.getProperty("email.log.profile", "quiet").trim().toLowerCase();
+        Level level;
+        if (profile.equals("dev")) {
+            level = Level.DEBUG;
+        } else {
+            if (!profile.equals("quiet")) {
+                System.err.println("Unknown log profile '" + profile + "', using quiet");
+            }
+            level = Level.WARN;
+        }
+        String value = System.getProperty("email.log.level");
+        if (value != null) {
+            try {
+                level = Level.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level '" + value + "', using " + level);
+            }
+        }
+        return level;
+    }
+
+    public static Level getLevel() {
+        return LEVEL;
+    }
+
+    public static boolean isTraceEnabled() {
+        return THRESHOLD <= 0;
+    }
+
+    public static boolean isDebugEnabled() {
+        return THRESHOLD <= 1;
+    }
+
+    public static boolean isInfoEnabled() {
+        return THRESHOLD <= 2;
+    }
+
+    public static void trace(String message) {
+        if (THRESHOLD <= 0) write(Level.TRACE, message, null, null, null, 0);
+    }
+
+    public static void trace(String message, Object a) {
+        if (THRESHOLD <= 0) write(Level.TRACE, message, a, null, null, 1);
+    }
+
+    public static void trace(String message, Object a, Object b) {
+        if (THRESHOLD <= 0) write(Level.TRACE, message, a, b, null, 2);
+    }
+
+    public static void trace(String message, Object a, Object b, Object c) {
+        if (THRESHOLD <= 0) write(Level.TRACE, message, a, b, c, 3);
+    }
+
+    public static void debug(String message) {
+        if (THRESHOLD <= 1) write(Level.DEBUG, message, null, null, null, 0);
+    }
+
+    public static void debug(String message, Object a) {
+        if (THRESHOLD <= 1) write(Level.DEBUG, message, a, null, null, 1);
+    }
+
+    public static void debug(String message, Object a, Object b) {
+        if (THRESHOLD <= 1) write(Level.DEBUG, message, a, b, null, 2);
+    }
+
+    public static void debug(String message, Object a, Object b, Object c) {
+        if (THRESHOLD <= 1) write(Level.DEBUG, message, a, b, c, 3);
+    }
+
+    public static void info(String message) {
+        if (THRESHOLD <= 2) write(Level.INFO, message, null, null, null, 0);
+    }
+
+    public static void info(String message, Object a) {
+        if (THRESHOLD <= 2) write(Level.INFO, message, a, null, null, 1);
+    }
+
+    public static void info(String message, Object a, Object b) {
+        if (THRESHOLD <= 2) write(Level.INFO, message, a, b, null, 2);
+    }
+
+    public static void info(String message, Object a, Object b, Object c) {
+        if (THRESHOLD <= 2) write(Level.INFO, message, a, b, c, 3);
+    }
+
+    public static void warn(String message) {
+        if (THRESHOLD <= 3) write(Level.WARN, message, null, null, null, 0);
+    }
+
+    public static void warn(String message, Object a) {
+        if (THRESHOLD <= 3) write(Level.WARN, message, a, null, null, 1);
+    }
+
+    public static void warn(String message, Object a, Object b) {
+        if (THRESHOLD <= 3) write(Level.WARN, message, a, b, null, 2);
+    }
+
+    // a Throwable as the last argument is printed with its stack trace after the message
+    public static void error(String message) {
+        if (THRESHOLD <= 4) write(Level.ERROR, message, null, null, null, 0);
+    }
+
+    public static void error(String message, Object a) {
+        if (THRESHOLD <= 4) write(Level.ERROR, message, a, null, null, 1);
+    }
+
+    public static void error(String message, Object a, Object b) {
+        if (THRESHOLD <= 4) write(Level.ERROR, message, a, b, null, 2);
+    }
+
+    // formats the whole line first so it reaches the stream in one write; warnings and errors go to stderr
+    private static void write(Level level, String message, Object a, Object b, Object c, int count) {
+        StringBuilder line = new StringBuilder(message.length() + 64);
+        line.append(LocalDateTime.now().format(FORMAT)).append(' ')
+            .append(level.name()).append(level.name().length() == 4 ? "  [" : " [")
+            .append(Thread.currentThread().getName()).append("] ");
+
+        Throwable thrown = null;
+        Object last = count == 1 ? a : count == 2 ? b : count == 3 ? c : null;
+        if (last instanceof Throwable) {
+            thrown = (Throwable) last;
+        }
+        int next = 0;
+        int from = 0;
+        while (next < count) {
+            int at = message.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            Object arg = next == 0 ? a : next == 1 ? b : c;
+            line.append(message, from, at).append(arg instanceof Object[] ? Arrays.deepToString((Object[]) arg) : arg);
+            from = at + 2;
+            next++;
+        }
+        line.append(message, from, message.length());
+        if (thrown != null && next == count) {
+            // the throwable filled a placeholder, so only its message was meant
+            thrown = null;
+        }
+
+        PrintStream out = level.ordinal() >= Level.WARN.ordinal() ? System.err : System.out;
+        out.println(line);
+        if (thrown != null) {
+            thrown.printStackTrace(out);
+        }
+    }
+}
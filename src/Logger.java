@@ -1,23 +1,114 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+// audit log, one csv line per action
+// log() only claims a slot in a lock-free ring buffer; a single background thread keeps the file open,
+// formats and writes the entries, flushes when its buffer fills or every FLUSH_MS, and rotates the
+// file by size and by day
 public class Logger {
+    // what log() does when the ring buffer is full
+    public enum OverflowPolicy {
+        // wait for the writer to make room; nothing is lost but callers slow down to disk speed
+        BLOCK,
+        // drop the entry and count it; callers never wait
+        DROP;
+
+        static OverflowPolicy fromProperty() {
+            String value = System.getProperty("email.audit.overflow", "block");
+            try {
+                return OverflowPolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                Log.warn("Unknown audit overflow policy '{}', using block", value);
+                return BLOCK;
+            }
+        }
+    }
+
+    private static final String HEADER = "nume_actiune, timestamp";
+    private static final String FILENAME = System.getProperty("email.audit.file", "audit.csv");
+    // entries the ring buffer holds, rounded up to a power of two
+    private static final int CAPACITY = Integer.highestOneBit(
+        Math.max(2, Integer.getInteger("email.audit.capacity", 8192) - 1)) << 1;
+    // written lines are buffered up to this many bytes, and pushed to the file at least this often
+    private static final int FLUSH_BYTES = Integer.getInteger("email.audit.flushBytes", 64 * 1024);
+    private static final long FLUSH_MS = Long.getLong("email.audit.flushMs", 1_000);
+    // the file is rotated when it grows past this size or the day changes; 0 turns size rotation off
+    private static final long MAX_BYTES = Long.getLong("email.audit.maxBytes", 10L * 1024 * 1024);
+    // rotated files kept next to the live one
+    private static final int MAX_FILES = Integer.getInteger("email.audit.maxFiles", 5);
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.fromProperty();
+
     private static Logger instance;
-    private static String FILENAME;
-    private static DateTimeFormatter FORMAT;
-    private static boolean canWrite;
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // ring buffer: slot i is free for the producer at position p when sequences[i] == p and holds
+    // the entry for the consumer when sequences[i] == p + 1
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final String[] actions;
+    private final long[] times;
+    // next position to claim, shared by producers
+    private final AtomicLong tail;
+    // next position to write, advanced only by the writer thread
+    private volatile long head;
+
+    private final LongAdder logged;
+    private final LongAdder dropped;
+    private final LongAdder flushes;
+    private final LongAdder rotations;
+
+    private final Thread writerThread;
+    // set while the writer waits out its flush interval with nothing to write
+    private final AtomicBoolean writerIdle;
+    private volatile boolean running;
+    private volatile boolean canWrite;
+
+    // owned by the writer thread
+    private Writer out;
+    private long fileBytes;
+    private LocalDate fileDate;
+    private long lastFlush;
+    private boolean dirty;
+    private long cachedSecond;
+    private String cachedTimestamp;
 
-    private Logger(){
-        // init vars
-        FILENAME = "audit.csv";
-        FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private Logger() {
+        this.mask = CAPACITY - 1;
+        this.sequences = new AtomicLongArray(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        this.actions = new String[CAPACITY];
+        this.times = new long[CAPACITY];
+        this.tail = new AtomicLong();
+        this.logged = new LongAdder();
+        this.dropped = new LongAdder();
+        this.flushes = new LongAdder();
+        this.rotations = new LongAdder();
+        this.cachedSecond = Long.MIN_VALUE;
+        this.writerIdle = new AtomicBoolean(false);
 
-        canWrite = createFileIfNotExists();
+        this.canWrite = openFile();
+        this.running = true;
+        this.writerThread = new Thread(this::runWriter, "audit-logger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        // whatever is still buffered at exit goes to the file
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "audit-logger-shutdown"));
     }
 
     public static synchronized Logger getInstance() {
@@ -27,58 +118,264 @@ public class Logger {
         return instance;
     }
 
-    public synchronized void log(String action) {
-        if (!canWrite) {
+    // queues an action; the timestamp is taken now, formatting and i/o happen on the writer thread
+    public void log(String action) {
+        if (!canWrite || !running) {
             return;
         }
+        long now = System.currentTimeMillis();
+        while (!offer(action, now)) {
+            wakeWriter();
+            if (OVERFLOW_POLICY == OverflowPolicy.DROP) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            if (!canWrite || !running) {
+                return;
+            }
+        }
+    }
 
-        String timestamp = LocalDateTime.now().format(FORMAT);
+    private boolean offer(String action, long time) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds an entry from the previous lap
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        int index = (int) position & mask;
+        actions[index] = action;
+        times[index] = time;
+        sequences.set(index, position + 1);
+        // wake the writer early once the buffer is half full instead of waiting out its flush interval
+        if (position - head >= CAPACITY / 2) {
+            wakeWriter();
+        }
+        return true;
+    }
 
-        // sanitize the action string
-        String escapedAction = action.replace("\"", "\"\"");
-        String safeAction = "\"" + escapedAction + "\"";
+    // only the first caller to find the writer idle pays for the unpark
+    private void wakeWriter() {
+        if (writerIdle.get() && writerIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(writerThread);
+        }
+    }
 
-        // declare resources
-        FileWriter fw = null;
-        BufferedWriter bw = null;
-        PrintWriter pw = null;
+    private void runWriter() {
+        lastFlush = System.currentTimeMillis();
+        while (running) {
+            int written = drain();
+            long now = System.currentTimeMillis();
+            if (dirty && now - lastFlush >= FLUSH_MS) {
+                flushFile(now);
+            }
+            if (written == 0) {
+                long wait = dirty ? Math.max(1, FLUSH_MS - (now - lastFlush)) : FLUSH_MS;
+                writerIdle.set(true);
+                // entries queued between the drain and the flag would otherwise wait out the interval
+                if (tail.get() - head < CAPACITY / 2) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+                }
+                writerIdle.set(false);
+            }
+        }
+    }
 
-        try {
-            fw = new FileWriter(FILENAME, true);
-            bw = new BufferedWriter(fw);
-            pw = new PrintWriter(bw);
+    // writes every entry currently in the buffer; returns how many there were
+    private int drain() {
+        int count = 0;
+        long position = head;
+        while (true) {
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            String action = actions[index];
+            long time = times[index];
+            actions[index] = null;
+            sequences.set(index, position + CAPACITY);
+            position++;
+            head = position;
+            count++;
+            write(action, time);
+        }
+        return count;
+    }
 
-            pw.println(safeAction + ", " + timestamp);
-        } catch (Exception e) {
+    private void write(String action, long time) {
+        if (!canWrite) {
+            return;
+        }
+        try {
+            LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+            if (!date.equals(fileDate) || (MAX_BYTES > 0 && fileBytes >= MAX_BYTES)) {
+                rotate(date);
+            }
+            // sanitize the action string
+            String line = "\"" + action.replace("\"", "\"\"") + "\", " + timestamp(time) + System.lineSeparator();
+            out.write(line);
+            fileBytes += line.getBytes(StandardCharsets.UTF_8).length;
+            dirty = true;
+            logged.increment();
+        } catch (IOException e) {
             System.err.println("Error writing to log file: " + e.getMessage());
             canWrite = false; // disable further writes if an error occurs
-        } finally {
-            try {
-                // close the resources
-                if (pw != null) pw.close();
-                if (bw != null) bw.close();
-                if (fw != null) fw.close();
-            } catch (Exception e) {
-                System.err.println("Error closing log file resources: " + e.getMessage());
-            }
         }
     }
 
-    private boolean createFileIfNotExists() {
-        Path filePath = Paths.get(FILENAME);
-        if(Files.notExists(filePath)){
-            try {
-                Files.createFile(filePath);
+    // entries share their second with their neighbours, so the formatted timestamp is reused
+    private String timestamp(long time) {
+        long second = Math.floorDiv(time, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(FORMAT);
+        }
+        return cachedTimestamp;
+    }
+
+    private void flushFile(long now) {
+        try {
+            out.flush();
+            flushes.increment();
+        } catch (IOException e) {
+            System.err.println("Error flushing log file: " + e.getMessage());
+            canWrite = false;
+        }
+        dirty = false;
+        lastFlush = now;
+    }
 
+    // opens the live file for appending, writing the header if it is new
+    private boolean openFile() {
+        Path filePath = Paths.get(FILENAME);
+        try {
+            boolean fresh = Files.notExists(filePath) || Files.size(filePath) == 0;
+            out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(filePath.toFile(), true), StandardCharsets.UTF_8), FLUSH_BYTES);
+            fileBytes = Files.size(filePath);
+            fileDate = LocalDate.ofInstant(Files.getLastModifiedTime(filePath).toInstant(), ZoneId.systemDefault());
+            if (fresh) {
                 // add the header
-                String header = "nume_actiune, timestamp";
-                Files.write(filePath, List.of(header), StandardOpenOption.APPEND);
-                return true;
-            } catch (Exception e) {
-                System.err.println("Error creating log file: " + e.getMessage());
-                return false;
+                String header = HEADER + System.lineSeparator();
+                out.write(header);
+                fileBytes = header.length();
+                dirty = true;
             }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error creating log file: " + e.getMessage());
+            return false;
         }
-        return true;
+    }
+
+    // moves the live file aside as <name>-<date>[.n].csv, starts a new one and prunes old files
+    private void rotate(LocalDate date) throws IOException {
+        if (fileBytes <= HEADER.length() + System.lineSeparator().length()) {
+            // nothing but the header, keep using it for the new day
+            fileDate = date;
+            return;
+        }
+        out.close();
+        Path live = Paths.get(FILENAME).toAbsolutePath();
+        String name = live.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        // later rotations on the same day get increasing numbers, even once older ones are pruned
+        String prefix = base + "-" + fileDate;
+        int next = 0;
+        for (Path file : listRotated(live.getParent(), base, extension)) {
+            String rotated = file.getFileName().toString();
+            if (rotated.equals(prefix + extension)) {
+                next = Math.max(next, 1);
+            } else if (rotated.startsWith(prefix + ".")) {
+                try {
+                    String number = rotated.substring(prefix.length() + 1, rotated.length() - extension.length());
+                    next = Math.max(next, Integer.parseInt(number) + 1);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Path target = live.resolveSibling(prefix + (next > 0 ? "." + next : "") + extension);
+        Files.move(live, target);
+        rotations.increment();
+        pruneRotated(live.getParent(), base, extension);
+        if (!openFile()) {
+            throw new IOException("Could not reopen " + FILENAME);
+        }
+        fileDate = date;
+    }
+
+    private static List<Path> listRotated(Path directory, String base, String extension) throws IOException {
+        List<Path> rotated = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, base + "-*" + extension)) {
+            for (Path file : files) {
+                rotated.add(file);
+            }
+        }
+        return rotated;
+    }
+
+    private void pruneRotated(Path directory, String base, String extension) throws IOException {
+        List<Path> rotated = listRotated(directory, base, extension);
+        if (rotated.size() <= MAX_FILES) {
+            return;
+        }
+        rotated.sort((a, b) -> {
+            try {
+                return Files.getLastModifiedTime(a).compareTo(Files.getLastModifiedTime(b));
+            } catch (IOException e) {
+                return 0;
+            }
+        });
+        for (Path file : rotated.subList(0, rotated.size() - MAX_FILES)) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // stops the writer after it has written and flushed everything already queued
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        drain();
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Error closing log file resources: " + e.getMessage());
+        }
+    }
+
+    // entries waiting for the writer thread
+    public long getQueued() {
+        return tail.get() - head;
+    }
+
+    public String getStats() {
+        return String.format("auditLogged=%d auditQueued=%d auditDropped=%d auditFlushes=%d auditRotations=%d",
+            logged.sum(), tail.get() - head, dropped.sum(), flushes.sum(), rotations.sum());
     }
 }
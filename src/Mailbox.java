@@ -0,0 +1,112 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// one user's cached folders plus an id index over every header they hold
+// all changes go through this class so the index never disagrees with the folders
+public class Mailbox {
+    // folders by (lowercase) name
+    private final Map<String, Folder> folders;
+    // cached emails by database id
+    private final Map<Integer, Email> emailsById;
+
+    public Mailbox() {
+        this.folders = new ConcurrentHashMap<>();
+        this.emailsById = new ConcurrentHashMap<>();
+    }
+
+    public void addFolder(Folder folder) {
+        folders.put(folder.getName(), folder);
+    }
+
+    public Folder getFolder(String name) {
+        return folders.get(name);
+    }
+
+    // finds a folder by its database id
+    public Folder getFolderById(int folderId) {
+        for (Folder folder : folders.values()) {
+            if (folder.getId() == folderId) {
+                return folder;
+            }
+        }
+        return null;
+    }
+
+    public Collection<Folder> getFolders() {
+        return folders.values();
+    }
+
+    // looks up a cached email by id, or null if it is not in memory
+    public Email getEmail(int emailId) {
+        return emailsById.get(emailId);
+    }
+
+    // adds an email to a folder unless an email with the same id is already cached
+    public synchronized boolean addEmail(Folder folder, Email email) {
+        if (email.getId() > 0 && emailsById.putIfAbsent(email.getId(), email) != null) {
+            return false;
+        }
+        folder.addEmail(email);
+        email.setFolderId(folder.getId());
+        return true;
+    }
+
+    // removes an email from whichever folder holds it
+    public synchronized Email removeEmail(int emailId) {
+        Email email = emailsById.remove(emailId);
+        if (email != null) {
+            Folder folder = folders.get(email.getFolder());
+            if (folder != null) {
+                folder.removeEmail(email);
+            }
+        }
+        return email;
+    }
+
+    // moves a cached email to another folder; returns false if it is not cached
+    public synchronized boolean moveEmail(int emailId, Folder target) {
+        Email email = removeEmail(emailId);
+        if (email == null) {
+            return false;
+        }
+        return addEmail(target, email);
+    }
+
+    // updates the read flag of a cached email; returns false if it is not cached
+    public synchronized boolean setRead(int emailId, boolean read) {
+        Email email = emailsById.get(emailId);
+        Folder folder = email != null ? folders.get(email.getFolder()) : null;
+        return folder != null && folder.setRead(emailId, read);
+    }
+
+    // drops the oldest emails of a folder until it holds at most maxEmails
+    public synchronized void trim(Folder folder, int maxEmails) {
+        while (folder.size() > maxEmails) {
+            Email oldest = folder.getOldest();
+            emailsById.remove(oldest.getId());
+            folder.removeEmail(oldest);
+        }
+    }
+
+    // number of cached emails across all folders
+    public int size() {
+        return emailsById.size();
+    }
+
+    // rough heap retained by the cached emails: object headers, fields and index entry per email plus
+    // one byte per character of each string (compact latin-1 strings)
+    public long estimateHeapBytes() {
+        long bytes = 0;
+        for (Email email : emailsById.values()) {
+            bytes += 160 + stringBytes(email.getFrom()) + stringBytes(email.getTo()) + stringBytes(email.getCc())
+                + stringBytes(email.getBcc()) + stringBytes(email.getSubject()) + stringBytes(email.getFolder())
+                + stringBytes(email.getContent());
+        }
+        return bytes;
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : 40 + value.length();
+    }
+}
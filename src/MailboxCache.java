@@ -0,0 +1,211 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// bounded lru cache of per-user mailbox state (header-only folders and their id index)
+// bounded both by the number of mailboxes and by the total number of cached headers;
+// mailboxes of users with an open connection are pinned and never evicted
+public class MailboxCache {
+    // builds a user's mailbox from the database on a miss
+    public interface Loader {
+        Mailbox load(String userEmail) throws SQLException;
+    }
+
+    private final int maxMailboxes;
+    private final long maxHeaders;
+    private final Predicate<String> pinned;
+    private final Loader loader;
+    // access-ordered, so iteration starts at the least recently used mailbox
+    private final LinkedHashMap<String, Entry> entries;
+    // mailboxes being loaded, with the changes made to them meanwhile
+    private final Map<String, Loading> loading;
+    // sum of the entry weights as last measured
+    private long totalWeight;
+
+    // cache counters
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MailboxCache(int maxMailboxes, long maxHeaders, Predicate<String> pinned, Loader loader) {
+        this.maxMailboxes = maxMailboxes;
+        this.maxHeaders = maxHeaders;
+        this.pinned = pinned;
+        this.loader = loader;
+        this.entries = new LinkedHashMap<>(256, 0.75f, true);
+        this.loading = new HashMap<>();
+    }
+
+    // returns the user's mailbox, loading it from the database if it is not cached
+    // one thread loads a missing mailbox while the others asking for it wait for the same load
+    public Mailbox get(String userEmail) throws SQLException {
+        Loading load;
+        boolean loads = false;
+        synchronized (this) {
+            Entry entry = entries.get(userEmail);
+            if (entry != null) {
+                hits.increment();
+                reweigh(entry);
+                return entry.mailbox;
+            }
+            load = loading.get(userEmail);
+            if (load == null) {
+                misses.increment();
+                load = new Loading();
+                loading.put(userEmail, load);
+                loads = true;
+            }
+        }
+        if (!loads) {
+            return load.await();
+        }
+
+        // load outside the lock so a slow query doesn't stall other users
+        Mailbox mailbox;
+        try {
+            mailbox = loader.load(userEmail);
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(userEmail);
+            }
+            load.future.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            loading.remove(userEmail);
+            // changes committed while the load was reading; they may or may not be in what it read, and
+            // every change can be applied twice, so replaying them all leaves the mailbox current
+            for (Consumer<Mailbox> change : load.changes) {
+                change.accept(mailbox);
+            }
+            Entry entry = new Entry(mailbox);
+            entries.put(userEmail, entry);
+            reweigh(entry);
+            evict();
+        }
+        load.future.complete(mailbox);
+        return mailbox;
+    }
+
+    // applies a change just committed to the database to the user's cached mailbox; a mailbox that is
+    // being loaded gets it once the load finishes, and one that is neither reads it when it is loaded
+    // changes must be idempotent (add if absent, move, set the read flag, remove)
+    public synchronized void apply(String userEmail, Consumer<Mailbox> change) {
+        Entry entry = entries.get(userEmail);
+        if (entry != null) {
+            change.accept(entry.mailbox);
+            reweigh(entry);
+            evict();
+            return;
+        }
+        Loading load = loading.get(userEmail);
+        if (load != null) {
+            load.changes.add(change);
+        }
+    }
+
+    // drops a mailbox, e.g. after a failed write left it out of step with the database
+    public synchronized void invalidate(String userEmail) {
+        Entry entry = entries.remove(userEmail);
+        if (entry != null) {
+            totalWeight -= entry.weight;
+        }
+    }
+
+    // re-checks the bounds, e.g. after a user disconnected and their mailbox became evictable
+    public synchronized void cleanUp() {
+        evict();
+    }
+
+    // evicts least recently used unpinned mailboxes until both bounds hold again
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && (entries.size() > maxMailboxes || totalWeight > maxHeaders)) {
+            Map.Entry<String, Entry> next = it.next();
+            if (pinned.test(next.getKey())) {
+                continue;
+            }
+            it.remove();
+            totalWeight -= next.getValue().weight;
+            evictions.increment();
+        }
+    }
+
+    // a mailbox weighs one plus its cached headers; mailboxes change in place, so weights are
+    // refreshed whenever the mailbox is accessed
+    private void reweigh(Entry entry) {
+        long weight = 1 + entry.mailbox.size();
+        totalWeight += weight - entry.weight;
+        entry.weight = weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // headers cached across all mailboxes, as last measured
+    public synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    // estimated heap held by the cached mailboxes; walks every cached email, so it is meant for
+    // periodic stats rather than hot paths
+    public long estimateHeapBytes() {
+        List<Mailbox> mailboxes = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                mailboxes.add(entry.mailbox);
+            }
+        }
+        long bytes = 0;
+        for (Mailbox mailbox : mailboxes) {
+            bytes += mailbox.estimateHeapBytes();
+        }
+        return bytes;
+    }
+
+    public synchronized String getStats() {
+        return String.format("mailboxes=%d weight=%d hits=%d misses=%d evictions=%d",
+            entries.size(), totalWeight, hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    // a load in progress: the threads waiting for it and the changes to replay onto its result
+    private static final class Loading {
+        final CompletableFuture<Mailbox> future = new CompletableFuture<>();
+        final List<Consumer<Mailbox>> changes = new ArrayList<>();
+
+        Mailbox await() throws SQLException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                throw new SQLException("Loading mailbox failed", cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while loading mailbox", e);
+            }
+        }
+    }
+
+    // a cached mailbox and its last measured weight
+    private static final class Entry {
+        final Mailbox mailbox;
+        long weight;
+
+        Entry(Mailbox mailbox) {
+            this.mailbox = mailbox;
+        }
+    }
+}
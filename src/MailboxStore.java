@@ -0,0 +1,234 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// the client's on-disk copy of one user's mailbox: the headers it has loaded in every folder, the
+// bodies opened most recently and the change sequence they reflect, so the client can show the mailbox
+// before the server answers and then only ask for what changed since
+// bodies are held within email.client.cacheBytes and evicted least recently opened first; headers are
+// always kept. the file is rewritten whole through a temp file, so a crash leaves the previous copy
+public class MailboxStore {
+    private static final int MAGIC = 0x454D4331;
+    private static final int FORMAT_VERSION = 1;
+    // directory of the cache files; empty turns the cache off
+    private static final String CACHE_DIR = System.getProperty("email.client.cacheDir", "client-cache");
+    // body characters kept across all cached emails, roughly their size on disk
+    private static final long MAX_BODY_BYTES = Long.getLong("email.client.cacheBytes", 16L * 1024 * 1024);
+
+    private final Path file;
+    private final String userEmail;
+    // emails whose body is held, least recently opened first
+    private final LinkedHashMap<Integer, Email> bodies;
+    private long bodyBytes;
+    private volatile boolean dirty;
+
+    private MailboxStore(Path file, String userEmail) {
+        this.file = file;
+        this.userEmail = userEmail;
+        this.bodies = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    // the store for a user's mailbox, or null if the cache is turned off
+    public static MailboxStore forUser(String userEmail) {
+        if (CACHE_DIR.trim().isEmpty()) {
+            return null;
+        }
+        String name = userEmail.replaceAll("[^A-Za-z0-9._@-]", "_") + ".cache";
+        return new MailboxStore(Paths.get(CACHE_DIR, name), userEmail);
+    }
+
+    // what load() found on disk
+    public static final class Snapshot {
+        public final long modseq;
+        public final Map<String, List<Email>> folders;
+
+        Snapshot(long modseq, Map<String, List<Email>> folders) {
+            this.modseq = modseq;
+            this.folders = folders;
+        }
+    }
+
+    // reads the cached mailbox; null if there is none or it can't be used (another format, another
+    // user, a damaged file), in which case the client loads the mailbox from the server as usual
+    public synchronized Snapshot load() {
+        if (Files.notExists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int emailVersion = in.readInt();
+            if (emailVersion > WireProtocol.VERSION || !userEmail.equals(WireProtocol.readString(in))) {
+                return null;
+            }
+            long modseq = in.readLong();
+            Map<String, List<Email>> folders = new HashMap<>();
+            Map<Integer, Email> byId = new HashMap<>();
+            int folderCount = in.readInt();
+            for (int f = 0; f < folderCount; f++) {
+                String name = WireProtocol.readString(in);
+                int count = in.readInt();
+                List<Email> emails = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    Email email = WireProtocol.decodeEmail(in, emailVersion);
+                    emails.add(email);
+                    byId.put(email.getId(), email);
+                }
+                folders.put(name, emails);
+            }
+
+            bodies.clear();
+            bodyBytes = 0;
+            int bodyCount = in.readInt();
+            for (int i = 0; i < bodyCount; i++) {
+                Email email = byId.get(in.readInt());
+                if (email != null && !email.isHeaderOnly()) {
+                    hold(email);
+                }
+            }
+            dirty = false;
+            return new Snapshot(modseq, folders);
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Ignoring unreadable mailbox cache {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    // writes the folders as they are now; modseq has to be read before the folders, so a change that
+    // lands meanwhile is fetched again rather than skipped
+    public synchronized void save(long modseq, Map<String, Folder> folders) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(WireProtocol.VERSION);
+            WireProtocol.writeString(out, userEmail);
+            out.writeLong(modseq);
+            out.writeInt(folders.size());
+            for (Map.Entry<String, Folder> entry : folders.entrySet()) {
+                // a copy, so the count written matches the emails that follow
+                Folder folder = entry.getValue();
+                List<Email> emails = folder.getEmails(0, folder.size());
+                WireProtocol.writeString(out, entry.getKey());
+                out.writeInt(emails.size());
+                for (Email email : emails) {
+                    // a body is only written while it is held, so the file stays within the cap
+                    WireProtocol.encodeEmail(bodies.containsKey(email.getId()) ? email : headerOf(email), out,
+                        WireProtocol.VERSION);
+                }
+            }
+            // least recently opened first, so eviction carries on where it left off
+            out.writeInt(bodies.size());
+            for (int emailId : bodies.keySet()) {
+                out.writeInt(emailId);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    // the email with its body left out
+    private static Email headerOf(Email email) {
+        if (email.isHeaderOnly()) {
+            return email;
+        }
+        Email header = new Email(email.getFrom(), email.getTo(), email.getSubject(), null);
+        header.setId(email.getId());
+        header.setFolderId(email.getFolderId());
+        header.setFolder(email.getFolder());
+        header.setTimestamp(email.getTimestamp());
+        header.setRead(email.isRead());
+        header.setCc(email.getCc());
+        header.setBcc(email.getBcc());
+        return header;
+    }
+
+    // records that an email's body was fetched or opened, evicting the least recently opened bodies
+    // once the cap is exceeded; evicted emails go back to header-only and are fetched again when opened
+    public synchronized void touch(Email email) {
+        if (email.isHeaderOnly() || email.getId() <= 0) {
+            return;
+        }
+        Email held = bodies.get(email.getId());
+        if (held != email) {
+            if (held != null) {
+                release(email.getId());
+            }
+            hold(email);
+        }
+        Iterator<Email> eldest = bodies.values().iterator();
+        while (bodyBytes > MAX_BODY_BYTES && eldest.hasNext()) {
+            Email evicted = eldest.next();
+            if (evicted == email) {
+                continue;
+            }
+            eldest.remove();
+            bodyBytes -= weigh(evicted);
+            evicted.setContent(null);
+        }
+        dirty = true;
+    }
+
+    // drops a deleted email's body
+    public synchronized void forget(int emailId) {
+        release(emailId);
+        dirty = true;
+    }
+
+    // after the folders were reloaded: keeps holding the bodies of emails that are still there, now
+    // through their new instances, in the same order
+    public synchronized void rebind(Map<Integer, Email> emailsById) {
+        List<Integer> order = new ArrayList<>(bodies.keySet());
+        bodies.clear();
+        bodyBytes = 0;
+        for (int emailId : order) {
+            Email email = emailsById.get(emailId);
+            if (email != null && !email.isHeaderOnly()) {
+                hold(email);
+            }
+        }
+        dirty = true;
+    }
+
+    private void hold(Email email) {
+        bodies.put(email.getId(), email);
+        bodyBytes += weigh(email);
+    }
+
+    private void release(int emailId) {
+        Email email = bodies.remove(emailId);
+        if (email != null) {
+            bodyBytes -= weigh(email);
+        }
+    }
+
+    // about one byte per character for typical mail
+    private static long weigh(Email email) {
+        String content = email.getContent();
+        return content != null ? content.length() : 0;
+    }
+
+    // something changed since the last save
+    public void markDirty() {
+        dirty = true;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public synchronized long getBodyBytes() {
+        return bodyBytes;
+    }
+}
@@ -1,20 +1,24 @@
 import java.util.Scanner;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.io.IOException;
 import java.time.format.DateTimeFormatter;
 
 public class Menu {
     private Scanner scanner;
     private Auth auth;
+    // the logged-in user's client, which shares the connection the login was made on
     private EmailClient emailClient;
     private static final DateTimeFormatter DATE_TIME_FORMATTER = 
         DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss");
+    // emails listed per page of a folder
+    private static final int FOLDER_PAGE_SIZE = 20;
 
     public Menu() {
         this.scanner = new Scanner(System.in);
         this.auth = Auth.getInstance();
-        this.emailClient = new EmailClient();
     }
 
     public void showMainMenu() {
@@ -50,12 +54,8 @@ public class Menu {
         String password = scanner.nextLine();
 
         if (auth.login(email, password)) {
-            if (emailClient.connect(email)) {
-                showUserMenu();
-            } else {
-                System.out.println("Failed to connect to email server");
-                auth.logout();
-            }
+            emailClient = auth.getCurrentUser().getEmailClient();
+            showUserMenu();
         }
     }
 
@@ -219,9 +219,14 @@ public class Menu {
             }
         }
         if (to == null) {
-            System.out.print("Enter recipient's email: ");
+            System.out.print("Enter recipient emails (comma separated): ");
             to = scanner.nextLine();
         }
+
+        System.out.print("Cc (comma separated, Enter for none): ");
+        String cc = scanner.nextLine();
+        System.out.print("Bcc (comma separated, Enter for none): ");
+        String bcc = scanner.nextLine();
         
         System.out.print("Enter subject: ");
         String subject = scanner.nextLine();
@@ -234,7 +239,7 @@ public class Menu {
         }
         
         try {
-            boolean success = emailClient.sendEmail(to, subject, content.toString());
+            boolean success = emailClient.sendEmail(to, cc, bcc, subject, content.toString());
             if (success) {
                 System.out.println("Email sent successfully.");
             }
@@ -248,7 +253,8 @@ public class Menu {
             System.out.println("\n=== Folders ===");
             System.out.println("1. Inbox");
             System.out.println("2. Spam");
-            System.out.println("3. Back to Main Menu");
+            System.out.println("3. Search Emails");
+            System.out.println("4. Back to Main Menu");
             System.out.print("Choose a folder: ");
 
             int choice = getIntInput();
@@ -260,6 +266,9 @@ public class Menu {
                     handleFolderView("spam");
                     break;
                 case 3:
+                    handleSearch();
+                    break;
+                case 4:
                     return;
                 default:
                     System.out.println("Invalid option. Please try again.");
@@ -268,11 +277,17 @@ public class Menu {
     }
 
     private void handleFolderView(String folderName) {
+        int offset = 0;
         while (true) {
-            List<Email> emails = folderName.equals("inbox") ? 
-                emailClient.getSortedInbox() : emailClient.getSortedSpam();
-            
-            System.out.println("\n=== " + folderName.toUpperCase() + " ===");
+            // the folder can shrink while it is shown, so step back to its last page
+            int size = emailClient.getFolderSize(folderName);
+            while (offset > 0 && offset >= size) {
+                offset = Math.max(0, offset - FOLDER_PAGE_SIZE);
+            }
+            List<Email> emails = emailClient.getEmails(folderName, offset, FOLDER_PAGE_SIZE);
+
+            System.out.println("\n=== " + folderName.toUpperCase()
+                + " (page " + (offset / FOLDER_PAGE_SIZE + 1) + ") ===");
             if (!emails.isEmpty()) {
                 for (int i = 0; i < emails.size(); i++) {
                     Email email = emails.get(i);
@@ -294,11 +309,14 @@ public class Menu {
             System.out.println("3. Mark as Unread");
             System.out.println("4. Delete Email");
             System.out.println("5. Move to " + (folderName.equals("inbox") ? "Spam" : "Inbox"));
-            System.out.println("6. Back to Folders");
+            System.out.println("6. Load Older Emails");
+            System.out.println("7. Next Page");
+            System.out.println("8. Previous Page");
+            System.out.println("9. Back to Folders");
             System.out.print("Choose an option: ");
 
             int choice = getIntInput();
-            if (emails.isEmpty() && choice != 6) {
+            if (emails.isEmpty() && (choice < 6 || choice > 9)) {
                 System.out.println("No emails to perform operations on.");
                 continue;
             }
@@ -320,6 +338,85 @@ public class Menu {
                     moveEmailBetweenFolders(emails, folderName);
                     break;
                 case 6:
+                    int loaded = emailClient.loadOlderEmails(folderName);
+                    System.out.println(loaded > 0 ? "Loaded " + loaded + " older emails." : "No older emails.");
+                    break;
+                case 7:
+                    if (offset + emails.size() < emailClient.getFolderSize(folderName)) {
+                        offset += FOLDER_PAGE_SIZE;
+                    } else {
+                        System.out.println("No more emails.");
+                    }
+                    break;
+                case 8:
+                    offset = Math.max(0, offset - FOLDER_PAGE_SIZE);
+                    break;
+                case 9:
+                    return;
+                default:
+                    System.out.println("Invalid option. Please try again.");
+            }
+        }
+    }
+
+    // searches subject, sender and body across all folders; the server returns best matches first
+    private void handleSearch() {
+        System.out.print("\nSearch for: ");
+        String query = scanner.nextLine().trim();
+        if (query.isEmpty()) {
+            return;
+        }
+        // offsets of the pages already shown, for going back
+        Deque<Integer> previousOffsets = new ArrayDeque<>();
+        int offset = 0;
+        while (true) {
+            List<Email> results = emailClient.searchEmails(query, null, offset);
+
+            System.out.println("\n=== Search: " + query + " (page " + (previousOffsets.size() + 1) + ") ===");
+            if (!results.isEmpty()) {
+                for (int i = 0; i < results.size(); i++) {
+                    Email email = results.get(i);
+                    System.out.printf("%d. [%s] %s - From: %s, Subject: %s, Time: %s%n",
+                        i + 1,
+                        email.isRead() ? "READ" : "UNREAD",
+                        email.getFolder(),
+                        email.getFrom(),
+                        email.getSubject(),
+                        email.getTimestamp().format(DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm")));
+                }
+            } else {
+                System.out.println(offset == 0 ? "No matching emails." : "No more matching emails.");
+            }
+            System.out.println("----------------------------------------");
+
+            System.out.println("\n=== Search Options ===");
+            System.out.println("1. View Full Email");
+            System.out.println("2. Next Page");
+            System.out.println("3. Previous Page");
+            System.out.println("4. Back to Folders");
+            System.out.print("Choose an option: ");
+
+            int choice = getIntInput();
+            switch (choice) {
+                case 1:
+                    if (results.isEmpty()) {
+                        System.out.println("No emails to view.");
+                    } else {
+                        viewFullEmailInFolder(results);
+                    }
+                    break;
+                case 2:
+                    if (!results.isEmpty()) {
+                        previousOffsets.push(offset);
+                        offset += results.size();
+                    }
+                    break;
+                case 3:
+                    if (!previousOffsets.isEmpty()) {
+                        offset = previousOffsets.pop();
+                    }
+                    break;
+                case 4:
                     return;
                 default:
                     System.out.println("Invalid option. Please try again.");
@@ -333,19 +430,24 @@ public class Menu {
 
         if (choice > 0 && choice <= emails.size()) {
             Email email = emails.get(choice - 1);
+            // listings only carry headers; the body is fetched the first time it is opened
+            String content = emailClient.fetchEmailContent(email);
             System.out.println("\n=== Email Details ===");
             System.out.println("From: " + email.getFrom());
             System.out.println("To: " + email.getTo());
+            if (!email.getCc().isEmpty()) {
+                System.out.println("Cc: " + email.getCc());
+            }
             System.out.println("Subject: " + email.getSubject());
             System.out.println("Time: " + email.getTimestamp().format(DATE_TIME_FORMATTER));
             System.out.println("Status: " + (email.isRead() ? "READ" : "UNREAD"));
             System.out.println("\nContent:");
             System.out.println("----------------------------------------");
-            System.out.println(email.getContent());
+            System.out.println(content != null ? content : "(content unavailable)");
             System.out.println("----------------------------------------");
             
             if (!email.isRead()) {
-                emailClient.markEmailAsRead(choice - 1);
+                emailClient.markEmailAsRead(email.getId());
             }
         } else if (choice != 0) {
             System.out.println("Invalid email number.");
@@ -372,10 +474,10 @@ public class Menu {
 
         if (choice > 0 && choice <= emails.size()) {
             if (markAsRead) {
-                emailClient.markEmailAsRead(choice - 1);
+                emailClient.markEmailAsRead(emails.get(choice - 1).getId());
                 System.out.println("Email marked as read.");
             } else {
-                emailClient.markEmailAsUnread(choice - 1);
+                emailClient.markEmailAsUnread(emails.get(choice - 1).getId());
                 System.out.println("Email marked as unread.");
             }
         } else if (choice != 0) {
@@ -401,7 +503,7 @@ public class Menu {
         int choice = getIntInput();
 
         if (choice > 0 && choice <= emails.size()) {
-            emailClient.deleteEmail(choice - 1);
+            emailClient.deleteEmail(emails.get(choice - 1).getId());
             System.out.println("Email deleted successfully.");
         } else if (choice != 0) {
             System.out.println("Invalid email number.");
@@ -427,7 +529,7 @@ public class Menu {
 
         if (choice > 0 && choice <= emails.size()) {
             String targetFolder = currentFolder.equals("inbox") ? "spam" : "inbox";
-            emailClient.moveEmailToFolder(choice - 1, targetFolder);
+            emailClient.moveEmailToFolder(emails.get(choice - 1).getId(), targetFolder);
             System.out.println("Email moved to " + targetFolder + ".");
         } else if (choice != 0) {
             System.out.println("Invalid email number.");
@@ -435,8 +537,8 @@ public class Menu {
     }
 
     private void handleLogout() {
-        emailClient.disconnect();
         auth.logout();
+        emailClient = null;
         System.out.println("Logged out successfully.");
     }
 
@@ -0,0 +1,73 @@
+import java.io.*;
+
+// transport-independent message channel between clients and the email server
+// messages are command/status strings, Email objects or User objects
+public abstract class MessageChannel implements Closeable {
+    // reads the next message sent by the peer
+    public abstract Object readMessage() throws IOException, ClassNotFoundException;
+
+    // queues a message for the peer; nothing is sent until flush
+    public abstract void writeMessage(Object message) throws IOException;
+
+    // sends every queued message
+    public abstract void flush() throws IOException;
+
+    // number of bytes already received but not consumed yet
+    public abstract int available() throws IOException;
+
+    // short name of the wire format, for logging
+    public abstract String getProtocolName();
+
+    // whether the peer understands TAG and REPLY framing
+    public boolean supportsRequestTags() {
+        return true;
+    }
+
+    // whether the peer can be sent header-only emails and fetch their bodies later
+    public boolean supportsHeaderOnly() {
+        return true;
+    }
+
+    // server side: detects whether the client speaks the binary protocol or java serialization
+    public static MessageChannel accept(InputStream in, OutputStream out) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        int first = pushback.read();
+        int second = pushback.read();
+        if (first < 0 || second < 0) {
+            throw new EOFException("Client closed before negotiating a protocol");
+        }
+
+        if (first == WireProtocol.MAGIC_0 && second == WireProtocol.MAGIC_1) {
+            int version = pushback.read();
+            if (version < 0) {
+                throw new EOFException("Client closed during protocol negotiation");
+            }
+            int agreed = Math.min(version, WireProtocol.VERSION);
+            out.write(new byte[]{WireProtocol.MAGIC_0, WireProtocol.MAGIC_1, (byte) agreed});
+            out.flush();
+            return new BinaryMessageChannel(pushback, out, agreed);
+        }
+
+        // anything else must be an old client starting a java serialization stream
+        pushback.unread(second);
+        pushback.unread(first);
+        return new LegacyMessageChannel(pushback, out);
+    }
+
+    // client side: opens the binary protocol unless email.client.protocol=legacy is set
+    public static MessageChannel connect(InputStream in, OutputStream out) throws IOException {
+        if ("legacy".equalsIgnoreCase(System.getProperty("email.client.protocol"))) {
+            return new LegacyMessageChannel(in, out);
+        }
+
+        out.write(new byte[]{WireProtocol.MAGIC_0, WireProtocol.MAGIC_1, (byte) WireProtocol.VERSION});
+        out.flush();
+        int first = in.read();
+        int second = in.read();
+        int version = in.read();
+        if (first != (WireProtocol.MAGIC_0 & 0xFF) || second != (WireProtocol.MAGIC_1 & 0xFF) || version < 1) {
+            throw new IOException("Server did not accept the binary protocol");
+        }
+        return new BinaryMessageChannel(in, out, version);
+    }
+}
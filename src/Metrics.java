@@ -0,0 +1,264 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// process-wide registry of named counters, gauges and latency histograms
+// hot paths look their metrics up once (static final fields) and then only touch a LongAdder or an
+// atomic bucket; everything is cumulative since startup. render() is what the STATS command returns,
+// and the server can append a snapshot to a csv or text file every email.metrics.dumpMs
+public class Metrics {
+    private static Metrics instance;
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String CSV_HEADER = "timestamp,name,type,count,value,mean_us,p50_us,p90_us,p99_us,p999_us,max_us";
+
+    // sorted by name so related metrics print together
+    private final Map<String, Counter> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, Histogram> histograms;
+    private ScheduledExecutorService dumper;
+
+    private Metrics() {
+        this.counters = new ConcurrentSkipListMap<>();
+        this.gauges = new ConcurrentSkipListMap<>();
+        this.histograms = new ConcurrentSkipListMap<>();
+    }
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    // registers (or replaces) a value read when metrics are rendered
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // one metric per line: counters and gauges with their value, histograms with count and latency
+    // percentiles in microseconds
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(readGauge(entry.getValue())).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            out.append(entry.getKey()).append(String.format(
+                " count=%d mean=%dus p50=%dus p90=%dus p99=%dus p999=%dus max=%dus%n",
+                histogram.getCount(), histogram.getMean() / 1_000, histogram.percentile(0.5) / 1_000,
+                histogram.percentile(0.9) / 1_000, histogram.percentile(0.99) / 1_000,
+                histogram.percentile(0.999) / 1_000, histogram.getMax() / 1_000));
+        }
+        return out.toString();
+    }
+
+    // one csv row per metric, all stamped with the same time
+    public String renderCsv() {
+        String now = LocalDateTime.now().format(FORMAT);
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            out.append(now).append(',').append(entry.getKey()).append(",counter,,")
+                .append(entry.getValue().get()).append(",,,,,,\n");
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            out.append(now).append(',').append(entry.getKey()).append(",gauge,,")
+                .append(readGauge(entry.getValue())).append(",,,,,,\n");
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.append(now).append(',').append(entry.getKey()).append(",histogram,")
+                .append(histogram.getCount()).append(",,")
+                .append(histogram.getMean() / 1_000).append(',')
+                .append(histogram.percentile(0.5) / 1_000).append(',')
+                .append(histogram.percentile(0.9) / 1_000).append(',')
+                .append(histogram.percentile(0.99) / 1_000).append(',')
+                .append(histogram.percentile(0.999) / 1_000).append(',')
+                .append(histogram.getMax() / 1_000).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static long readGauge(LongSupplier gauge) {
+        try {
+            return gauge.getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // starts appending a snapshot every email.metrics.dumpMs (0 turns it off) to email.metrics.file,
+    // as csv rows or, with email.metrics.format=text, as render() blocks
+    public synchronized void startDump() {
+        long periodMs = Long.getLong("email.metrics.dumpMs", 60_000);
+        if (periodMs <= 0 || dumper != null) {
+            return;
+        }
+        boolean text = System.getProperty("email.metrics.format", "csv").trim().equalsIgnoreCase("text");
+        Path file = Paths.get(System.getProperty("email.metrics.file", text ? "metrics.txt" : "metrics.csv"));
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file, text), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    private void dump(Path file, boolean text) {
+        try {
+            String snapshot;
+            if (text) {
+                snapshot = "=== " + LocalDateTime.now().format(FORMAT) + " ===" + System.lineSeparator() + render();
+            } else {
+                snapshot = renderCsv();
+                if (Files.notExists(file) || Files.size(file) == 0) {
+                    snapshot = CSV_HEADER + "\n" + snapshot;
+                }
+            }
+            Files.write(file, snapshot.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            Log.warn("Could not write metrics to {}: {}", file, e.getMessage());
+        }
+    }
+
+    // a monotonically increasing count
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // latency histogram in nanoseconds with hdr-style log-linear buckets: every power of two is split
+    // into SUB_BUCKETS equal buckets, so any recorded value is reported within ~3% of its true value,
+    // from 1ns up to MAX_VALUE, in a fixed array that recording never allocates into
+    public static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        // about 9.7 hours; larger values land in the last bucket
+        private static final int MAX_MAGNITUDE = 45;
+        private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+        private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+            buckets.incrementAndGet(indexOf(value));
+            count.increment();
+            sum.add(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        // records the time elapsed since a System.nanoTime() reading
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        // values below SUB_BUCKETS get a bucket each; above that, the top SUB_BITS + 1 bits pick the bucket
+        private static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        // the middle of a bucket's range
+        private static long valueOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long low = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return low + ((1L << shift) >> 1);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        // value at quantile q (0..1), in nanoseconds; concurrent recording may skew it by a few samples
+        public long percentile(double q) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(valueOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+}
@@ -0,0 +1,540 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// non-blocking connection engine built on a selector, with a small fixed set of event-loop threads
+// idle connections cost no thread; request handling runs on a separate worker pool
+public class NioServerEngine {
+    // how long a worker waits for more request data; workers are only given whole requests (see
+    // RequestFramer), so this only guards against a session reading past the end of one
+    private static final long READ_TIMEOUT_MS = 30_000;
+    // size of the per-loop read buffer
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // bytes a connection may have waiting for the socket before flush blocks; the blocked writer keeps
+    // the connection's outbound queue filling up, so its capacity and overflow policy apply as they
+    // do with blocking sockets
+    private static final int MAX_PENDING_BYTES = Integer.getInteger("email.server.nio.maxPendingBytes", 1024 * 1024);
+    // how long a flush waits for a client that reads nothing before the connection is dropped
+    private static final long WRITE_TIMEOUT_MS = Long.getLong("email.server.nio.writeTimeoutMs", 30_000);
+
+    // per-connection protocol state created when the first bytes arrive
+    public interface Session {
+        // reads and handles the next complete request from the connection input
+        void processNext() throws Exception;
+
+        // number of bytes the session has already buffered but not consumed
+        int available() throws IOException;
+
+        // called once when the connection is closed, from whichever thread closed it
+        default void closed() {
+        }
+    }
+
+    // creates the protocol session for a freshly accepted connection
+    public interface SessionFactory {
+        Session open(InputStream in, OutputStream out) throws IOException;
+    }
+
+    private final int port;
+    private final SessionFactory sessionFactory;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop;
+    // currently open connections and the highest count seen
+    private final AtomicInteger openConnections;
+    private final AtomicInteger peakConnections;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean running;
+
+    public NioServerEngine(int port, int ioThreads, int workerThreads, SessionFactory sessionFactory) {
+        this.port = port;
+        this.sessionFactory = sessionFactory;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads));
+        this.nextLoop = new AtomicInteger();
+        this.openConnections = new AtomicInteger();
+        this.peakConnections = new AtomicInteger();
+    }
+
+    // number of accepted connections that have not been closed yet
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    // highest number of simultaneously open connections since startup
+    public int getPeakConnections() {
+        return peakConnections.get();
+    }
+
+    // binds the server channel and starts the accept and event-loop threads
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+        running = true;
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread acceptor = new Thread(this::acceptLoop, "nio-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // accepts new channels and hands them to the event loops round-robin
+    private void acceptLoop() {
+        while (running) {
+            try {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        SocketChannel channel;
+                        while ((channel = serverChannel.accept()) != null) {
+                            channel.configureBlocking(false);
+                            channel.socket().setTcpNoDelay(true);
+                            IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                            int open = openConnections.incrementAndGet();
+                            peakConnections.accumulateAndGet(open, Math::max);
+                            loop.register(new NioConnection(channel, loop));
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Error accepting connection: {}", e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    // schedules the connection's session on the worker pool unless it is already queued
+    private void schedule(NioConnection conn) {
+        if (conn.scheduled.compareAndSet(false, true)) {
+            try {
+                workers.execute(() -> drain(conn));
+            } catch (RejectedExecutionException e) {
+                conn.close();
+            }
+        }
+    }
+
+    // handles every request that is already buffered for the connection, then releases it
+    private void drain(NioConnection conn) {
+        try {
+            if (conn.session == null) {
+                if (conn.input.isEof() && conn.input.available() == 0) {
+                    conn.close();
+                    return;
+                }
+                conn.session = sessionFactory.open(conn.input, conn.output);
+            }
+            while (conn.input.available() > 0 || conn.session.available() > 0 || conn.input.isEof()) {
+                conn.session.processNext();
+            }
+        } catch (EOFException | SocketTimeoutException | ClosedChannelException e) {
+            conn.close();
+            return;
+        } catch (Exception e) {
+            if (running) {
+                Log.error("Error reading from connection: {}", e.getMessage(), e);
+            }
+            conn.close();
+            return;
+        } finally {
+            conn.scheduled.set(false);
+        }
+
+        // bytes may have arrived between the last check and releasing the flag
+        if (conn.input.available() > 0 || conn.input.isEof()) {
+            schedule(conn);
+        }
+    }
+
+    // stops accepting, closes all connections and shuts down the worker pool
+    public void stop() {
+        running = false;
+        try {
+            if (acceptSelector != null) acceptSelector.close();
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            Log.error("Error closing server channel: {}", e.getMessage(), e);
+        }
+        for (IoLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+        }
+    }
+
+    // single event-loop thread owning one selector and the channels registered on it
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioConnection> pendingRegistrations;
+        private final Queue<NioConnection> pendingWrites;
+        private final ByteBuffer readBuffer;
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+            this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+            this.pendingWrites = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+
+        void register(NioConnection conn) {
+            pendingRegistrations.offer(conn);
+            selector.wakeup();
+        }
+
+        // asks the loop to start watching the connection for writability
+        void requestWrite(NioConnection conn) {
+            pendingWrites.offer(conn);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection) {
+                        ((NioConnection) key.attachment()).close();
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                // selector already closed
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    processPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            conn.close();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read(conn);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(conn);
+                        }
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    if (running) {
+                        Log.error("Error in selector loop: {}", e.getMessage(), e);
+                    }
+                }
+            }
+        }
+
+        private void processPending() {
+            NioConnection conn;
+            while ((conn = pendingRegistrations.poll()) != null) {
+                try {
+                    conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                    // the session may already have queued output (e.g. the stream header)
+                    if (conn.output.hasPending()) {
+                        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                } catch (ClosedChannelException e) {
+                    conn.close();
+                }
+            }
+            while ((conn = pendingWrites.poll()) != null) {
+                SelectionKey key = conn.key;
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void read(NioConnection conn) {
+            try {
+                int total = 0;
+                int n;
+                while ((n = conn.channel.read(readBuffer)) > 0) {
+                    readBuffer.flip();
+                    byte[] chunk = new byte[readBuffer.remaining()];
+                    readBuffer.get(chunk);
+                    readBuffer.clear();
+                    conn.input.append(chunk, conn.framer.feed(chunk));
+                    total += n;
+                }
+                if (n < 0) {
+                    conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                    conn.input.markEof();
+                    schedule(conn);
+                } else if (total > 0 && conn.input.available() > 0) {
+                    schedule(conn);
+                }
+            } catch (StreamCorruptedException e) {
+                readBuffer.clear();
+                Log.warn("Closing connection that sent a malformed request: {}", e.getMessage());
+                conn.close();
+            } catch (IOException e) {
+                readBuffer.clear();
+                conn.input.markEof();
+                schedule(conn);
+            }
+        }
+
+        private void write(NioConnection conn) {
+            try {
+                if (conn.output.writeTo(conn.channel)) {
+                    conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+                    if (conn.output.hasPending()) {
+                        // a flush raced with clearing the interest; keep writing
+                        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+    }
+
+    // state for one accepted channel
+    private class NioConnection {
+        final SocketChannel channel;
+        final IoLoop loop;
+        final ChannelInputStream input;
+        final ChannelOutputStream output;
+        // owned by the event loop; tells the input which received bytes complete a request
+        final RequestFramer framer;
+        final AtomicBoolean scheduled;
+        final AtomicBoolean closed;
+        volatile SelectionKey key;
+        // created and used by the worker currently holding the scheduled flag; read on close
+        volatile Session session;
+
+        NioConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.input = new ChannelInputStream();
+            this.framer = new RequestFramer();
+            this.output = new ChannelOutputStream(this);
+            this.scheduled = new AtomicBoolean(false);
+            this.closed = new AtomicBoolean(false);
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                openConnections.decrementAndGet();
+                output.closed();
+                Session current = session;
+                if (current != null) {
+                    current.closed();
+                }
+            }
+            input.markEof();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // channel already closed
+            }
+        }
+    }
+
+    // input stream fed by the event loop; only bytes that complete a request are readable, so a worker
+    // never waits for the rest of one
+    private static class ChannelInputStream extends InputStream {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset;
+        // readable bytes; received bytes of an unfinished request stay in chunks but are not counted
+        private int available;
+        private boolean eof;
+
+        // adds received bytes, of which released more (counted from the end of the readable bytes)
+        // complete requests
+        synchronized void append(byte[] chunk, int released) {
+            chunks.addLast(chunk);
+            available += released;
+            if (released > 0) {
+                notifyAll();
+            }
+        }
+
+        synchronized void markEof() {
+            eof = true;
+            notifyAll();
+        }
+
+        synchronized boolean isEof() {
+            return eof;
+        }
+
+        @Override
+        public synchronized int available() {
+            return available;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            long deadline = System.currentTimeMillis() + READ_TIMEOUT_MS;
+            while (available == 0) {
+                if (eof) return -1;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for request data");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading");
+                }
+            }
+
+            int wanted = Math.min(len, available);
+            int copied = 0;
+            while (copied < wanted) {
+                byte[] head = chunks.peekFirst();
+                int n = Math.min(wanted - copied, head.length - offset);
+                System.arraycopy(head, offset, b, off + copied, n);
+                copied += n;
+                offset += n;
+                if (offset == head.length) {
+                    chunks.pollFirst();
+                    offset = 0;
+                }
+            }
+            available -= copied;
+            return copied;
+        }
+    }
+
+    // output stream that collects writes and hands them to the event loop on flush; flush waits while
+    // MAX_PENDING_BYTES are already waiting for the socket
+    private static class ChannelOutputStream extends OutputStream {
+        private final NioConnection conn;
+        private final Queue<ByteBuffer> pending;
+        private ByteArrayOutputStream buffer;
+        // bytes handed to the event loop and not yet written to the socket
+        private long pendingBytes;
+
+        ChannelOutputStream(NioConnection conn) {
+            this.conn = conn;
+            this.pending = new ConcurrentLinkedQueue<>();
+            this.buffer = new ByteArrayOutputStream(256);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            ensureOpen();
+            buffer.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            buffer.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            ensureOpen();
+            if (buffer.size() == 0) return;
+            long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+            while (pendingBytes >= MAX_PENDING_BYTES) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Client is not reading its connection");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the connection to drain");
+                }
+                ensureOpen();
+            }
+            pendingBytes += buffer.size();
+            pending.offer(ByteBuffer.wrap(buffer.toByteArray()));
+            buffer = new ByteArrayOutputStream(256);
+            conn.loop.requestWrite(conn);
+        }
+
+        // wakes a flush waiting for space on a connection that was just closed
+        synchronized void closed() {
+            notifyAll();
+        }
+
+        private synchronized void written(int bytes) {
+            pendingBytes -= bytes;
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+            conn.close();
+        }
+
+        boolean hasPending() {
+            return !pending.isEmpty();
+        }
+
+        // writes as much as the socket accepts; returns true once everything queued is sent
+        boolean writeTo(SocketChannel channel) throws IOException {
+            ByteBuffer head;
+            while ((head = pending.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    return false;
+                }
+                pending.poll();
+                written(head.capacity());
+            }
+            return true;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (!conn.channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
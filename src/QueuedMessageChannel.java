@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// server-side channel whose output goes through a bounded per-connection queue
+// replies and pushes from any thread are queued as whole groups and written by one drain task at
+// a time on a shared writer pool, so they never interleave and a slow client never blocks the
+// thread that produced the message; everything queued by one drain is sent with a single flush
+public class QueuedMessageChannel extends MessageChannel {
+    // what happens to a push when the connection's queue is full
+    public enum OverflowPolicy {
+        // drop the push and keep the connection
+        DROP,
+        // close the connection; the client reloads its mailbox when it reconnects
+        DISCONNECT;
+
+        static OverflowPolicy fromProperty() {
+            String value = System.getProperty("email.server.outbound.overflow", "disconnect");
+            try {
+                return OverflowPolicy.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                Log.warn("Unknown outbound overflow policy '{}', using disconnect", value);
+                return DISCONNECT;
+            }
+        }
+    }
+
+    // queued groups per connection before backpressure applies
+    private static final int CAPACITY = Integer.getInteger("email.server.outbound.capacity", 256);
+    // how long a reply may wait for queue space before the connection is considered stuck
+    private static final long REPLY_WAIT_MS = Long.getLong("email.server.outbound.replyWaitMs", 5_000);
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.fromProperty();
+    // tagged requests a connection may have in flight before the server stops reading from it
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("email.server.maxInFlight", 32);
+
+    // outbound counters across all connections
+    private static final AtomicLong QUEUED = new AtomicLong();
+    private static final LongAdder WRITTEN = new LongAdder();
+    private static final LongAdder FLUSHES = new LongAdder();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final LongAdder OVERFLOW_DISCONNECTS = new LongAdder();
+
+    private final MessageChannel delegate;
+    private final Executor writers;
+    // groups waiting to be written, oldest first
+    private final ArrayDeque<Object[]> queue;
+    private final ReentrantLock lock;
+    private final Condition notFull;
+    // messages written by the current thread since its last flush
+    private final ThreadLocal<List<Object>> pending;
+    // tag of the request the current thread is answering, if it was tagged
+    private final ThreadLocal<Integer> replyTag;
+    // tagged requests of this connection still being handled
+    private final Semaphore inFlight;
+    // set while a drain task is queued or running
+    private final AtomicBoolean scheduled;
+    private volatile boolean closed;
+
+    public QueuedMessageChannel(MessageChannel delegate, Executor writers) {
+        this.delegate = delegate;
+        this.writers = writers;
+        this.queue = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.notFull = lock.newCondition();
+        this.pending = ThreadLocal.withInitial(ArrayList::new);
+        this.replyTag = new ThreadLocal<>();
+        this.inFlight = new Semaphore(MAX_IN_FLIGHT);
+        this.scheduled = new AtomicBoolean(false);
+    }
+
+    @Override
+    public Object readMessage() throws IOException, ClassNotFoundException {
+        return delegate.readMessage();
+    }
+
+    // collects a message for the calling thread; flush queues everything collected as one group
+    @Override
+    public void writeMessage(Object message) throws IOException {
+        if (closed) {
+            throw new IOException("Connection is closed");
+        }
+        pending.get().add(message);
+    }
+
+    // queues the calling thread's messages as a reply, waiting for space if the queue is full;
+    // a client that stays too slow to drain its own replies is disconnected
+    // the reply to a tagged request is prefixed with REPLY:tag:count so the client can match it
+    @Override
+    public void flush() throws IOException {
+        List<Object> messages = pending.get();
+        if (messages.isEmpty()) {
+            return;
+        }
+        Integer tag = replyTag.get();
+        Object[] group;
+        if (tag == null) {
+            group = messages.toArray();
+        } else {
+            group = new Object[messages.size() + 1];
+            group[0] = "REPLY:" + tag + ":" + messages.size();
+            for (int i = 0; i < messages.size(); i++) {
+                group[i + 1] = messages.get(i);
+            }
+        }
+        messages.clear();
+        pending.remove();
+
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(REPLY_WAIT_MS);
+            while (queue.size() >= CAPACITY && !closed) {
+                if (remaining <= 0) {
+                    OVERFLOW_DISCONNECTS.increment();
+                    closeQuietly();
+                    throw new IOException("Client is not reading its replies");
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            enqueue(group);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for outbound queue space", e);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    // marks the current thread as answering a tagged request until endReply
+    public void beginReply(int tag) {
+        replyTag.set(tag);
+    }
+
+    // messages a failed handler wrote but never flushed must not leak into the next request this
+    // thread answers
+    public void endReply() {
+        replyTag.remove();
+        pending.remove();
+    }
+
+    // drops whatever the calling thread has written since its last flush, e.g. the partial reply of
+    // a handler that failed
+    public void discardReply() {
+        pending.remove();
+    }
+
+    // waits for one of this connection's request slots; the reader stops here, so a client that
+    // pipelines too far ahead is slowed down by tcp backpressure
+    public void acquireRequestSlot() throws IOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a request slot");
+        }
+    }
+
+    public void releaseRequestSlot() {
+        inFlight.release();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // queues an unsolicited message group (e.g. a new-email notification) without ever blocking;
+    // on a full queue the overflow policy decides. returns false if the group was not queued
+    public boolean push(Object... group) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (queue.size() >= CAPACITY) {
+                if (OVERFLOW_POLICY == OverflowPolicy.DROP) {
+                    DROPPED.increment();
+                } else {
+                    OVERFLOW_DISCONNECTS.increment();
+                    closeQuietly();
+                }
+                return false;
+            }
+            enqueue(group);
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+        return true;
+    }
+
+    private void enqueue(Object[] group) {
+        if (closed) {
+            return;
+        }
+        queue.addLast(group);
+        QUEUED.incrementAndGet();
+    }
+
+    // starts a drain task unless one is already queued or running
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                writers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                closeQuietly();
+            }
+        }
+    }
+
+    // writes every queued group, then flushes once
+    private void drain() {
+        try {
+            List<Object[]> batch = new ArrayList<>();
+            while (true) {
+                lock.lock();
+                try {
+                    batch.addAll(queue);
+                    QUEUED.addAndGet(-queue.size());
+                    queue.clear();
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (batch.isEmpty() || closed) {
+                    break;
+                }
+                for (Object[] group : batch) {
+                    for (Object message : group) {
+                        delegate.writeMessage(message);
+                        WRITTEN.increment();
+                    }
+                }
+                delegate.flush();
+                FLUSHES.increment();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            closeQuietly();
+        } finally {
+            scheduled.set(false);
+        }
+
+        // a group may have been queued after the last check but before the flag was released
+        lock.lock();
+        try {
+            if (queue.isEmpty() || closed) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    // number of groups waiting on this connection
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return delegate.available();
+    }
+
+    @Override
+    public String getProtocolName() {
+        return delegate.getProtocolName();
+    }
+
+    @Override
+    public boolean supportsHeaderOnly() {
+        return delegate.supportsHeaderOnly();
+    }
+
+    // drops anything still queued and closes the underlying connection
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            QUEUED.addAndGet(-queue.size());
+            queue.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        delegate.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // the connection is being dropped anyway
+        }
+    }
+
+    // groups waiting across all connections
+    public static long getQueuedTotal() {
+        return QUEUED.get();
+    }
+
+    public static String getStats() {
+        return String.format("outboundQueued=%d outboundWritten=%d outboundFlushes=%d outboundDropped=%d "
+                + "outboundDisconnects=%d",
+            QUEUED.get(), WRITTEN.sum(), FLUSHES.sum(), DROPPED.sum(), OVERFLOW_DISCONNECTS.sum());
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// finds where complete requests end in the bytes a client has sent, so the selector engine hands a
+// connection to a worker only when the worker can read a whole request without waiting for the socket
+// a request is one message, or a TAG or SEND_EMAIL message together with the message it announces.
+// binary frames are measured by their length prefix; the java serialization stream of older clients
+// is walked with the same grammar ObjectInputStream reads, keeping its handle table between requests
+// used by one event-loop thread per connection
+final class RequestFramer {
+    // largest request an older client may have buffered; its stream has no length prefixes, so an
+    // unfinished request is scanned again whenever more of it arrives
+    private static final int LEGACY_MAX_REQUEST = WireProtocol.MAX_FRAME_SIZE / 16;
+
+    private static final int PHASE_NEGOTIATE = 0;
+    private static final int PHASE_BINARY = 1;
+    private static final int PHASE_LEGACY = 2;
+
+    // java serialization stream tokens, as in java.io.ObjectStreamConstants
+    private static final int TC_NULL = 0x70;
+    private static final int TC_REFERENCE = 0x71;
+    private static final int TC_CLASSDESC = 0x72;
+    private static final int TC_OBJECT = 0x73;
+    private static final int TC_STRING = 0x74;
+    private static final int TC_ARRAY = 0x75;
+    private static final int TC_CLASS = 0x76;
+    private static final int TC_BLOCKDATA = 0x77;
+    private static final int TC_ENDBLOCKDATA = 0x78;
+    private static final int TC_RESET = 0x79;
+    private static final int TC_BLOCKDATALONG = 0x7A;
+    private static final int TC_LONGSTRING = 0x7C;
+    private static final int TC_PROXYCLASSDESC = 0x7D;
+    private static final int TC_ENUM = 0x7E;
+    private static final int BASE_WIRE_HANDLE = 0x7E0000;
+    private static final int SC_WRITE_METHOD = 0x01;
+    private static final int SC_SERIALIZABLE = 0x02;
+    private static final int SC_EXTERNALIZABLE = 0x04;
+    private static final int SC_BLOCK_DATA = 0x08;
+    // nesting deeper than this is treated as a malformed stream rather than risking the loop's stack
+    private static final int MAX_DEPTH = 256;
+
+    // thrown while walking a request that has not been fully received yet
+    private static final class NeedMore extends Exception {
+        NeedMore() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final NeedMore NEED_MORE = new NeedMore();
+    // returned by content() for TC_ENDBLOCKDATA
+    private static final Object END_BLOCK = new Object();
+
+    // what the scanner keeps of a class descriptor: enough to know how its instances are laid out
+    private static final class ClassDesc {
+        final String name;
+        int flags;
+        char[] fieldTypes = new char[0];
+        ClassDesc superDesc;
+
+        ClassDesc(String name) {
+            this.name = name;
+        }
+    }
+
+    private int phase = PHASE_NEGOTIATE;
+    // received bytes that do not complete a request yet
+    private byte[] buf = new byte[256];
+    private int len;
+    // buffered size below which the unfinished request cannot be complete
+    private int needAt;
+    // read position while walking buf
+    private int pos;
+    private int depth;
+    // objects of the legacy stream in handle order; class descriptors are kept, anything else is a
+    // placeholder or the string itself
+    private List<Object> handles = new ArrayList<>();
+
+    // takes the next bytes received on the connection and returns how many bytes, counted from the
+    // end of the last complete request, now complete one or more requests
+    int feed(byte[] chunk) throws IOException {
+        ensureCapacity(len + chunk.length);
+        System.arraycopy(chunk, 0, buf, len, chunk.length);
+        len += chunk.length;
+        if (len < needAt) {
+            checkLegacySize();
+            return 0;
+        }
+
+        int released = 0;
+        while (released < len) {
+            int end = scanRequest(released);
+            if (end < 0) {
+                break;
+            }
+            released = end;
+        }
+        if (released > 0) {
+            System.arraycopy(buf, released, buf, 0, len - released);
+            len -= released;
+            needAt = needAt > released ? needAt - released : 0;
+        }
+        checkLegacySize();
+        return released;
+    }
+
+    private void checkLegacySize() throws StreamCorruptedException {
+        if (phase == PHASE_LEGACY && Math.max(len, needAt) > LEGACY_MAX_REQUEST) {
+            throw new StreamCorruptedException("Request larger than " + LEGACY_MAX_REQUEST + " bytes");
+        }
+    }
+
+    // end offset of the request starting at start, or -1 if it has not been fully received
+    private int scanRequest(int start) throws IOException {
+        pos = start;
+        List<Object> savedHandles = handles;
+        int savedSize = handles.size();
+        try {
+            switch (phase) {
+                case PHASE_NEGOTIATE:
+                    negotiate();
+                    break;
+                case PHASE_BINARY:
+                    while (binaryFrameAnnouncesMore()) {
+                        // the announced message belongs to the same request
+                    }
+                    break;
+                default:
+                    while (legacyMessageAnnouncesMore()) {
+                        // the announced message belongs to the same request
+                    }
+                    break;
+            }
+            needAt = 0;
+            return pos;
+        } catch (NeedMore e) {
+            needAt = Math.max(pos, start + 1);
+            handles = savedHandles;
+            handles.subList(savedSize, handles.size()).clear();
+            return -1;
+        }
+    }
+
+    // the protocol preamble: the binary magic and version, or the header of a serialization stream
+    private void negotiate() throws NeedMore {
+        require(2);
+        if (buf[pos] == WireProtocol.MAGIC_0 && buf[pos + 1] == WireProtocol.MAGIC_1) {
+            skip(3);
+            phase = PHASE_BINARY;
+        } else {
+            skip(4);
+            phase = PHASE_LEGACY;
+        }
+    }
+
+    // skips one frame; true if it is a TAG or SEND_EMAIL command, which the next frame completes
+    private boolean binaryFrameAnnouncesMore() throws IOException, NeedMore {
+        int length = readInt();
+        if (length < 1 || length > WireProtocol.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        require(length);
+        byte opcode = buf[pos];
+        int payload = pos + 1;
+        pos += length;
+        if (opcode == WireProtocol.OP_TAG || opcode == WireProtocol.OP_SEND_EMAIL) {
+            return true;
+        }
+        if (opcode != WireProtocol.OP_TEXT) {
+            return false;
+        }
+        String text = WireProtocol.decodeText(opcode,
+            new DataInputStream(new ByteArrayInputStream(buf, payload, length - 1)));
+        return announcesMore(text);
+    }
+
+    // skips one top-level object; true if it is a TAG or SEND_EMAIL command string
+    private boolean legacyMessageAnnouncesMore() throws IOException, NeedMore {
+        Object message;
+        do {
+            depth = 0;
+            message = content();
+        } while (message == TC_RESET_DONE);
+        return message instanceof String && announcesMore((String) message);
+    }
+
+    private static boolean announcesMore(String text) {
+        return text != null && (text.startsWith("TAG:") || text.startsWith("SEND_EMAIL:"));
+    }
+
+    // returned by content() for a TC_RESET, which readObject skips on its way to the next object
+    private static final Object TC_RESET_DONE = new Object();
+
+    // one item of the serialization stream; returns the string for strings, the descriptor for class
+    // descriptors and END_BLOCK for the end of an annotation
+    private Object content() throws IOException, NeedMore {
+        if (++depth > MAX_DEPTH) {
+            throw new StreamCorruptedException("Serialized request nested too deeply");
+        }
+        try {
+            int tc = readByte();
+            switch (tc) {
+                case TC_NULL:
+                    return null;
+                case TC_REFERENCE:
+                    return handle(readInt());
+                case TC_CLASSDESC:
+                case TC_PROXYCLASSDESC:
+                    pos--;
+                    return classDesc();
+                case TC_OBJECT: {
+                    ClassDesc desc = classDesc();
+                    handles.add(null);
+                    classData(desc);
+                    return null;
+                }
+                case TC_STRING: {
+                    String value = utf(readShort());
+                    handles.add(value);
+                    return value;
+                }
+                case TC_LONGSTRING: {
+                    long length = readLong();
+                    if (length < 0 || length > LEGACY_MAX_REQUEST) {
+                        throw new StreamCorruptedException("Invalid string length " + length);
+                    }
+                    skip((int) length);
+                    handles.add(null);
+                    return null;
+                }
+                case TC_ARRAY:
+                    array();
+                    return null;
+                case TC_CLASS:
+                    classDesc();
+                    handles.add(null);
+                    return null;
+                case TC_ENUM:
+                    classDesc();
+                    handles.add(null);
+                    content();
+                    return null;
+                case TC_BLOCKDATA:
+                    skip(readByte());
+                    return null;
+                case TC_BLOCKDATALONG: {
+                    int length = readInt();
+                    if (length < 0) {
+                        throw new StreamCorruptedException("Invalid block length " + length);
+                    }
+                    skip(length);
+                    return null;
+                }
+                case TC_ENDBLOCKDATA:
+                    return END_BLOCK;
+                case TC_RESET:
+                    handles = new ArrayList<>();
+                    return TC_RESET_DONE;
+                default:
+                    throw new StreamCorruptedException("Unexpected serialization token " + tc);
+            }
+        } finally {
+            depth--;
+        }
+    }
+
+    private Object handle(int wireHandle) throws StreamCorruptedException {
+        int index = wireHandle - BASE_WIRE_HANDLE;
+        if (index < 0 || index >= handles.size()) {
+            throw new StreamCorruptedException("Invalid handle " + wireHandle);
+        }
+        return handles.get(index);
+    }
+
+    // a class descriptor, a reference to one, or null
+    private ClassDesc classDesc() throws IOException, NeedMore {
+        int tc = readByte();
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE: {
+                Object desc = handle(readInt());
+                if (!(desc instanceof ClassDesc)) {
+                    throw new StreamCorruptedException("Handle is not a class descriptor");
+                }
+                return (ClassDesc) desc;
+            }
+            case TC_CLASSDESC: {
+                ClassDesc desc = new ClassDesc(utf(readShort()));
+                skip(8);
+                handles.add(desc);
+                desc.flags = readByte();
+                int fields = readShort();
+                desc.fieldTypes = new char[fields];
+                for (int i = 0; i < fields; i++) {
+                    char type = (char) readByte();
+                    desc.fieldTypes[i] = type;
+                    skip(readShort());
+                    if (type == 'L' || type == '[') {
+                        content();
+                    }
+                }
+                annotation();
+                desc.superDesc = classDesc();
+                return desc;
+            }
+            case TC_PROXYCLASSDESC: {
+                ClassDesc desc = new ClassDesc(null);
+                desc.flags = SC_SERIALIZABLE;
+                handles.add(desc);
+                int interfaces = readInt();
+                for (int i = 0; i < interfaces; i++) {
+                    skip(readShort());
+                }
+                annotation();
+                desc.superDesc = classDesc();
+                return desc;
+            }
+            default:
+                throw new StreamCorruptedException("Expected a class descriptor, got " + tc);
+        }
+    }
+
+    // the values of an object, superclass first, each class as its descriptor says it was written
+    private void classData(ClassDesc desc) throws IOException, NeedMore {
+        List<ClassDesc> hierarchy = new ArrayList<>();
+        for (ClassDesc d = desc; d != null; d = d.superDesc) {
+            hierarchy.add(0, d);
+        }
+        for (ClassDesc d : hierarchy) {
+            if ((d.flags & SC_EXTERNALIZABLE) != 0) {
+                if ((d.flags & SC_BLOCK_DATA) == 0) {
+                    throw new StreamCorruptedException("Externalizable data without block mode");
+                }
+                annotation();
+            } else if ((d.flags & SC_SERIALIZABLE) != 0) {
+                for (char type : d.fieldTypes) {
+                    value(type);
+                }
+                if ((d.flags & SC_WRITE_METHOD) != 0) {
+                    annotation();
+                }
+            }
+        }
+    }
+
+    private void array() throws IOException, NeedMore {
+        ClassDesc desc = classDesc();
+        handles.add(null);
+        int size = readInt();
+        if (desc == null || desc.name == null || desc.name.length() < 2 || size < 0) {
+            throw new StreamCorruptedException("Invalid array");
+        }
+        char type = desc.name.charAt(1);
+        int width = primitiveWidth(type);
+        if (width > 0) {
+            skip((int) Math.min((long) size * width, Integer.MAX_VALUE));
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            content();
+        }
+    }
+
+    private void value(char type) throws IOException, NeedMore {
+        int width = primitiveWidth(type);
+        if (width > 0) {
+            skip(width);
+        } else if (type == 'L' || type == '[') {
+            content();
+        } else {
+            throw new StreamCorruptedException("Unknown field type " + type);
+        }
+    }
+
+    private static int primitiveWidth(char type) {
+        switch (type) {
+            case 'B':
+            case 'Z':
+                return 1;
+            case 'C':
+            case 'S':
+                return 2;
+            case 'I':
+            case 'F':
+                return 4;
+            case 'J':
+            case 'D':
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    // block data and objects written by a writeObject or writeExternal method, up to TC_ENDBLOCKDATA
+    private void annotation() throws IOException, NeedMore {
+        while (content() != END_BLOCK) {
+            // keep skipping
+        }
+    }
+
+    private void require(int count) throws NeedMore {
+        if (count > len - pos) {
+            pos = (int) Math.min((long) pos + count, Integer.MAX_VALUE);
+            throw NEED_MORE;
+        }
+    }
+
+    private void skip(int count) throws NeedMore {
+        require(count);
+        pos += count;
+    }
+
+    private int readByte() throws NeedMore {
+        require(1);
+        return buf[pos++] & 0xFF;
+    }
+
+    private int readShort() throws NeedMore {
+        require(2);
+        int value = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+        pos += 2;
+        return value;
+    }
+
+    private int readInt() throws NeedMore {
+        require(4);
+        int value = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+            | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+        pos += 4;
+        return value;
+    }
+
+    private long readLong() throws NeedMore {
+        long high = readInt() & 0xFFFFFFFFL;
+        return (high << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    // a modified utf-8 string; command strings are ascii, so plain utf-8 decoding is close enough
+    private String utf(int length) throws NeedMore {
+        require(length);
+        String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+        }
+    }
+}
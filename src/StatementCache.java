@@ -0,0 +1,138 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// lru cache of prepared statements for one physical connection
+// callers get a handle whose close() only resets the statement, so it can be reused by the next query
+class StatementCache {
+    // cache counters across all connections
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder EVICTIONS = new LongAdder();
+
+    private final Connection physical;
+    private final int capacity;
+    private final LinkedHashMap<CacheKey, CachedStatement> statements;
+
+    StatementCache(Connection physical, int capacity) {
+        this.physical = physical;
+        this.capacity = capacity;
+        this.statements = new LinkedHashMap<CacheKey, CachedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CachedStatement> eldest) {
+                if (size() <= StatementCache.this.capacity || eldest.getValue().inUse) {
+                    return false;
+                }
+                eldest.getValue().closeQuietly();
+                EVICTIONS.increment();
+                return true;
+            }
+        };
+    }
+
+    // returns a cached statement for the sql, preparing it on first use
+    // autoGeneratedKeys is Statement.NO_GENERATED_KEYS or Statement.RETURN_GENERATED_KEYS
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        CacheKey key = new CacheKey(sql, autoGeneratedKeys);
+        CachedStatement cached = statements.get(key);
+        if (cached != null && cached.inUse) {
+            // the same query is already open on this connection (e.g. nested reads); don't share it
+            MISSES.increment();
+            return physical.prepareStatement(sql, autoGeneratedKeys);
+        }
+        if (cached == null) {
+            MISSES.increment();
+            cached = new CachedStatement(physical.prepareStatement(sql, autoGeneratedKeys));
+            statements.put(key, cached);
+        } else {
+            HITS.increment();
+        }
+        cached.inUse = true;
+        return cached.handle;
+    }
+
+    // closes every cached statement; called when the physical connection goes away
+    void invalidate() {
+        for (CachedStatement cached : statements.values()) {
+            cached.closeQuietly();
+        }
+        statements.clear();
+    }
+
+    static String getStats() {
+        return String.format("stmtHits=%d stmtMisses=%d stmtEvictions=%d", HITS.sum(), MISSES.sum(), EVICTIONS.sum());
+    }
+
+    // cache key: the sql text plus whether generated keys were requested
+    private static final class CacheKey {
+        final String sql;
+        final int autoGeneratedKeys;
+
+        CacheKey(String sql, int autoGeneratedKeys) {
+            this.sql = sql;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return autoGeneratedKeys == other.autoGeneratedKeys && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return sql.hashCode() * 31 + autoGeneratedKeys;
+        }
+    }
+
+    // a physical statement and the reusable handle given to callers
+    private static final class CachedStatement {
+        final PreparedStatement statement;
+        final PreparedStatement handle;
+        boolean inUse;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+            this.handle = (PreparedStatement) Proxy.newProxyInstance(
+                PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (inUse) {
+                                inUse = false;
+                                statement.clearParameters();
+                                statement.clearBatch();
+                            }
+                            return null;
+                        case "isClosed":
+                            return !inUse || statement.isClosed();
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            try {
+                                return method.invoke(statement, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                    }
+                });
+        }
+
+        void closeQuietly() {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // statement is being discarded anyway
+            }
+        }
+    }
+}
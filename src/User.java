@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
@@ -72,7 +73,7 @@ public class User extends Person implements Serializable {
 
     // email server connection management
     public void connectToEmailServer() {
-        emailClient.connect(email);
+        emailClient.connect(email, password);
     }
 
     public void disconnectFromEmailServer() {
@@ -84,7 +85,7 @@ public class User extends Person implements Serializable {
         emailClient.sendEmail(to, subject, content);
     }
 
-    public List<Email> getInbox() {
+    public Collection<Email> getInbox() {
         return emailClient.getInbox();
     }
 
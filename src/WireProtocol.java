@@ -0,0 +1,307 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+// opcodes and hand-written encoders for the binary wire protocol
+// every frame is [int length][byte opcode][payload], where length covers opcode and payload
+public final class WireProtocol {
+    // connection preamble: two magic bytes followed by the protocol version
+    public static final byte MAGIC_0 = 'E';
+    public static final byte MAGIC_1 = 'M';
+    // version 2 adds the cc and bcc lists to email payloads
+    // version 3 adds request tags, so a client can have several requests in flight
+    public static final int VERSION = 3;
+    // first version whose peers understand TAG and REPLY frames
+    public static final int TAGS_VERSION = 3;
+
+    // largest frame we accept, guards against corrupt length prefixes
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // client requests
+    public static final byte OP_LOGIN = 0x01;
+    public static final byte OP_REGISTER = 0x02;
+    public static final byte OP_SEND_EMAIL = 0x03;
+    public static final byte OP_MOVE_EMAIL = 0x04;
+    public static final byte OP_DELETE_EMAIL = 0x05;
+    public static final byte OP_MARK_READ = 0x06;
+    public static final byte OP_MARK_UNREAD = 0x07;
+    public static final byte OP_FETCH_EMAIL = 0x08;
+    public static final byte OP_FETCH_PAGE = 0x09;
+    public static final byte OP_SEARCH = 0x0A;
+
+    // payload objects and replies
+    public static final byte OP_STATUS = 0x10;
+    public static final byte OP_EMAIL = 0x11;
+    public static final byte OP_USER = 0x12;
+    // TAG:id precedes a tagged request; REPLY:id:count precedes the count messages answering it
+    public static final byte OP_TAG = 0x13;
+    public static final byte OP_REPLY = 0x14;
+    // any other command string, sent verbatim
+    public static final byte OP_TEXT = 0x7F;
+
+    // status replies with a compact code; a detail string follows the ':' for failures
+    private static final String[] STATUS_CODES = {
+        "LOGIN_SUCCESS", "LOGIN_FAILED",
+        "REGISTER_SUCCESS", "REGISTER_FAILED",
+        "SEND_SUCCESS", "SEND_FAILED",
+        "MOVE_SUCCESS", "MOVE_FAILED",
+        "DELETE_SUCCESS", "DELETE_FAILED",
+        "MARK_SUCCESS", "MARK_FAILED",
+        "CONNECT_SUCCESS", "CONNECT_FAILED",
+        "NEW_EMAIL",
+        "FETCH_SUCCESS", "FETCH_FAILED",
+        "PAGE_SUCCESS", "PAGE_FAILED",
+        "SEARCH_SUCCESS", "SEARCH_FAILED",
+        "STATS_SUCCESS",
+        "LOGOUT_SUCCESS",
+        "SYNC_SUCCESS", "SYNC_FAILED",
+        "SESSION_FAILED"
+    };
+    private static final Map<String, Integer> STATUS_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < STATUS_CODES.length; i++) {
+            STATUS_INDEX.put(STATUS_CODES[i], i);
+        }
+    }
+
+    private WireProtocol() {
+    }
+
+    // encodes a command or status string, using a dedicated opcode when the string has a known shape
+    public static byte encodeText(String text, DataOutputStream out) throws IOException {
+        int colon = text.indexOf(':');
+        String head = colon < 0 ? text : text.substring(0, colon);
+
+        Integer status = STATUS_INDEX.get(head);
+        if (status != null) {
+            out.writeByte(status);
+            writeString(out, colon < 0 ? null : text.substring(colon + 1));
+            return OP_STATUS;
+        }
+
+        try {
+            switch (head) {
+                case "LOGIN": {
+                    String[] parts = text.split(":", 3);
+                    if (parts.length != 3) break;
+                    writeString(out, parts[1]);
+                    writeString(out, parts[2]);
+                    return OP_LOGIN;
+                }
+                case "REGISTER": {
+                    String[] parts = text.split(":", 4);
+                    if (parts.length != 4) break;
+                    writeString(out, parts[1]);
+                    writeString(out, parts[2]);
+                    writeString(out, parts[3]);
+                    return OP_REGISTER;
+                }
+                case "SEND_EMAIL":
+                    if (colon < 0) break;
+                    writeString(out, text.substring(colon + 1));
+                    return OP_SEND_EMAIL;
+                case "MOVE_EMAIL": {
+                    String[] parts = text.split(":", 4);
+                    if (parts.length != 4) break;
+                    int emailId = Integer.parseInt(parts[2]);
+                    writeString(out, parts[1]);
+                    out.writeInt(emailId);
+                    writeString(out, parts[3]);
+                    return OP_MOVE_EMAIL;
+                }
+                case "DELETE_EMAIL":
+                case "MARK_READ":
+                case "MARK_UNREAD": {
+                    String[] parts = text.split(":", 3);
+                    if (parts.length != 3) break;
+                    int emailId = Integer.parseInt(parts[2]);
+                    writeString(out, parts[1]);
+                    out.writeInt(emailId);
+                    return head.equals("DELETE_EMAIL") ? OP_DELETE_EMAIL
+                        : head.equals("MARK_READ") ? OP_MARK_READ : OP_MARK_UNREAD;
+                }
+                case "FETCH_EMAIL": {
+                    String[] parts = text.split(":", 3);
+                    if (parts.length != 3) break;
+                    int id = Integer.parseInt(parts[2]);
+                    writeString(out, parts[1]);
+                    out.writeInt(id);
+                    return OP_FETCH_EMAIL;
+                }
+                case "FETCH_PAGE": {
+                    String[] parts = text.split(":", 5);
+                    if (parts.length != 5) break;
+                    int beforeId = Integer.parseInt(parts[3]);
+                    int limit = Integer.parseInt(parts[4]);
+                    writeString(out, parts[1]);
+                    writeString(out, parts[2]);
+                    out.writeInt(beforeId);
+                    out.writeInt(limit);
+                    return OP_FETCH_PAGE;
+                }
+                case "TAG":
+                    if (colon < 0) break;
+                    out.writeInt(Integer.parseInt(text.substring(colon + 1)));
+                    return OP_TAG;
+                case "REPLY": {
+                    String[] parts = text.split(":", 3);
+                    if (parts.length != 3) break;
+                    int tag = Integer.parseInt(parts[1]);
+                    int count = Integer.parseInt(parts[2]);
+                    out.writeInt(tag);
+                    out.writeInt(count);
+                    return OP_REPLY;
+                }
+                case "SEARCH": {
+                    String[] parts = text.split(":", 6);
+                    if (parts.length != 6) break;
+                    int offset = Integer.parseInt(parts[3]);
+                    int limit = Integer.parseInt(parts[4]);
+                    writeString(out, parts[1]);
+                    writeString(out, parts[2]);
+                    out.writeInt(offset);
+                    out.writeInt(limit);
+                    writeString(out, parts[5]);
+                    return OP_SEARCH;
+                }
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // malformed number or a list of email ids, fall through and send the text as-is
+        }
+
+        writeString(out, text);
+        return OP_TEXT;
+    }
+
+    // decodes a text frame back into the command or status string the dispatcher understands
+    public static String decodeText(byte opcode, DataInputStream in) throws IOException {
+        switch (opcode) {
+            case OP_STATUS: {
+                int code = in.readUnsignedByte();
+                if (code >= STATUS_CODES.length) {
+                    throw new StreamCorruptedException("Unknown status code " + code);
+                }
+                String detail = readString(in);
+                return detail == null ? STATUS_CODES[code] : STATUS_CODES[code] + ":" + detail;
+            }
+            case OP_LOGIN:
+                return "LOGIN:" + readString(in) + ":" + readString(in);
+            case OP_REGISTER:
+                return "REGISTER:" + readString(in) + ":" + readString(in) + ":" + readString(in);
+            case OP_SEND_EMAIL:
+                return "SEND_EMAIL:" + readString(in);
+            case OP_MOVE_EMAIL:
+                return "MOVE_EMAIL:" + readString(in) + ":" + in.readInt() + ":" + readString(in);
+            case OP_DELETE_EMAIL:
+                return "DELETE_EMAIL:" + readString(in) + ":" + in.readInt();
+            case OP_MARK_READ:
+                return "MARK_READ:" + readString(in) + ":" + in.readInt();
+            case OP_MARK_UNREAD:
+                return "MARK_UNREAD:" + readString(in) + ":" + in.readInt();
+            case OP_FETCH_EMAIL:
+                return "FETCH_EMAIL:" + readString(in) + ":" + in.readInt();
+            case OP_FETCH_PAGE:
+                return "FETCH_PAGE:" + readString(in) + ":" + readString(in) + ":" + in.readInt() + ":" + in.readInt();
+            case OP_SEARCH:
+                return "SEARCH:" + readString(in) + ":" + readString(in) + ":" + in.readInt() + ":" + in.readInt()
+                    + ":" + readString(in);
+            case OP_TAG:
+                return "TAG:" + in.readInt();
+            case OP_REPLY:
+                return "REPLY:" + in.readInt() + ":" + in.readInt();
+            case OP_TEXT:
+                return readString(in);
+            default:
+                throw new StreamCorruptedException("Unknown opcode " + opcode);
+        }
+    }
+
+    public static void encodeEmail(Email email, DataOutputStream out, int version) throws IOException {
+        out.writeInt(email.getId());
+        out.writeInt(email.getFolderId());
+        writeString(out, email.getFolder());
+        writeString(out, email.getFrom());
+        writeString(out, email.getTo());
+        writeString(out, email.getSubject());
+        writeString(out, email.getContent());
+        writeTimestamp(out, email.getTimestamp());
+        out.writeBoolean(email.isRead());
+        if (version >= 2) {
+            writeString(out, email.getCc());
+            writeString(out, email.getBcc());
+        }
+    }
+
+    public static Email decodeEmail(DataInputStream in, int version) throws IOException {
+        int id = in.readInt();
+        int folderId = in.readInt();
+        String folder = readString(in);
+        Email email = new Email(readString(in), readString(in), readString(in), readString(in));
+        email.setId(id);
+        email.setFolderId(folderId);
+        email.setFolder(folder);
+        email.setTimestamp(readTimestamp(in));
+        email.setRead(in.readBoolean());
+        if (version >= 2) {
+            email.setCc(readString(in));
+            email.setBcc(readString(in));
+        }
+        return email;
+    }
+
+    public static void encodeUser(User user, DataOutputStream out) throws IOException {
+        writeString(out, user.getName());
+        writeString(out, user.getEmail());
+        writeString(out, user.getPassword());
+        writeTimestamp(out, user.getLastLogin());
+    }
+
+    public static User decodeUser(DataInputStream in) throws IOException {
+        User user = new User(readString(in), readString(in), readString(in));
+        user.setLastLogin(readTimestamp(in));
+        return user;
+    }
+
+    // strings are an int byte length (-1 for null) followed by utf-8 bytes, so bodies may exceed 64k
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        if (length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("String length " + length + " exceeds frame limit");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTimestamp(DataOutputStream out, LocalDateTime timestamp) throws IOException {
+        if (timestamp == null) {
+            out.writeLong(Long.MIN_VALUE);
+            return;
+        }
+        out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(timestamp.getNano());
+    }
+
+    private static LocalDateTime readTimestamp(DataInputStream in) throws IOException {
+        long seconds = in.readLong();
+        if (seconds == Long.MIN_VALUE) return null;
+        return LocalDateTime.ofEpochSecond(seconds, in.readInt(), ZoneOffset.UTC);
+    }
+}